@@ -18,6 +18,10 @@ package apb.ant;
 import apb.Command;
 import apb.Main;
 
+import apb.events.BuildListener;
+
+import apb.utils.ClassUtils;
+
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
@@ -37,7 +41,12 @@ public class ApbTask
     private String          defdir;
 
     private AntEnvironment env;
-    private String         module;
+
+    /**
+     * The classes of the listeners of the build events, separated by commas
+     */
+    private String listeners;
+    private String module;
 
     //~ Constructors .........................................................................................
 
@@ -61,12 +70,19 @@ public class ApbTask
             throw new BuildException("You must specify a module name");
         }
 
+        if (listeners != null) {
+            addListeners(listeners);
+        }
+
         try {
             Main.execute(env, module, command);
         }
         catch (Throwable throwable) {
             throw new BuildException(throwable);
         }
+        finally {
+            env.closeListeners();
+        }
     }
 
     public void setModule(@NotNull String module)
@@ -84,6 +100,11 @@ public class ApbTask
         this.command = command;
     }
 
+    public void setListeners(@NotNull String listeners)
+    {
+        this.listeners = listeners;
+    }
+
     public String getTaskName()
     {
         return super.getTaskName() + " " + module + "." + command;
@@ -93,4 +114,21 @@ public class ApbTask
     {
         return defdir;
     }
+
+    private void addListeners(@NotNull String classNames)
+    {
+        for (String className : classNames.split(",")) {
+            className = className.trim();
+
+            if (!className.isEmpty()) {
+                try {
+                    env.addListener((BuildListener) ClassUtils.newInstance(getClass().getClassLoader(),
+                                                                            className));
+                }
+                catch (Exception e) {
+                    throw new BuildException("Cannot create the build listener: " + className, e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,260 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.jfr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import apb.compiler.CompilerService;
+
+import apb.utils.BuildTrace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records the spans of the build as Java Flight Recorder events, so they show up in the same
+ * recording as the samples, allocations and garbage collections of the build process.
+ * The spans are turned into events of the 'APB' category by their kind: the build, the elements
+ * executed ("apb.Target"), the commands, the tasks, the activation of the modules, the expansion of
+ * their properties and the processes started. It also records the phases of each compilation, listening
+ * to the tasks of the system compiler.
+ * Nothing is done when the events are not enabled in a running recording, besides checking it.
+ */
+public class JfrRecorder
+    implements BuildTrace.Span.Observer, CompilerService.TaskHook
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The events of the spans started and not ended yet
+     */
+    @NotNull private final Map<BuildTrace.Span, ApbEvent> events;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create the recorder
+     * @throws IllegalStateException if the flight recorder is not available in this virtual machine
+     */
+    public JfrRecorder()
+    {
+        if (!FlightRecorder.isAvailable()) {
+            throw new IllegalStateException("Flight Recorder not available");
+        }
+
+        events = new ConcurrentHashMap<BuildTrace.Span, ApbEvent>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    public void started(@NotNull BuildTrace.Span span)
+    {
+        final ApbEvent event = newEvent(span.getCategory());
+
+        if (event.isEnabled()) {
+            event.begin();
+            events.put(span, event);
+        }
+    }
+
+    public void ended(@NotNull BuildTrace.Span span)
+    {
+        final ApbEvent event = events.remove(span);
+
+        if (event != null) {
+            event.end();
+
+            if (event.shouldCommit()) {
+                final Map<String, String> args = new HashMap<String, String>(span.getArgs());
+                event.name = span.getName();
+                event.element = args.remove("element");
+                event.command = args.remove("command");
+                event.args = args.isEmpty() ? null : args.toString();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Listen to the phases of the compilation task, if their events are enabled
+     */
+    public void prepare(@NotNull JavaCompiler.CompilationTask task)
+    {
+        if (task instanceof JavacTask && new JavacPhaseEvent().isEnabled()) {
+            ((JavacTask) task).addTaskListener(new PhaseListener());
+        }
+    }
+
+    @NotNull private static ApbEvent newEvent(@NotNull String category)
+    {
+        switch (category) {
+        case "build":
+            return new BuildEvent();
+        case "element":
+            return new TargetEvent();
+        case "command":
+            return new CommandEvent();
+        case "activate":
+            return new ActivateEvent();
+        case "expand":
+            return new PropertyExpansionEvent();
+        case "process":
+            return new ProcessEvent();
+        default:
+            return new TaskExecutionEvent();
+        }
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The base of the events for the spans of the build
+     */
+    @Category("APB")
+    abstract static class ApbEvent
+        extends Event
+    {
+        @Label("Arguments")
+        @Nullable String args;
+
+        @Label("Command")
+        @Nullable String command;
+
+        @Label("Element")
+        @Nullable String element;
+
+        @Label("Name")
+        @Nullable String name;
+    }
+
+    @Name("apb.Build")
+    @Label("Build")
+    static class BuildEvent
+        extends ApbEvent {}
+
+    @Name("apb.Target")
+    @Label("Target")
+    @Description("The execution of a command for a module or project, including its dependencies")
+    static class TargetEvent
+        extends ApbEvent {}
+
+    @Name("apb.Command")
+    @Label("Command")
+    static class CommandEvent
+        extends ApbEvent {}
+
+    @Name("apb.Task")
+    @Label("Task")
+    static class TaskExecutionEvent
+        extends ApbEvent {}
+
+    @Name("apb.Activate")
+    @Label("Activate")
+    @Description("The activation of a module or project, to execute its commands")
+    static class ActivateEvent
+        extends ApbEvent {}
+
+    @Name("apb.PropertyExpansion")
+    @Label("Property Expansion")
+    @Description("The expansion of the properties of a module or project")
+    static class PropertyExpansionEvent
+        extends ApbEvent {}
+
+    @Name("apb.Process")
+    @Label("Process")
+    @Description("The life of a process started by the build, like a forked virtual machine")
+    static class ProcessEvent
+        extends ApbEvent {}
+
+    @Name("apb.JavacPhase")
+    @Label("Javac Phase")
+    @Category({ "APB", "Compiler" })
+    @Description("A phase of the compiler for a source file, like parsing it or generating its classes")
+    static class JavacPhaseEvent
+        extends Event
+    {
+        @Label("Class")
+        @Nullable String className;
+
+        @Label("Phase")
+        @Nullable String phase;
+
+        @Label("Source")
+        @Nullable String source;
+    }
+
+    /**
+     * Records the phases of a compilation task. A task runs in a single thread.
+     */
+    private static class PhaseListener
+        implements TaskListener
+    {
+        /**
+         * The events of the phases started, by their kind, source and class
+         */
+        @NotNull private final Map<String, JavacPhaseEvent> phases = new HashMap<String, JavacPhaseEvent>();
+
+        public void started(TaskEvent e)
+        {
+            final JavacPhaseEvent event = new JavacPhaseEvent();
+            event.begin();
+            phases.put(key(e), event);
+        }
+
+        public void finished(TaskEvent e)
+        {
+            final JavacPhaseEvent event = phases.remove(key(e));
+
+            if (event != null) {
+                event.end();
+
+                if (event.shouldCommit()) {
+                    final JavaFileObject file = e.getSourceFile();
+                    final TypeElement    type = e.getTypeElement();
+                    event.phase = e.getKind().name();
+                    event.source = file == null ? null : file.getName();
+                    event.className = type == null ? null : type.getQualifiedName().toString();
+                    event.commit();
+                }
+            }
+        }
+
+        @NotNull private static String key(@NotNull TaskEvent e)
+        {
+            return e.getKind() + ":" + e.getSourceFile() + ":" + e.getTypeElement();
+        }
+    }
+}
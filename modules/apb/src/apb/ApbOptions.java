@@ -18,12 +18,21 @@
 
 package apb;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import apb.events.BuildListener;
+
 import apb.metadata.ProjectElement;
 
+import apb.testrunner.TestTimings;
+
+import apb.utils.BuildTrace;
+import apb.utils.ClassUtils;
+
 import apb.utils.OptionParser;
 
 import static apb.Messages.*;
@@ -37,12 +46,25 @@ class ApbOptions
 {
     //~ Instance fields ......................................................................................
 
-    private Option<String> defineProperty;
+    private Option<String>  criticalPath;
+    private Option<Boolean> daemon;
+    private Option<String>  defineProperty;
 
     private Option<Boolean> forceBuild;
+    private Option<Boolean> jfr;
+    private Option<Integer> jobs;
+    private Option<String>  listener;
+
+    /**
+     * The listeners of the build, created when parsing the options
+     */
+    private final List<BuildListener> listeners;
     private Option<Boolean> noFailOnError;
     private Option<Boolean> quiet;
+    private Option<String>  shard;
     private Option<Boolean> showStackTrace;
+    private Option<String>  timings;
+    private Option<String>  trace;
     private Option<Boolean> verbose;
 
     //~ Constructors .........................................................................................
@@ -50,11 +72,21 @@ class ApbOptions
     public ApbOptions(String[] ops)
     {
         super(ops, "apb", "0.1");
+        listeners = new ArrayList<BuildListener>();
         showStackTrace = addBooleanOption('t', "show-stack-trace", SHOW_STACK_TRACE);
         quiet = addBooleanOption('q', "quiet", QUIET_OUTPUT);
         verbose = addBooleanOption('v', "verbose", VERBOSE);
         noFailOnError = addBooleanOption('c', "continue", CONTINUE_AFTER_ERROR);
         forceBuild = addBooleanOption('f', "force-build", FORCE_BUILD);
+        jobs = addIntegerOption('j', "jobs", JOBS, "<n>");
+        daemon = addBooleanOption('\0', "daemon", DAEMON);
+        shard = addOption("shard", SHARD, "<i/n>");
+        timings = addOption("timings", TIMINGS, "<directory>");
+        trace = addOption("trace", TRACE, "<file>");
+        criticalPath = addOption("critical-path", CRITICAL_PATH, "<file>");
+        jfr = addBooleanOption('\0', "jfr", JFR);
+        listener = addOption("listener", LISTENER, "<class>");
+        listener.setCanRepeat(true);
         defineProperty = addOption('D', "define", DEFINE_PROPERTY, "<name>=<value>");
         defineProperty.setCanRepeat(true);
     }
@@ -76,12 +108,35 @@ class ApbOptions
         doCompletion();
         final List<String> result = super.parse();
 
-        if (result.isEmpty()) {
+        if (result.isEmpty() && !isDaemon()) {
             printHelp();
         }
+
+        final String spec = shard.getValue();
+
+        if (spec != null && !spec.isEmpty() && getShard() == null) {
+            printError(INVARG(spec, shard.getName()));
+            stopParsing();
+        }
+
+        for (String className : listener.getValues()) {
+            try {
+                listeners.add((BuildListener) ClassUtils.newInstance(className));
+            }
+            catch (Exception e) {
+                printError(INVARG(className, listener.getName()));
+                stopParsing();
+            }
+        }
+
         return result;
     }
 
+    public boolean isDaemon()
+    {
+        return daemon.getValue();
+    }
+
     public void initEnv(Environment environment)
     {
         if (verbose.getValue()) {
@@ -97,6 +152,48 @@ class ApbOptions
 
         environment.setFailOnError(!noFailOnError.getValue());
         environment.setForceBuild(forceBuild.getValue());
+        environment.setJobs(jobs.getValue());
+
+        final String traceFile = trace.getValue();
+
+        if (traceFile != null && !traceFile.isEmpty()) {
+            environment.setTrace(new BuildTrace(new File(traceFile).getAbsoluteFile()));
+        }
+
+        final String criticalPathFile = criticalPath.getValue();
+
+        if (criticalPathFile != null && !criticalPathFile.isEmpty()) {
+            environment.setCriticalPathFile(new File(criticalPathFile).getAbsoluteFile());
+        }
+
+        for (BuildListener l : listeners) {
+            environment.addListener(l);
+        }
+
+        if (jfr.getValue() && !environment.enableFlightRecorder()) {
+            environment.logWarning(JFR_NOT_AVAILABLE);
+        }
+
+        final int[] s = getShard();
+
+        if (s != null) {
+            environment.setShard(s[0], s[1]);
+        }
+
+        final String timingsDir = timings.getValue();
+
+        if (timingsDir != null && !timingsDir.isEmpty()) {
+            environment.setSharedTimingsDir(new File(timingsDir).getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Return the shard of the test suites to run and the number of shards, or null if not specified
+     */
+    private int[] getShard()
+    {
+        final String spec = shard.getValue();
+        return spec == null || spec.isEmpty() ? null : TestTimings.parseShard(spec);
     }
 
     private static String printCommands()
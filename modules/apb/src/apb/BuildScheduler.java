@@ -0,0 +1,211 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Executes a command over all the elements of a top level project element,
+ * using a pool of worker threads.
+ * An element is released to the pool as soon as all the elements it depends on have been built,
+ * so elements that do not depend on each other are built concurrently.
+ */
+class BuildScheduler
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * For each element, the elements that must wait for it
+     */
+    private final Map<ProjectElementHelper, List<ProjectElementHelper>> dependents;
+    @Nullable private ExecutorService                                   executor;
+    @Nullable private Throwable                                         failure;
+    private final int                                                   jobs;
+
+    /**
+     * For each element, the number of elements it depends on that have not been built yet
+     */
+    private final Map<ProjectElementHelper, Integer> pending;
+    private final ProjectElementHelper               root;
+    private int                                      running;
+
+    //~ Constructors .........................................................................................
+
+    BuildScheduler(@NotNull ProjectElementHelper root, int jobs)
+    {
+        this.root = root;
+        this.jobs = jobs;
+        pending = new IdentityHashMap<ProjectElementHelper, Integer>();
+        dependents = new IdentityHashMap<ProjectElementHelper, List<ProjectElementHelper>>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Execute the command over all the elements, waiting for all of them to complete
+     * @param commandName The command to execute
+     * @throws BuildException If the execution of any of the elements fails.
+     */
+    void run(final String commandName)
+    {
+        final List<ProjectElementHelper> elements = root.getAllElements();
+        initGraph(elements);
+
+        executor = Executors.newFixedThreadPool(Math.min(jobs, elements.size()), new WorkerFactory());
+
+        try {
+            synchronized (this) {
+                for (ProjectElementHelper element : elements) {
+                    if (pending.get(element) == 0) {
+                        submit(element, commandName);
+                    }
+                }
+
+                while (running > 0) {
+                    wait();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure instanceof BuildException ? (BuildException) failure : new BuildException(failure);
+        }
+
+        // Elements depending on each other through their test modules are never released.
+        // Build them in topological order.
+        for (ProjectElementHelper element : elements) {
+            if (pending.get(element) > 0) {
+                root.build(element, commandName);
+            }
+        }
+    }
+
+    private void initGraph(List<ProjectElementHelper> elements)
+    {
+        for (ProjectElementHelper element : elements) {
+            pending.put(element, 0);
+            dependents.put(element, new ArrayList<ProjectElementHelper>());
+        }
+
+        for (ProjectElementHelper element : elements) {
+            for (ProjectElementHelper dependency : dependencies(element)) {
+                if (dependency != element && pending.containsKey(dependency)) {
+                    pending.put(element, pending.get(element) + 1);
+                    dependents.get(dependency).add(element);
+                }
+            }
+        }
+    }
+
+    /**
+     * The elements that must be built before the specified one.
+     * Commands over a module are forwarded to its test modules, so the dependencies of them must
+     * be built before the module too.
+     */
+    static Set<ProjectElementHelper> dependencies(ProjectElementHelper element)
+    {
+        Set<ProjectElementHelper> result = new LinkedHashSet<ProjectElementHelper>(element.getChildren());
+
+        if (element instanceof ModuleHelper) {
+            for (ModuleHelper test : ((ModuleHelper) element).getTestHelpers()) {
+                result.addAll(test.getChildren());
+            }
+        }
+
+        return result;
+    }
+
+    private void submit(final ProjectElementHelper element, final String commandName)
+    {
+        running++;
+
+        executor.execute(new Runnable() {
+                public void run()
+                {
+                    Throwable error = null;
+
+                    try {
+                        root.build(element, commandName);
+                    }
+                    catch (Throwable e) {
+                        error = e;
+                    }
+                    finally {
+                        completed(element, commandName, error);
+                    }
+                }
+            });
+    }
+
+    private synchronized void completed(ProjectElementHelper element, String commandName,
+                                        @Nullable Throwable error)
+    {
+        running--;
+
+        if (error != null && failure == null) {
+            failure = error;
+        }
+
+        // Once an element failed do not start new ones
+        if (failure == null) {
+            for (ProjectElementHelper dependent : dependents.get(element)) {
+                final int n = pending.get(dependent) - 1;
+                pending.put(dependent, n);
+
+                if (n == 0) {
+                    submit(dependent, commandName);
+                }
+            }
+        }
+
+        notifyAll();
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    private class WorkerFactory
+        implements ThreadFactory
+    {
+        private int count;
+
+        public Thread newThread(@NotNull Runnable r)
+        {
+            Thread result = new Thread(r, "apb-" + root.getName() + "-" + ++count);
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.TreeMap;
 import apb.metadata.BuildTarget;
 import apb.metadata.DefaultTarget;
 import apb.metadata.ProjectElement;
+import apb.utils.BuildTrace;
 import apb.utils.IdentitySet;
 import apb.utils.NameUtils;
 import org.jetbrains.annotations.NonNls;
@@ -98,6 +99,14 @@ public class Command
         return getName();
     }
 
+    /**
+     * Return the method that implements the command
+     */
+    Method getMethod()
+    {
+        return method;
+    }
+
     public Iterable<Command> getAllCommands()
     {
         return commands;
@@ -105,6 +114,10 @@ public class Command
 
     void invoke(ProjectElement element, Environment env)
     {
+        final String          elementName = element.getName();
+        final BuildTrace.Span span =
+            env.startSpan(elementName + "." + getName(), "command", elementName).arg("command", getName());
+
         try {
             if (Modifier.isStatic(method.getModifiers())) {
                 method.invoke(null, element, env);
@@ -120,6 +133,9 @@ public class Command
             final Throwable t = e.getCause();
             env.handle(t);
         }
+        finally {
+            span.end();
+        }
     }
 
     static Map<String, Command> buildCommands(@NotNull final Class<? extends ProjectElement> projectElementClass)
@@ -0,0 +1,505 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.StringUtils.jsonQuote;
+
+/**
+ * The critical path analysis of a build.
+ * It measures the time spent executing commands over each project element, excluding the time spent
+ * in the elements executed from them, and once the build finishes computes from the dependency graph
+ * (The one used by the {@link BuildScheduler}):
+ * <ul>
+ *   <li>The critical path: the longest chain of elements depending on each other, the minimum time
+ *       the build can take however many workers build it.
+ *   <li>The total work: the time the build takes with a single worker.
+ *   <li>The slack of each element: how much longer it can take without making the build longer.
+ *   <li>The time and speedup with N workers, scheduling first the elements with the longest path
+ *       to the end of the build.
+ * </ul>
+ * Shortening the elements in the critical path, or splitting them, is what can make the build faster.
+ */
+class CriticalPath
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The file to write the analysis to, as JSON
+     */
+    @NotNull private final File file;
+
+    /**
+     * For each thread, the time spent in the nested executions of the elements it is executing
+     */
+    @NotNull private final ThreadLocal<LinkedList<long[]>> nested;
+
+    /**
+     * The time spent in each element executed (In nanoseconds), in the order they were first executed
+     */
+    @NotNull private final Map<ProjectElementHelper, Long> work;
+
+    //~ Constructors .........................................................................................
+
+    CriticalPath(@NotNull File file)
+    {
+        this.file = file;
+        work = new LinkedHashMap<ProjectElementHelper, Long>();
+        nested =
+            new ThreadLocal<LinkedList<long[]>>() {
+                protected LinkedList<long[]> initialValue()
+                {
+                    return new LinkedList<long[]>();
+                }
+            };
+    }
+
+    //~ Methods ..............................................................................................
+
+    @NotNull File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Start measuring the execution of a command over an element in the current thread
+     * @return The time it started
+     */
+    long enter()
+    {
+        nested.get().addFirst(new long[1]);
+        return System.nanoTime();
+    }
+
+    /**
+     * End measuring the execution of a command over an element, adding the time spent to the element
+     * @param element The element
+     * @param start The time returned by {@link #enter()}
+     */
+    void exit(@NotNull ProjectElementHelper element, long start)
+    {
+        final long               elapsed = System.nanoTime() - start;
+        final LinkedList<long[]> stack = nested.get();
+        final long               own = elapsed - stack.removeFirst()[0];
+
+        if (!stack.isEmpty()) {
+            stack.getFirst()[0] += elapsed;
+        }
+
+        synchronized (this) {
+            final Long w = work.get(element);
+            work.put(element, (w == null ? 0 : w) + own);
+        }
+    }
+
+    /**
+     * Analyze the elements executed so far
+     */
+    @NotNull synchronized Analysis analyze()
+    {
+        return new Analysis(new LinkedHashMap<ProjectElementHelper, Long>(work));
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The numbers of workers to compute the time of the build with
+     */
+    private static final int[] WORKERS = { 1, 2, 4, 8, 16 };
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The results of the analysis
+     */
+    static class Analysis
+    {
+        /**
+         * The elements in the critical path, the first ones to be built first
+         */
+        @NotNull private final List<ProjectElementHelper> criticalPath;
+
+        /**
+         * For each element, the ones it depends on (Excluding the ones that would make a cycle)
+         */
+        @NotNull private final Map<ProjectElementHelper, List<ProjectElementHelper>> dependencies;
+
+        /**
+         * For each element, the ones that depend on it
+         */
+        @NotNull private final Map<ProjectElementHelper, List<ProjectElementHelper>> dependents;
+
+        /**
+         * The elements in topological order, the ones they depend on first
+         */
+        @NotNull private final List<ProjectElementHelper> elements;
+
+        /**
+         * For each element, the time it can finish with unlimited workers
+         */
+        @NotNull private final Map<ProjectElementHelper, Long> finish;
+
+        /**
+         * The time the build would take with each of the number of workers in {@link CriticalPath#WORKERS}
+         */
+        @NotNull private final long[] parallelTime;
+
+        /**
+         * For each element, the time from its start to the end of the build along its longest path
+         */
+        @NotNull private final Map<ProjectElementHelper, Long> tail;
+        private long                                           totalWork;
+        @NotNull private final Map<ProjectElementHelper, Long> work;
+
+        Analysis(@NotNull Map<ProjectElementHelper, Long> work)
+        {
+            this.work = work;
+            elements = new ArrayList<ProjectElementHelper>();
+            dependencies = new IdentityHashMap<ProjectElementHelper, List<ProjectElementHelper>>();
+            dependents = new IdentityHashMap<ProjectElementHelper, List<ProjectElementHelper>>();
+            finish = new IdentityHashMap<ProjectElementHelper, Long>();
+            tail = new IdentityHashMap<ProjectElementHelper, Long>();
+            criticalPath = new ArrayList<ProjectElementHelper>();
+
+            final Map<ProjectElementHelper, Boolean> visited =
+                new IdentityHashMap<ProjectElementHelper, Boolean>();
+
+            for (ProjectElementHelper element : work.keySet()) {
+                sort(element, visited);
+            }
+
+            computeTimes();
+            parallelTime = new long[WORKERS.length];
+
+            for (int i = 0; i < WORKERS.length; i++) {
+                parallelTime[i] = simulate(WORKERS[i]);
+            }
+        }
+
+        /**
+         * Return the length of the critical path in milliseconds
+         */
+        long getCriticalMillis()
+        {
+            long result = 0;
+
+            for (long t : finish.values()) {
+                result = Math.max(result, t);
+            }
+
+            return millis(result);
+        }
+
+        long getTotalMillis()
+        {
+            return millis(totalWork);
+        }
+
+        /**
+         * Return a report of the analysis, as a table
+         */
+        @NotNull String report()
+        {
+            final StringBuilder result = new StringBuilder("Critical path analysis:\n");
+            final long          critical = getCriticalMillis();
+
+            result.append(String.format("      %-36s %10s %10s %10s\n", "Element", "Work ms", "Start ms",
+                                        "Slack ms"));
+
+            for (ProjectElementHelper element : elements) {
+                result.append(String.format("    %s %-36s %10d %10d %10d\n",
+                                            criticalPath.contains(element) ? "*" : " ", element.getName(),
+                                            millis(work(element)), millis(start(element)), slack(element)));
+            }
+
+            result.append(String.format("    Critical path: %8d ms  %s\n", critical,
+                                        names(criticalPath, " -> ", false)));
+            result.append(String.format("    Total work:    %8d ms\n", getTotalMillis()));
+            result.append(String.format("    %8s %10s %8s\n", "Workers", "Time ms", "Speedup"));
+
+            for (int i = 0; i < WORKERS.length; i++) {
+                result.append(String.format("    %8d %10d %8.2f\n", WORKERS[i], millis(parallelTime[i]),
+                                            speedup(parallelTime[i])));
+            }
+
+            return result.toString();
+        }
+
+        /**
+         * Write the analysis as JSON
+         */
+        void write(@NotNull File file)
+            throws IOException
+        {
+            final File dir = file.getParentFile();
+
+            if (dir != null) {
+                dir.mkdirs();
+            }
+
+            final PrintWriter out = new PrintWriter(new FileWriter(file));
+
+            try {
+                out.println("{");
+                out.printf("  \"criticalPathMillis\": %d,\n", getCriticalMillis());
+                out.printf("  \"totalWorkMillis\": %d,\n", getTotalMillis());
+                out.printf("  \"criticalPath\": [%s],\n", names(criticalPath, ", ", true));
+                out.println("  \"elements\": [");
+
+                for (int i = 0; i < elements.size(); i++) {
+                    final ProjectElementHelper element = elements.get(i);
+                    out.printf("    {\"name\": %s, \"workMillis\": %d, \"startMillis\": %d, " +
+                               "\"slackMillis\": %d, \"critical\": %s, \"dependencies\": [%s]}%s\n",
+                               jsonQuote(element.getName()), millis(work(element)), millis(start(element)),
+                               slack(element), criticalPath.contains(element),
+                               names(dependencies.get(element), ", ", true),
+                               i < elements.size() - 1 ? "," : "");
+                }
+
+                out.println("  ],");
+                out.println("  \"workers\": [");
+
+                for (int i = 0; i < WORKERS.length; i++) {
+                    out.printf(Locale.US, "    {\"workers\": %d, \"millis\": %d, \"speedup\": %.2f}%s\n",
+                               WORKERS[i], millis(parallelTime[i]), speedup(parallelTime[i]),
+                               i < WORKERS.length - 1 ? "," : "");
+                }
+
+                out.println("  ]");
+                out.println("}");
+            }
+            finally {
+                out.close();
+            }
+
+            if (out.checkError()) {
+                throw new IOException("Cannot write " + file);
+            }
+        }
+
+        /**
+         * Add the element and the ones it depends on to the topological order, skipping the dependencies
+         * that would make a cycle (Modules and their test modules can depend on each other)
+         * @param visited The elements visited, true once they are sorted
+         */
+        private void sort(@NotNull ProjectElementHelper element,
+                          @NotNull Map<ProjectElementHelper, Boolean> visited)
+        {
+            if (visited.containsKey(element)) {
+                return;
+            }
+
+            visited.put(element, false);
+
+            final List<ProjectElementHelper> deps = new ArrayList<ProjectElementHelper>();
+
+            for (ProjectElementHelper dependency : BuildScheduler.dependencies(element)) {
+                if (dependency != element && !Boolean.FALSE.equals(visited.get(dependency))) {
+                    sort(dependency, visited);
+                    deps.add(dependency);
+                }
+            }
+
+            visited.put(element, true);
+            dependencies.put(element, deps);
+            dependents.put(element, new ArrayList<ProjectElementHelper>());
+
+            for (ProjectElementHelper dependency : deps) {
+                dependents.get(dependency).add(element);
+            }
+
+            elements.add(element);
+        }
+
+        /**
+         * Compute the finish time and the tail of each element, the total work and the critical path
+         */
+        private void computeTimes()
+        {
+            for (ProjectElementHelper element : elements) {
+                long start = 0;
+
+                for (ProjectElementHelper dependency : dependencies.get(element)) {
+                    start = Math.max(start, finish.get(dependency));
+                }
+
+                finish.put(element, start + work(element));
+                totalWork += work(element);
+            }
+
+            for (int i = elements.size() - 1; i >= 0; i--) {
+                final ProjectElementHelper element = elements.get(i);
+                long                       rest = 0;
+
+                for (ProjectElementHelper dependent : dependents.get(element)) {
+                    rest = Math.max(rest, tail.get(dependent));
+                }
+
+                tail.put(element, work(element) + rest);
+            }
+
+            // Walk back from the element finishing last, through the dependency finishing last
+            ProjectElementHelper last = null;
+
+            for (ProjectElementHelper element : elements) {
+                if (last == null || finish.get(element) > finish.get(last)) {
+                    last = element;
+                }
+            }
+
+            while (last != null) {
+                criticalPath.add(last);
+                ProjectElementHelper next = null;
+
+                for (ProjectElementHelper dependency : dependencies.get(last)) {
+                    if (next == null || finish.get(dependency) > finish.get(next)) {
+                        next = dependency;
+                    }
+                }
+
+                last = next;
+            }
+
+            Collections.reverse(criticalPath);
+        }
+
+        /**
+         * Return the time the build would take with the specified number of workers, starting each time
+         * a worker is free the ready element with the longest path to the end
+         */
+        private long simulate(int workers)
+        {
+            final Map<ProjectElementHelper, Integer> pending =
+                new IdentityHashMap<ProjectElementHelper, Integer>();
+            final List<ProjectElementHelper>         ready = new ArrayList<ProjectElementHelper>();
+
+            for (ProjectElementHelper element : elements) {
+                pending.put(element, dependencies.get(element).size());
+
+                if (dependencies.get(element).isEmpty()) {
+                    ready.add(element);
+                }
+            }
+
+            final Map<ProjectElementHelper, Long> running = new IdentityHashMap<ProjectElementHelper, Long>();
+            long                                  time = 0;
+
+            while (!ready.isEmpty() || !running.isEmpty()) {
+                while (running.size() < workers && !ready.isEmpty()) {
+                    ProjectElementHelper next = null;
+
+                    for (ProjectElementHelper element : ready) {
+                        if (next == null || tail.get(element) > tail.get(next)) {
+                            next = element;
+                        }
+                    }
+
+                    ready.remove(next);
+                    running.put(next, time + work(next));
+                }
+
+                ProjectElementHelper done = null;
+
+                for (Map.Entry<ProjectElementHelper, Long> entry : running.entrySet()) {
+                    if (done == null || entry.getValue() < running.get(done)) {
+                        done = entry.getKey();
+                    }
+                }
+
+                time = running.remove(done);
+
+                for (ProjectElementHelper dependent : dependents.get(done)) {
+                    final int n = pending.get(dependent) - 1;
+                    pending.put(dependent, n);
+
+                    if (n == 0) {
+                        ready.add(dependent);
+                    }
+                }
+            }
+
+            return time;
+        }
+
+        private long work(@NotNull ProjectElementHelper element)
+        {
+            final Long result = work.get(element);
+            return result == null ? 0 : result;
+        }
+
+        /**
+         * Return the time an element can start with unlimited workers
+         */
+        private long start(@NotNull ProjectElementHelper element)
+        {
+            return finish.get(element) - work(element);
+        }
+
+        /**
+         * Return how many milliseconds longer an element can take without making the build longer
+         */
+        private long slack(@NotNull ProjectElementHelper element)
+        {
+            return getCriticalMillis() - millis(start(element) + tail.get(element));
+        }
+
+        private double speedup(long time)
+        {
+            return time == 0 ? 1.0 : (double) totalWork / time;
+        }
+
+        @NotNull private static String names(@Nullable List<ProjectElementHelper> list, @NotNull String separator,
+                                             boolean quote)
+        {
+            final StringBuilder result = new StringBuilder();
+
+            if (list != null) {
+                for (ProjectElementHelper element : list) {
+                    if (result.length() > 0) {
+                        result.append(separator);
+                    }
+
+                    result.append(quote ? jsonQuote(element.getName()) : element.getName());
+                }
+            }
+
+            return result.toString();
+        }
+
+        private static long millis(long nanos)
+        {
+            return nanos / 1000000;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import apb.compiler.InMemJavaC;
+
+import apb.utils.OptionParser;
+import apb.utils.StandaloneEnv;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A long lived build server for a given directory.
+ * It keeps the compiled project definitions and the java compiler warm,
+ * so successive builds avoid the jvm startup and the compilation of the definitions.
+ *
+ * The server listens in a local port that is written (together with an access token)
+ * in a file under '~/.apb/daemon', named after the directory.
+ * The 'apb' script sends to it the token, the current directory and the arguments (One per line)
+ * followed by an empty line, and then just copies the output until the {@link #EXIT_MARKER} line.
+ *
+ * Builds are executed one at a time.
+ * The compiled definitions are discarded when any of their sources is modified.
+ */
+class Daemon
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final File        baseDir;
+    @NotNull private final Environment env;
+    @NotNull private final InMemJavaC  javac;
+    @NotNull private final File        portFile;
+    @NotNull private final String      token;
+
+    //~ Constructors .........................................................................................
+
+    Daemon(@NotNull Environment env)
+        throws IOException
+    {
+        this.env = env;
+        baseDir = new File(".").getCanonicalFile();
+        portFile = portFile(baseDir);
+        javac = new InMemJavaC(env);
+        token = Long.toHexString(new SecureRandom().nextLong());
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Serve build requests until the daemon has been idle for 'daemon.timeout' minutes
+     * or the port file is removed.
+     */
+    void run()
+        throws IOException
+    {
+        final ServerSocket server = new ServerSocket(0, BACKLOG, InetAddress.getByName(null));
+        server.setSoTimeout(POLL_INTERVAL);
+
+        writePortFile(server.getLocalPort());
+        env.logInfo(Messages.DAEMON_STARTED(baseDir, server.getLocalPort()));
+
+        final long timeout = Long.parseLong(env.getProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT)) * 60000L;
+        long       lastRequest = System.currentTimeMillis();
+
+        try {
+            while (portFile.exists() && System.currentTimeMillis() - lastRequest < timeout) {
+                Socket socket;
+
+                try {
+                    socket = server.accept();
+                }
+                catch (SocketTimeoutException e) {
+                    continue;
+                }
+
+                try {
+                    serve(socket);
+                }
+                catch (IOException e) {
+                    // The logger belongs to the last build now
+                    System.err.println(e.getMessage());
+                }
+                finally {
+                    socket.close();
+                }
+
+                lastRequest = System.currentTimeMillis();
+            }
+        }
+        finally {
+            server.close();
+            portFile.delete();
+        }
+    }
+
+    private static File portFile(File dir)
+    {
+        File daemonDir = new File(new File(System.getProperty("user.home"), APB_DIR), DAEMON_DIR);
+        return new File(daemonDir, dir.getPath().replaceAll("[^A-Za-z0-9]", "_"));
+    }
+
+    private void writePortFile(int port)
+        throws IOException
+    {
+        // Only the owner must be able to connect, so the directory and the file are restricted
+        // before writing the token
+        final File dir = portFile.getParentFile();
+        dir.mkdirs();
+        restrictToOwner(dir);
+
+        portFile.delete();
+
+        if (!portFile.createNewFile()) {
+            throw new IOException("Cannot create " + portFile);
+        }
+
+        restrictToOwner(portFile);
+        FileWriter writer = new FileWriter(portFile);
+
+        try {
+            writer.write(port + " " + token + "\n");
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Remove the permissions of everybody but the owner, where the file system supports it
+     */
+    private static void restrictToOwner(@NotNull File file)
+    {
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(false, false);
+        file.setWritable(true, true);
+
+        if (file.isDirectory()) {
+            file.setExecutable(false, false);
+            file.setExecutable(true, true);
+        }
+    }
+
+    private void serve(Socket socket)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        if (!token.equals(in.readLine())) {
+            return;
+        }
+
+        final String dir = in.readLine();
+
+        List<String> args = new ArrayList<String>();
+
+        for (String line; (line = in.readLine()) != null && !line.isEmpty();) {
+            args.add(line);
+        }
+
+        PrintStream out = new PrintStream(socket.getOutputStream(), true);
+
+        if (dir == null || !baseDir.equals(new File(dir).getCanonicalFile())) {
+            out.println("Build daemon is serving a different directory: " + baseDir);
+            out.println(EXIT_MARKER + 1);
+            return;
+        }
+
+        out.println(EXIT_MARKER + build(args, out));
+    }
+
+    /**
+     * Execute a build sending all the output to the specified stream
+     * @return The exit status for the 'apb' script
+     */
+    private int build(List<String> args, PrintStream out)
+    {
+        final PrintStream stdout = System.out;
+        final PrintStream stderr = System.err;
+        System.setOut(out);
+        System.setErr(out);
+
+        int status = 0;
+
+        try {
+            ApbOptions options = new ApbOptions(args.toArray(new String[args.size()]));
+            options.setExitOnStopParsing(false);
+            List<String> arguments = options.parse();
+
+            // The environment must be created after redirecting the output, so the log goes to the client
+            Environment buildEnv =
+                new StandaloneEnv(Main.class.getPackage().getName(), options.definedProperties());
+            options.initEnv(buildEnv);
+
+            if (javac.refresh()) {
+                buildEnv.logVerbose("Project definitions modified. Recompiling.\n");
+            }
+
+            buildEnv.setJavac(javac);
+            Main.execute(buildEnv, arguments);
+        }
+        catch (OptionParser.StopParsingException e) {
+            // The help, the version or an invalid option: the message has already been sent
+            status = e.getStatus();
+        }
+        catch (Throwable e) {
+            e.printStackTrace(out);
+            status = 1;
+        }
+        finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+
+        return status;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The line that marks the end of the output of a build, followed by the exit status
+     */
+    static final String EXIT_MARKER = "@@apb-exit ";
+
+    private static final String APB_DIR = ".apb";
+    private static final String DAEMON_DIR = "daemon";
+
+    private static final int BACKLOG = 5;
+    private static final int POLL_INTERVAL = 5000;
+
+    private static final String TIMEOUT_PROPERTY = "daemon.timeout";
+    private static final String DEFAULT_TIMEOUT = "180";
+}
@@ -22,21 +22,37 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import apb.compiler.CompilerService;
 import apb.compiler.InMemJavaC;
 
+import apb.events.BuildEvent;
+import apb.events.BuildListener;
+import apb.events.EventDispatcher;
+
 import apb.metadata.Module;
 import apb.metadata.ProjectElement;
 
+import apb.utils.BuildCache;
+import apb.utils.BuildTrace;
+import apb.utils.FileTree;
+import apb.utils.FileUtils;
 import apb.utils.PropertyExpansor;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static java.lang.Character.isJavaIdentifierPart;
 
@@ -54,34 +70,93 @@ public abstract class Environment
 {
     //~ Instance fields ......................................................................................
 
-    private File basedir;
-
     /**
      * Base properties are enviroment or argument properties
      * They take preference over the properties defined in project elements
      */
     private Map<String, String> baseProperties;
-    private long                clock;
 
-    private Command currentCommand;
+    /**
+     * The cache of task outputs (Created on first use)
+     */
+    @Nullable private BuildCache buildCache;
+
+    /**
+     * The span of the whole build, if it is traced
+     */
+    @NotNull private BuildTrace.Span buildSpan;
+    private long                     clock;
+
+    /**
+     * The time spent and saved by the compilations of the build
+     */
+    @NotNull private final CompilerService.Metrics compilerMetrics;
+
+    /**
+     * The critical path analysis of the build, if requested
+     */
+    @Nullable private CriticalPath criticalPath;
+
+    /**
+     * The build context of the current thread.
+     * Each thread building a project element has its own one, so several modules
+     * can be built concurrently.
+     */
+    private final ThreadLocal<Context> context;
+
+    /**
+     * The dispatcher of the events to the listeners of the build, if there are any
+     */
+    @Nullable private volatile EventDispatcher events;
+    private boolean                            failOnError;
 
-    private ProjectElementHelper              currentElement;
-    private boolean                           failOnError;
+    /**
+     * Snapshots of the directories scanned during the build, by their root
+     */
+    private final Map<File, FileTree>         fileTrees;
+
+    /**
+     * The recorder of Java Flight Recorder events, if enabled
+     */
+    @Nullable private BuildTrace.Span.Observer flightRecorder;
     private boolean                           forceBuild;
     private Map<String, ProjectElementHelper> helpersByElement;
     private InMemJavaC                        javac;
-    private Os                                os;
+    private int                               jobs;
+
+    /**
+     * The observers of the spans of the build
+     */
+    @NotNull private final List<BuildTrace.Span.Observer> observers;
+    private Os                                            os;
 
     private Set<File> projectPath;
 
+    private File    projectsHome;
+    private boolean quiet;
+
+    /**
+     * The shard of the test suites to run, and the number of shards
+     */
+    private int     shard;
+    private int     shards;
+    private boolean showStackTrace;
+
+    /**
+     * The directory with the times of the test suites shared by the machines running the shards, if any
+     */
+    @Nullable private File sharedTimingsDir;
+
+    /**
+     * Shared properties are visible from all the build contexts (i.e. projects-home)
+     */
+    private final Map<String, String> sharedProperties;
+
     /**
-     * Project properties are the properties defined in project elements
+     * The trace of the build, if requested
      */
-    private Map<String, String> projectProperties;
-    private File                projectsHome;
-    private boolean             quiet;
-    private boolean             showStackTrace;
-    private boolean             verbose;
+    @Nullable private BuildTrace trace;
+    private boolean              verbose;
 
     //~ Constructors .........................................................................................
 
@@ -89,7 +164,22 @@ public abstract class Environment
     {
         os = Os.getInstance();
         baseProperties = new TreeMap<String, String>();
-        projectProperties = new TreeMap<String, String>();
+        sharedProperties = new TreeMap<String, String>();
+        fileTrees = new HashMap<File, FileTree>();
+        compilerMetrics = new CompilerService.Metrics();
+        jobs = 1;
+        buildSpan = BuildTrace.NONE;
+        observers = new CopyOnWriteArrayList<BuildTrace.Span.Observer>();
+        shard = 1;
+        shards = 1;
+
+        context =
+            new ThreadLocal<Context>() {
+                protected Context initialValue()
+                {
+                    return new Context();
+                }
+            };
 
         helpersByElement = new HashMap<String, ProjectElementHelper>();
         javac = new InMemJavaC(this);
@@ -114,14 +204,36 @@ public abstract class Environment
 
     public abstract void logVerbose(String msg, Object... args);
 
+    /**
+     * Wait until the messages logged so far are written, for the environments that write them
+     * in the background
+     */
+    public void flushLog() {}
+
+    /**
+     * Use the specified compiler for project definitions.
+     * This allows to share the already compiled definitions among several builds.
+     * @param compiler The compiler to use
+     */
+    public void setJavac(@NotNull InMemJavaC compiler)
+    {
+        javac = compiler;
+        javac.setEnvironment(this);
+    }
+
     public long sourceLastModified(@NotNull Class clazz)
     {
         return javac.sourceLastModified(clazz);
     }
 
+    @Nullable public File sourceFile(@NotNull Class<?> clazz)
+    {
+        return javac.sourceFile(clazz);
+    }
+
     public void setCurrentCommand(Command currentCommand)
     {
-        this.currentCommand = currentCommand;
+        context.get().currentCommand = currentCommand;
     }
 
     public void handle(String msg)
@@ -148,6 +260,149 @@ public abstract class Environment
         logSevere(e.getMessage());
     }
 
+    /**
+     * Set the maximum number of project elements that can be built concurrently
+     * @param n The number of build threads
+     */
+    public void setJobs(int n)
+    {
+        jobs = Math.max(n, 1);
+    }
+
+    public int getJobs()
+    {
+        return jobs;
+    }
+
+    /**
+     * Run only a shard of the suites of the test modules, to split a test run among several machines
+     * @param shard The shard to run, from 1 to the number of shards
+     * @param n The number of shards
+     */
+    public void setShard(int shard, int n)
+    {
+        this.shard = shard;
+        shards = n;
+    }
+
+    /**
+     * Return the shard of the test suites to run, from 1 to {@link #getShards()}
+     */
+    public int getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * Return the number of shards the test suites are split in
+     */
+    public int getShards()
+    {
+        return shards;
+    }
+
+    /**
+     * Keep the times of the test suites in a directory shared by the machines running the shards,
+     * instead of in the state directory of each module, so the shards are balanced with them
+     * (See {@link apb.testrunner.TestTimings})
+     */
+    public void setSharedTimingsDir(@Nullable File dir)
+    {
+        sharedTimingsDir = dir;
+    }
+
+    /**
+     * Return the directory with the times of the test suites shared by the machines running the shards,
+     * or null if they are kept in the state directory of each module
+     */
+    @Nullable public File getSharedTimingsDir()
+    {
+        return sharedTimingsDir;
+    }
+
+    /**
+     * Return an snapshot of the files under a directory, to scan them with {@link apb.utils.DirectoryScanner}.
+     * The directory is scanned the first time, and again only if the snapshot has been invalidated
+     * or a directory in it has been modified.
+     * @param dir The root directory
+     * @return The snapshot
+     * @throws IOException If the directory cannot be scanned
+     */
+    @NotNull public FileTree getFileTree(@NotNull File dir)
+        throws IOException
+    {
+        final File root = FileUtils.normalize(dir);
+        FileTree   result;
+
+        synchronized (fileTrees) {
+            result = fileTrees.get(root);
+        }
+
+        if (result == null || !result.isValid()) {
+            result = FileTree.scan(root);
+
+            synchronized (fileTrees) {
+                fileTrees.put(root, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Discard the snapshots that contain the specified file or directory, or are contained in it.
+     * Tasks must invoke it for the files they write or remove.
+     * @param file The modified file or directory
+     */
+    public void invalidateFileTrees(@NotNull File file)
+    {
+        final String path = FileUtils.normalize(file).getPath() + File.separator;
+
+        synchronized (fileTrees) {
+            for (Iterator<File> it = fileTrees.keySet().iterator(); it.hasNext();) {
+                final String root = it.next().getPath() + File.separator;
+
+                if (root.startsWith(path) || path.startsWith(root)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the cache of task outputs, or null if it is not enabled with the 'buildcache' property
+     * @return The build cache
+     */
+    @Nullable public synchronized BuildCache getBuildCache()
+    {
+        if (buildCache == null && "true".equals(getProperty(BUILDCACHE_PROPERTY, "false"))) {
+            final String dir = getProperty(BUILDCACHE_DIR_PROPERTY, "");
+            buildCache =
+                new BuildCache(dir.isEmpty() ? new File(new File(System.getProperty("user.home"), APB_DIR), CACHE_DIR)
+                                             : new File(dir));
+        }
+
+        return buildCache;
+    }
+
+    /**
+     * Return the time spent and saved by the compilations of the build, reusing compiler contexts
+     * (See {@link CompilerService})
+     */
+    @NotNull public CompilerService.Metrics getCompilerMetrics()
+    {
+        return compilerMetrics;
+    }
+
+    /**
+     * Whether to compile together the modules of a build, as enabled with the 'batchcompile' property
+     * (See {@link apb.tasks.JavacBatch})
+     */
+    public boolean isBatchCompile()
+    {
+        return getBooleanProperty(BATCHCOMPILE_PROPERTY);
+    }
+
     public void setVerbose()
     {
         verbose = true;
@@ -173,7 +428,7 @@ public abstract class Environment
         String result = baseProperties.get(id);
 
         if (result == null) {
-            result = projectProperties.get(id);
+            result = getProjectProperty(id);
 
             if (result == null) {
                 PropertyException e = new PropertyException(id);
@@ -207,7 +462,7 @@ public abstract class Environment
     @NotNull public String getProperty(@NotNull String id, @NotNull String defaultValue)
     {
         String result = baseProperties.get(id);
-        return result != null ? result : (result = projectProperties.get(id)) != null ? result : defaultValue;
+        return result != null ? result : (result = getProjectProperty(id)) != null ? result : defaultValue;
     }
 
     /**
@@ -284,7 +539,14 @@ public abstract class Environment
     public void setProjectsHome(File file)
     {
         projectsHome = file;
-        putProperty(PROJECTS_HOME_PROP_KEY, file.getAbsolutePath());
+
+        if (isVerbose()) {
+            logVerbose("property %s=%s\n", PROJECTS_HOME_PROP_KEY, file.getAbsolutePath());
+        }
+
+        synchronized (sharedProperties) {
+            sharedProperties.put(PROJECTS_HOME_PROP_KEY, file.getAbsolutePath());
+        }
     }
 
     @NotNull public ProjectElementHelper getHelper(@NotNull ProjectElement element)
@@ -317,49 +579,340 @@ public abstract class Environment
     public void abort(String msg)
     {
         logInfo(msg);
+        flushLog();
         System.exit(1);
     }
 
     public void resetClock()
     {
         clock = System.currentTimeMillis();
+        buildSpan = startSpan("build", "build");
+    }
+
+    /**
+     * Analyze the critical path of the build, reporting it when it is completed
+     * @param file The file to write the analysis to, as JSON
+     */
+    public void setCriticalPathFile(@NotNull File file)
+    {
+        criticalPath = new CriticalPath(file);
+    }
+
+    /**
+     * Return the critical path analysis of the build, or null if it is not requested
+     */
+    @Nullable CriticalPath getCriticalPath()
+    {
+        return criticalPath;
+    }
+
+    /**
+     * Trace the build, writing the trace when it is completed
+     * @param buildTrace The trace
+     */
+    public void setTrace(@NotNull BuildTrace buildTrace)
+    {
+        trace = buildTrace;
+    }
+
+    /**
+     * Return the trace of the build, or null if it is not traced
+     */
+    @Nullable public BuildTrace getTrace()
+    {
+        return trace;
+    }
+
+    /**
+     * Start a span of the build trace in the current thread, to be ended when the work it measures is done.
+     * The span has the element and command being executed as arguments.
+     * If the build is not traced the span is not recorded, and if there are listeners its start and end
+     * are fired as events.
+     * @param name The name of the span
+     * @param category The kind of span (See {@link BuildTrace#start})
+     */
+    @NotNull public BuildTrace.Span startSpan(@NotNull String name, @NotNull String category)
+    {
+        return startSpan(name, category, getCurrentName());
+    }
+
+    /**
+     * Start a span of the build trace for the specified element (See {@link #startSpan(String, String)})
+     * @param name The name of the span
+     * @param category The kind of span
+     * @param element The name of the element
+     */
+    @NotNull public BuildTrace.Span startSpan(@NotNull String name, @NotNull String category,
+                                              @Nullable String element)
+    {
+        if (trace == null && observers.isEmpty()) {
+            return BuildTrace.NONE;
+        }
+
+        final Command         command = getCurrentCommand();
+        final BuildTrace.Span result =
+            (observers.isEmpty() ? trace.start(name, category)
+                                 : BuildTrace.observed(trace, observers, name, category))
+            .arg("element", element).arg("command", command == null ? null : command.getName());
+
+        for (BuildTrace.Span.Observer observer : observers) {
+            observer.started(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Add an observer of the spans of the build, notified in the threads that start and end them
+     * @param observer The observer
+     */
+    public void addObserver(@NotNull BuildTrace.Span.Observer observer)
+    {
+        observers.add(observer);
+    }
+
+    public void removeObserver(@NotNull BuildTrace.Span.Observer observer)
+    {
+        observers.remove(observer);
+    }
+
+    /**
+     * Record the spans of the build and the phases of the compiler as Java Flight Recorder events.
+     * The recorder is in the 'apb-jfr' module, that needs Java 11 or later: it is loaded from the class path,
+     * or from the 'apb-jfr' jar next to the 'apb' one.
+     * The events are only recorded while there is a recording running, like the ones started
+     * with the '-XX:StartFlightRecording' option of the virtual machine or with 'jcmd'.
+     * @return false if the recorder is not available
+     */
+    public boolean enableFlightRecorder()
+    {
+        if (flightRecorder == null) {
+            final Object recorder = newFlightRecorder();
+
+            if (!(recorder instanceof BuildTrace.Span.Observer)) {
+                return false;
+            }
+
+            flightRecorder = (BuildTrace.Span.Observer) recorder;
+            addObserver(flightRecorder);
+
+            if (recorder instanceof CompilerService.TaskHook) {
+                CompilerService.getInstance().setHook((CompilerService.TaskHook) recorder);
+            }
+        }
+
+        return true;
+    }
+
+    @Nullable private Object newFlightRecorder()
+    {
+        ClassLoader loader = getClass().getClassLoader();
+
+        try {
+            try {
+                return loader.loadClass(FLIGHT_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+            }
+            catch (ClassNotFoundException e) {
+                // Look for the module next to the apb jar
+                final String url = getClass().getResource("").toExternalForm();
+                final int    ind = url.lastIndexOf('!');
+
+                if (ind == -1 || !url.startsWith(JAR_FILE_URL_PREFIX)) {
+                    return null;
+                }
+
+                final File dir = new File(url.substring(JAR_FILE_URL_PREFIX.length(), ind)).getParentFile();
+                final File jar = new File(dir, FLIGHT_RECORDER_JAR);
+
+                if (!jar.exists()) {
+                    return null;
+                }
+
+                loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, loader);
+                return loader.loadClass(FLIGHT_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+            }
+        }
+        catch (Exception e) {
+            // Not available in this virtual machine
+            return null;
+        }
+        catch (LinkageError e) {
+            // An older virtual machine
+            return null;
+        }
+    }
+
+    /**
+     * Add a listener of the events of the build (See {@link BuildEvent})
+     * @param listener The listener
+     */
+    public synchronized void addListener(@NotNull BuildListener listener)
+    {
+        if (events == null) {
+            events = new EventDispatcher();
+            addObserver(events);
+        }
+
+        events.addListener(listener);
+    }
+
+    /**
+     * Whether there are listeners of the events of the build
+     */
+    public boolean hasListeners()
+    {
+        return events != null;
+    }
+
+    /**
+     * Fire an event of the build, with the element and command being executed.
+     * It returns straight away if there are no listeners, and never waits for them.
+     * @param kind The kind of event
+     * @param name The name of what the event is about
+     * @param attributes The attributes of the event, as pairs of name and value
+     */
+    public void fire(@NotNull BuildEvent.Kind kind, @NotNull String name, @NotNull String... attributes)
+    {
+        final EventDispatcher dispatcher = events;
+
+        if (dispatcher != null) {
+            final Map<String, String> values = new LinkedHashMap<String, String>();
+
+            for (int i = 0; i + 1 < attributes.length; i += 2) {
+                values.put(attributes[i], attributes[i + 1]);
+            }
+
+            final Command command = getCurrentCommand();
+            dispatcher.fire(new BuildEvent(kind, name, getCurrentName(),
+                                           command == null ? null : command.getName(), values, 0));
+        }
+    }
+
+    /**
+     * Fire an event created by the caller, like one fired from a thread that is not building an element
+     * @param event The event
+     */
+    public void fire(@NotNull BuildEvent event)
+    {
+        final EventDispatcher dispatcher = events;
+
+        if (dispatcher != null) {
+            dispatcher.fire(event);
+        }
+    }
+
+    /**
+     * Deliver the pending events to the listeners and remove them, reporting the ones that failed
+     */
+    public void closeListeners()
+    {
+        final EventDispatcher dispatcher;
+
+        synchronized (this) {
+            dispatcher = events;
+            events = null;
+        }
+
+        if (dispatcher != null) {
+            removeObserver(dispatcher);
+            dispatcher.close();
+
+            for (Map.Entry<BuildListener, RuntimeException> entry : dispatcher.getFailures().entrySet()) {
+                logWarning("Build listener %s failed: %s\n", entry.getKey().getClass().getName(),
+                           entry.getValue());
+            }
+
+            if (dispatcher.getDropped() > 0) {
+                logWarning("%d build events were dropped, the listeners could not keep up\n",
+                           dispatcher.getDropped());
+            }
+        }
     }
 
     public void completedMessage(boolean ok)
     {
+        if (buildCache != null && buildCache.isUsed()) {
+            logInfo(buildCache.report());
+        }
+
+        if (compilerMetrics.isUsed()) {
+            logVerbose(compilerMetrics.report());
+        }
+
+        if (criticalPath != null) {
+            final CriticalPath.Analysis analysis = criticalPath.analyze();
+            logInfo(analysis.report());
+
+            try {
+                analysis.write(criticalPath.getFile());
+            }
+            catch (IOException e) {
+                logWarning("Cannot write the critical path analysis: %s\n", e.getMessage());
+            }
+        }
+
+        buildSpan.arg("status", ok ? "completed" : "failed").end();
+        closeListeners();
+
+        if (flightRecorder != null) {
+            removeObserver(flightRecorder);
+            CompilerService.getInstance().setHook(null);
+            flightRecorder = null;
+        }
+
+        if (trace != null) {
+            try {
+                trace.write();
+                logVerbose("Build trace written to %s\n", trace.getFile());
+            }
+            catch (IOException e) {
+                logWarning("Cannot write the build trace: %s\n", e.getMessage());
+            }
+        }
+
         logInfo(ok ? Messages.BUILD_COMPLETED(System.currentTimeMillis() - clock) : Messages.BUILD_FAILED);
+        flushLog();
     }
 
     public File getBaseDir()
     {
-        return basedir;
+        return context.get().basedir;
     }
 
     public File fileFromBase(String name)
     {
         final File child = new File(expand(name));
-        return child.isAbsolute() ? child : new File(basedir, child.getPath());
+        return child.isAbsolute() ? child : new File(getBaseDir(), child.getPath());
     }
 
     @NotNull public ProjectElement activate(@NotNull ProjectElement element)
     {
-        currentElement = getHelper(element);
+        final Context         ctx = context.get();
+        final BuildTrace.Span span = startSpan(element.getName(), "activate", element.getName());
 
-        ProjectElement result = new PropertyExpansor(this).expand(element);
+        try {
+            ctx.currentElement = getHelper(element);
 
-        basedir = new File(result.basedir);
-        currentElement.activate(result);
-        return result;
+            ProjectElement result = new PropertyExpansor(this).expand(element);
+
+            ctx.basedir = new File(result.basedir);
+            ctx.currentElement.activate(result);
+            return result;
+        }
+        finally {
+            span.end();
+        }
     }
 
     public String getCurrentName()
     {
-        return currentElement == null ? null : currentElement.getName();
+        final ProjectElementHelper current = getCurrent();
+        return current == null ? null : current.getName();
     }
 
     public void deactivate()
     {
-        currentElement = null;
+        context.get().currentElement = null;
     }
 
     /**
@@ -368,7 +921,9 @@ public abstract class Environment
      */
     @NotNull public ModuleHelper getModuleHelper()
     {
-        if (currentElement == null || !(currentElement instanceof ModuleHelper)) {
+        final ProjectElementHelper currentElement = getCurrent();
+
+        if (!(currentElement instanceof ModuleHelper)) {
             throw new IllegalStateException("Not current Module");
         }
 
@@ -381,7 +936,9 @@ public abstract class Environment
      */
     @NotNull public TestModuleHelper getTestModuleHelper()
     {
-        if (currentElement == null || !(currentElement instanceof TestModuleHelper)) {
+        final ProjectElementHelper currentElement = getCurrent();
+
+        if (!(currentElement instanceof TestModuleHelper)) {
             throw new IllegalStateException("Not current Module");
         }
 
@@ -394,7 +951,9 @@ public abstract class Environment
      */
     @NotNull public ProjectHelper getProjectHelper()
     {
-        if (currentElement == null || !(currentElement instanceof ProjectHelper)) {
+        final ProjectElementHelper currentElement = getCurrent();
+
+        if (!(currentElement instanceof ProjectHelper)) {
             throw new IllegalStateException("Not current Project");
         }
 
@@ -403,7 +962,7 @@ public abstract class Environment
 
     public ProjectElementHelper getCurrent()
     {
-        return currentElement;
+        return context.get().currentElement;
     }
 
     public Set<File> getProjectPath()
@@ -442,7 +1001,7 @@ public abstract class Environment
 
     public Command getCurrentCommand()
     {
-        return currentCommand;
+        return context.get().currentCommand;
     }
 
     public Os getOs()
@@ -456,7 +1015,7 @@ public abstract class Environment
             logVerbose("property %s=%s\n", name, value);
         }
 
-        projectProperties.put(name, value);
+        context.get().projectProperties.put(name, value);
     }
 
     public void setProperties(Map<String, String> values)
@@ -570,6 +1129,19 @@ public abstract class Environment
         }
     }
 
+    private String getProjectProperty(String id)
+    {
+        String result = context.get().projectProperties.get(id);
+
+        if (result == null) {
+            synchronized (sharedProperties) {
+                result = sharedProperties.get(id);
+            }
+        }
+
+        return result;
+    }
+
     private void loadUserProperties()
     {
         final String home = System.getProperty("user.home");
@@ -589,8 +1161,27 @@ public abstract class Environment
 
     private static final String JAR_FILE_URL_PREFIX = "jar:file:";
 
+    private static final String FLIGHT_RECORDER_CLASS = "apb.jfr.JfrRecorder";
+    private static final String FLIGHT_RECORDER_JAR = "apb-jfr.jar";
+
     private static final String APB_DIR = ".apb";
     private static final String APB_PROPERTIES = "apb.properties";
+    private static final String CACHE_DIR = "cache";
+
+    /**
+     * Set this property to true to enable the cache of task outputs
+     */
+    private static final String BUILDCACHE_PROPERTY = "buildcache";
+
+    /**
+     * The directory of the cache of task outputs. (Default: ~/.apb/cache)
+     */
+    private static final String BUILDCACHE_DIR_PROPERTY = "buildcache.dir";
+
+    /**
+     * Set this property to true to compile together the modules of a build
+     */
+    private static final String BATCHCOMPILE_PROPERTY = "batchcompile";
 
     //
     private static final String PROJECTS_HOME_PROP_KEY = "projects-home";
@@ -604,4 +1195,21 @@ public abstract class Environment
         return baseProperties.get(propertyName);
 
     }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The state of the build being executed by a given thread
+     */
+    private static class Context
+    {
+        private File                 basedir;
+        private Command              currentCommand;
+        private ProjectElementHelper currentElement;
+
+        /**
+         * Project properties are the properties defined in project elements
+         */
+        private final Map<String, String> projectProperties = new TreeMap<String, String>();
+    }
 }
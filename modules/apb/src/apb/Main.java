@@ -33,7 +33,13 @@ public class Main
         List<String> arguments = options.parse();
         Environment  env = new StandaloneEnv(Main.class.getPackage().getName(), options.definedProperties());
         options.initEnv(env);
-        Main.execute(env, arguments);
+
+        if (options.isDaemon()) {
+            new Daemon(env).run();
+        }
+        else {
+            Main.execute(env, arguments);
+        }
     }
 
     public static boolean execute(Environment env, String element, String command)
@@ -61,7 +67,7 @@ public class Main
         return false;
     }
 
-    private static void execute(Environment env, List<String> arguments)
+    static void execute(Environment env, List<String> arguments)
         throws Throwable
     {
         env.resetClock();
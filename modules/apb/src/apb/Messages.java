@@ -75,6 +75,11 @@ public class Messages
         return "command : one of " + cmds;
     }
 
+    static String DAEMON_STARTED(File dir, int port)
+    {
+        return "Build daemon for '" + dir + "' listening on port " + port + "\n";
+    }
+
     static String BUILD_COMPLETED(long ts)
     {
         return "\nBUILD COMPLETED in " + ts + " milliseconds.\n";
@@ -90,7 +95,18 @@ public class Messages
     @NonNls public static final String VERBOSE = "Be extra verbose.";
     @NonNls public static final String CONTINUE_AFTER_ERROR = "Continue after error.";
     @NonNls public static final String FORCE_BUILD = "Force build (Do not check timestamps).";
+    @NonNls public static final String JOBS = "Number of modules to build in parallel.";
     @NonNls public static final String DEFINE_PROPERTY = "Define a property.";
+    @NonNls public static final String CRITICAL_PATH = "Report the critical path of the build, also as JSON.";
+    @NonNls public static final String TRACE = "Write a trace of the build to a file, in Chrome trace format.";
+    @NonNls public static final String LISTENER = "Add a listener of the build events (A BuildListener class).";
+    @NonNls public static final String JFR = "Record Java Flight Recorder events of the build (Java 11 or later).";
+    @NonNls public static final String JFR_NOT_AVAILABLE =
+        "Java Flight Recorder events are not available, they need the 'apb-jfr' module and Java 11 or later.\n";
+    @NonNls public static final String SHARD = "Run only a shard of the test suites, like 2/4 for the 2nd of 4.";
+    @NonNls public static final String TIMINGS =
+        "Keep the times of the test suites in a directory shared by all the shards, to balance them.";
+    @NonNls public static final String DAEMON = "Run as a build daemon for the current directory.";
     @NonNls public static final String COLON_SEPARATED_PATTERNS = "<pattern:pattern..>";
     @NonNls public static final String SET_TO_INCLUDE =
         "Set of test files to include.";
@@ -26,19 +26,24 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import apb.compiler.ClassArchive;
+
 import apb.metadata.CompileInfo;
 import apb.metadata.Dependency;
 import apb.metadata.JavadocInfo;
 import apb.metadata.LocalLibrary;
 import apb.metadata.Module;
 import apb.metadata.PackageInfo;
+import apb.metadata.PackageType;
 import apb.metadata.ProjectElement;
 import apb.metadata.ResourcesInfo;
 import apb.metadata.TestModule;
 
+import apb.utils.BuildState;
 import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Sep 15, 2008
@@ -50,13 +55,24 @@ public class ModuleHelper
 {
     //~ Instance fields ......................................................................................
 
-    private List<Dependency>   dependencies;
-    private List<ModuleHelper> directDependencies;
-    private File               generatedSource;
-    private File               moduledir;
-    private File               output;
-    private File               packageDir;
-    private File               source;
+    /**
+     * The classes compiled in this build waiting to be written into the package (See {@link #compilesToPackage})
+     */
+    @Nullable private ClassArchive classArchive;
+    private List<Dependency>       dependencies;
+    private List<ModuleHelper>     directDependencies;
+    private File                   generatedSource;
+
+    /**
+     * Whether other modules of the build depend on this one
+     */
+    private boolean                hasDependents;
+    private File                   moduledir;
+    private File                   output;
+    private File                   packageDir;
+    private File                   source;
+    private File                   stateDir;
+    private List<TestModule>       testModules;
 
     //~ Constructors .........................................................................................
 
@@ -64,6 +80,7 @@ public class ModuleHelper
     {
         super(module, env);
         dependencies = module.dependencies();
+        testModules = module.tests();
     }
 
     //~ Methods ..............................................................................................
@@ -92,11 +109,65 @@ public class ModuleHelper
         return source;
     }
 
+    /**
+     * Return the directory where the state of the build is kept
+     * @return The state directory
+     */
+    public File getStateDir()
+    {
+        return stateDir;
+    }
+
+    /**
+     * Return the file where the ABI of the classes of the module is published after compiling it
+     * @return The ABI file
+     */
+    public File getAbiFile()
+    {
+        return new File(stateDir, ABI_FILE);
+    }
+
+    /**
+     * Return the state of the files used by a task in this module
+     * @param scope The name that identifies the files (i.e. the task)
+     * @return The state, to be saved after recording the files used
+     */
+    @NotNull public BuildState getBuildState(@NotNull String scope)
+    {
+        return BuildState.load(new File(stateDir, scope + STATE_EXT));
+    }
+
     public File getPackageFile()
     {
         return new File(packageDir, getPackageName() + getPackageInfo().type.getExt());
     }
 
+    /**
+     * Whether the classes of the module are compiled straight into its package
+     * (See {@link CompileInfo#toPackage}).
+     * Modules with tests, without package, including other modules in it or used by other modules of the build
+     * always use the output directory, as the modules depending on it compile against it.
+     */
+    public boolean compilesToPackage()
+    {
+        final PackageInfo packageInfo = getPackageInfo();
+        return getCompileInfo().toPackage && packageInfo.type != PackageType.NONE &&
+               packageInfo.includeDependencies().isEmpty() && testModules.isEmpty() && !hasDependents;
+    }
+
+    /**
+     * Return the classes compiled in this build waiting to be written into the package, or null if none
+     */
+    @Nullable public ClassArchive getClassArchive()
+    {
+        return classArchive;
+    }
+
+    public void setClassArchive(@Nullable ClassArchive classArchive)
+    {
+        this.classArchive = classArchive;
+    }
+
     public File getSourcePackageFile()
     {
         return new File(packageDir, getPackageName() + SRC_JAR);
@@ -232,13 +303,30 @@ public class ModuleHelper
         return trimDashes(getModule().pkg.name);
     }
 
+    /**
+     * Return the helpers of the test modules of this module
+     * @return The test module helpers
+     */
+    List<ModuleHelper> getTestHelpers()
+    {
+        List<ModuleHelper> result = new ArrayList<ModuleHelper>();
+
+        for (TestModule testModule : testModules) {
+            result.add((ModuleHelper) env.getHelper(testModule));
+        }
+
+        return result;
+    }
+
     protected List<ModuleHelper> addChildren()
     {
         directDependencies = new ArrayList<ModuleHelper>();
 
         for (Dependency dependency : dependencies) {
             if (dependency instanceof Module) {
-                directDependencies.add((ModuleHelper) env.getHelper((Module) dependency));
+                final ModuleHelper helper = (ModuleHelper) env.getHelper((Module) dependency);
+                helper.hasDependents = true;
+                directDependencies.add(helper);
             }
         }
 
@@ -254,6 +342,7 @@ public class ModuleHelper
         output = env.fileFromBase(module.output);
         source = env.fileFromBase(module.source);
         generatedSource = env.fileFromBase(module.generatedSource);
+        stateDir = env.fileFromBase(module.state);
 
         try {
             packageDir = env.fileFromBase(module.pkg.dir).getCanonicalFile();
@@ -277,4 +366,7 @@ public class ModuleHelper
     //~ Static fields/initializers ...........................................................................
 
     public static final String SRC_JAR = "-src.jar";
+
+    private static final String ABI_FILE = "abi";
+    private static final String STATE_EXT = ".state";
 }
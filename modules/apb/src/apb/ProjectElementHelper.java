@@ -19,6 +19,7 @@
 package apb;
 
 import java.io.File;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +30,10 @@ import apb.metadata.Project;
 import apb.metadata.ProjectElement;
 import apb.metadata.TestModule;
 
+import apb.tasks.JavacBatch;
+import apb.tasks.JavacTask;
+
+import apb.utils.BuildTrace;
 import apb.utils.IdentitySet;
 
 import org.jetbrains.annotations.NotNull;
@@ -46,7 +51,12 @@ public abstract class ProjectElementHelper
     public Environment env;
 
     private final List<ProjectElementHelper> allElements;
-    @Nullable private ProjectElement         element;
+
+    /**
+     * The elements this one directly depends on
+     */
+    private List<? extends ProjectElementHelper> children;
+    @Nullable private ProjectElement             element;
     private Set<String>                      executedCommands;
 
     @NotNull private final ProjectElement proto;
@@ -59,6 +69,7 @@ public abstract class ProjectElementHelper
         proto = element;
         env = environment;
         allElements = new ArrayList<ProjectElementHelper>();
+        children = new ArrayList<ProjectElementHelper>();
         executedCommands = new HashSet<String>();
     }
 
@@ -154,15 +165,91 @@ public abstract class ProjectElementHelper
         return getElement().jdk;
     }
 
+    /**
+     * Execute the command over this element and all the elements it depends on.
+     * If this is the top level element and more than one job has been requested,
+     * independent elements are executed concurrently.
+     * @param commandName The command to execute
+     */
     public void build(String commandName)
     {
-        for (ProjectElementHelper h : getAllElements()) {
-            env.logVerbose("About to execute %s.%s\n", h.getName(), commandName);
+        if (isTopLevel() && env.isBatchCompile()) {
+            compileBatch(commandName);
+        }
+
+        if (isTopLevel() && env.getJobs() > 1) {
+            new BuildScheduler(this, env.getJobs()).run(commandName);
+        }
+        else {
+            for (ProjectElementHelper h : getAllElements()) {
+                build(h, commandName);
+            }
+        }
+    }
+
+    /**
+     * Compile in advance together the modules that the command compiles (See {@link JavacBatch}).
+     * Their compile command is then not executed again.
+     */
+    private void compileBatch(String commandName)
+    {
+        JavacBatch batch = new JavacBatch(env);
+
+        for (ProjectElementHelper h : allElements) {
+            if (h instanceof ModuleHelper && h.compilesFirst(commandName)) {
+                env.activate(h.proto);
 
-            if (!h.execute(commandName) && h == this) {
-                env.handle("Invalid command: " + commandName);
+                try {
+                    batch.add((ModuleHelper) h, JavacTask.forModule(env));
+                }
+                finally {
+                    env.deactivate();
+                }
             }
         }
+
+        for (ProjectElementHelper module : batch.compile()) {
+            module.markExecuted(COMPILE_COMMAND);
+        }
+    }
+
+    /**
+     * Whether executing the command over this element executes the standard compile command first
+     * (Only the standard resources command can be executed before it), so it can be compiled in advance
+     */
+    private boolean compilesFirst(String commandName)
+    {
+        final Command command = Command.findCommand(proto, commandName);
+
+        if (command != null && notExecuted(COMPILE_COMMAND)) {
+            for (Command cmd : command.getAllCommands()) {
+                final boolean standard = isStandard(cmd);
+
+                if (cmd.getName().equals(COMPILE_COMMAND)) {
+                    return standard;
+                }
+
+                if (!cmd.getName().equals(RESOURCES_COMMAND) || !standard) {
+                    return false;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the command is implemented by the standard {@link Module} method
+     */
+    private boolean isStandard(Command command)
+    {
+        try {
+            final Method method = proto.getClass().getMethod(command.getMethod().getName(), Environment.class);
+            return method.getDeclaringClass() == Module.class;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
     public long lastModified()
@@ -170,6 +257,15 @@ public abstract class ProjectElementHelper
         return env.sourceLastModified(getElement().getClass());
     }
 
+    /**
+     * Return the file with the definition of the element
+     * @return The source file or null if unknown
+     */
+    @Nullable public File getSourceFile()
+    {
+        return env.sourceFile(getElement().getClass());
+    }
+
     public Class<? extends ProjectElement> getElementClass()
     {
         return proto.getClass();
@@ -177,6 +273,29 @@ public abstract class ProjectElementHelper
 
     protected abstract List<? extends ProjectElementHelper> addChildren();
 
+    /**
+     * Return the elements this one directly depends on
+     * @return The direct dependencies of this element
+     */
+    List<? extends ProjectElementHelper> getChildren()
+    {
+        return children;
+    }
+
+    /**
+     * Execute the command over one of the elements of this one
+     * @param h The element to execute the command over
+     * @param commandName The command to execute
+     */
+    void build(ProjectElementHelper h, String commandName)
+    {
+        env.logVerbose("About to execute %s.%s\n", h.getName(), commandName);
+
+        if (!h.execute(commandName) && h == this) {
+            env.handle("Invalid command: " + commandName);
+        }
+    }
+
     void activate(@NotNull ProjectElement activatedElement)
     {
         element = activatedElement;
@@ -184,8 +303,10 @@ public abstract class ProjectElementHelper
 
     void initDependencyGraph()
     {
+        children = addChildren();
+
         // Topological Sort elements
-        tsort(allElements, addChildren(), new IdentitySet<ProjectElementHelper>());
+        tsort(allElements, children, new IdentitySet<ProjectElementHelper>());
     }
 
     /**
@@ -197,19 +318,42 @@ public abstract class ProjectElementHelper
     private void tsort(List<ProjectElementHelper> elements, List<? extends ProjectElementHelper> children,
                        IdentitySet<ProjectElementHelper> visited)
     {
-        for (int i = children.size() - 1; i >= 0; i--) {
-            ProjectElementHelper dependency = children.get(i);
-
+        for (ProjectElementHelper dependency : children) {
             if (!visited.contains(dependency)) {
                 visited.add(dependency);
-                dependency.tsort(elements, children, visited);
+                dependency.tsort(elements, dependency.children, visited);
             }
         }
 
         elements.add(this);
     }
 
+    /**
+     * Execute the command over this element, measuring the time spent for the critical path analysis
+     */
     private boolean execute(String commandName)
+    {
+        final CriticalPath criticalPath = env.getCriticalPath();
+
+        if (criticalPath == null) {
+            return executeCommand(commandName);
+        }
+
+        final long start = criticalPath.enter();
+
+        try {
+            return executeCommand(commandName);
+        }
+        finally {
+            criticalPath.exit(this, start);
+        }
+    }
+
+    /**
+     * Execute the command over this element.
+     * It is synchronized so that concurrent builds sharing this element execute each command only once.
+     */
+    private synchronized boolean executeCommand(String commandName)
     {
         boolean result = true;
 
@@ -220,15 +364,22 @@ public abstract class ProjectElementHelper
                 result = false;
             }
             else {
-                ProjectElement projectElement = env.activate(proto);
-
-                for (Command cmd : command.getAllCommands()) {
-                    if (notExecuted(cmd.getName())) {
-                        env.setCurrentCommand(cmd);
-                        markExecuted(cmd.getName());
-                        cmd.invoke(projectElement, env);
+                ProjectElement  projectElement = env.activate(proto);
+                BuildTrace.Span span =
+                    env.startSpan(getName() + "." + commandName, "element").arg("command", commandName);
+
+                try {
+                    for (Command cmd : command.getAllCommands()) {
+                        if (notExecuted(cmd.getName())) {
+                            env.setCurrentCommand(cmd);
+                            markExecuted(cmd.getName());
+                            cmd.invoke(projectElement, env);
+                        }
                     }
                 }
+                finally {
+                    span.end();
+                }
 
                 env.setCurrentCommand(null);
                 env.deactivate();
@@ -247,4 +398,9 @@ public abstract class ProjectElementHelper
     {
         return !executedCommands.contains(commandName);
     }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String COMPILE_COMMAND = "compile";
+    private static final String RESOURCES_COMMAND = "resources";
 }
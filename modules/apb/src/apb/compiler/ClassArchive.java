@@ -0,0 +1,182 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The classes generated by a compilation kept in memory, to be written straight into a jar
+ * instead of to the output directory. (See {@link apb.metadata.CompileInfo#toPackage})
+ */
+public class ClassArchive
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The content of the classes, by their entry name (i.e. "apb/Main.class")
+     */
+    @NotNull private final Map<String, byte[]> classes;
+
+    //~ Constructors .........................................................................................
+
+    public ClassArchive()
+    {
+        classes = new TreeMap<String, byte[]>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Load the classes from the entries of a jar
+     * @param jar The jar to read the classes from
+     * @return The classes in the jar
+     * @throws IOException If the jar cannot be read
+     */
+    @NotNull public static ClassArchive read(@NotNull File jar)
+        throws IOException
+    {
+        ClassArchive result = new ClassArchive();
+        JarFile      jarFile = new JarFile(jar);
+
+        try {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();) {
+                final JarEntry entry = entries.nextElement();
+
+                if (!entry.isDirectory() && entry.getName().endsWith(CLASS_EXT)) {
+                    DataInputStream is = new DataInputStream(jarFile.getInputStream(entry));
+
+                    try {
+                        byte[] content = new byte[(int) entry.getSize()];
+                        is.readFully(content);
+                        result.put(entry.getName(), content);
+                    }
+                    finally {
+                        is.close();
+                    }
+                }
+            }
+        }
+        finally {
+            jarFile.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the content of the classes, by their entry name
+     */
+    @NotNull public synchronized Map<String, byte[]> getClasses()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, byte[]>(classes));
+    }
+
+    /**
+     * Return the content of a class, or null if it is not in the archive
+     * @param entryName The name of the class entry, like "apb/Main.class"
+     */
+    @Nullable public synchronized byte[] get(@NotNull String entryName)
+    {
+        return classes.get(entryName);
+    }
+
+    /**
+     * Return the number of classes in the archive
+     */
+    public synchronized int size()
+    {
+        return classes.size();
+    }
+
+    /**
+     * Return the total size of the classes
+     */
+    public synchronized long bytes()
+    {
+        long result = 0;
+
+        for (byte[] content : classes.values()) {
+            result += content.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the object the compiler writes a class to, adding it to the archive when closed
+     * @param className The binary name of the class
+     */
+    @NotNull JavaFileObject newOutput(@NotNull String className)
+    {
+        return new Output(className.replace('.', '/') + CLASS_EXT);
+    }
+
+    private synchronized void put(String entryName, byte[] content)
+    {
+        classes.put(entryName, content);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String CLASS_EXT = JavaFileObject.Kind.CLASS.extension;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A class file kept in memory
+     */
+    private class Output
+        extends SimpleJavaFileObject
+    {
+        @NotNull private final String entryName;
+
+        Output(@NotNull String entryName)
+        {
+            super(URI.create("archive:///" + entryName), Kind.CLASS);
+            this.entryName = entryName;
+        }
+
+        @Override public OutputStream openOutputStream()
+        {
+            return new ByteArrayOutputStream() {
+                    @Override public void close()
+                    {
+                        put(entryName, toByteArray());
+                    }
+                };
+        }
+    }
+}
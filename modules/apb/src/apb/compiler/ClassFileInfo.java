@@ -0,0 +1,509 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import apb.utils.FileUtils;
+import apb.utils.StringUtils;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The information of a class file needed for incremental compilation:
+ * <ul>
+ * <li>The classes it references, extracted from the constant pool, the descriptors, the signatures and
+ *     the annotations.
+ * <li>An hash of its ABI (Application Binary Interface): the class header and the signatures of
+ *     its non private members. If it does not change, classes using it need not be recompiled.
+ * <li>An hash of the values of its non private constants. The compiler inlines them, so
+ *     the classes using them cannot be found from the constant pool.
+ * </ul>
+ */
+public class ClassFileInfo
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final String       abiHash;
+    @NotNull private final String       constantsHash;
+    @NotNull private final String       name;
+    @NotNull private final Set<String>  references;
+    @NotNull private final List<String> supertypes;
+
+    //~ Constructors .........................................................................................
+
+    private ClassFileInfo(@NotNull String name, @NotNull List<String> supertypes, @NotNull Set<String> references,
+                          @NotNull String abiHash, @NotNull String constantsHash)
+    {
+        this.name = name;
+        this.supertypes = supertypes;
+        this.references = references;
+        this.abiHash = abiHash;
+        this.constantsHash = constantsHash;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Read the class file
+     * @param file The class file
+     * @return The info for the class
+     * @throws IOException If the file cannot be read or it is not a valid class file
+     */
+    @NotNull public static ClassFileInfo read(@NotNull File file)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            return new Parser(in).parse();
+        }
+        finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * The name of the class (i.e. <code>a.b.Outer$Inner</code>)
+     */
+    @NotNull public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * The names of the classes referenced by this one (Excluding the ones in the java and javax packages)
+     */
+    @NotNull public Set<String> getReferences()
+    {
+        return references;
+    }
+
+    /**
+     * The names of the superclass and the interfaces implemented by this one
+     */
+    @NotNull public List<String> getSupertypes()
+    {
+        return supertypes;
+    }
+
+    /**
+     * An hash of the ABI of the class, not including the members it inherits
+     */
+    @NotNull public String getAbiHash()
+    {
+        return abiHash;
+    }
+
+    @NotNull public String getConstantsHash()
+    {
+        return constantsHash;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A single use class file parser
+     */
+    private static class Parser
+    {
+        private Object[]              constants;
+
+        /**
+         * The Utf8 constants that are descriptors (From NameAndType and MethodType constants)
+         */
+        private final List<Integer>   descriptors;
+        private final DataInputStream in;
+        private final Set<String>     references;
+
+        Parser(DataInputStream in)
+        {
+            this.in = in;
+            references = new TreeSet<String>();
+            descriptors = new ArrayList<Integer>();
+        }
+
+        ClassFileInfo parse()
+            throws IOException
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a class file");
+            }
+
+            in.readUnsignedShort();  // minor
+            in.readUnsignedShort();  // major
+
+            readConstantPool();
+
+            final int access = in.readUnsignedShort() & ~ACC_SUPER;
+            String    className = className(in.readUnsignedShort());
+            int       superIndex = in.readUnsignedShort();
+
+            List<String> abi = new ArrayList<String>();
+            abi.add("class " + access + " " + className + " " + (superIndex == 0 ? "" : className(superIndex)));
+
+            List<String> interfaces = new ArrayList<String>();
+
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                interfaces.add(className(in.readUnsignedShort()));
+            }
+
+            Collections.sort(interfaces);
+            abi.add("implements " + interfaces);
+
+            List<String> supertypes = new ArrayList<String>();
+
+            if (superIndex != 0) {
+                supertypes.add(className(superIndex));
+            }
+
+            supertypes.addAll(interfaces);
+
+            List<String> constantValues = new ArrayList<String>();
+            List<String> members = new ArrayList<String>();
+            readMembers("field", members, constantValues);
+            readMembers("method", members, constantValues);
+            Collections.sort(members);
+            abi.addAll(members);
+            abi.add(readAttributes(null));
+
+            Collections.sort(constantValues);
+
+            references.remove(className);
+            return new ClassFileInfo(className, supertypes, references, hash(abi), hash(constantValues));
+        }
+
+        private void readConstantPool()
+            throws IOException
+        {
+            final int count = in.readUnsignedShort();
+            constants = new Object[count];
+
+            List<Ref> classes = new ArrayList<Ref>();
+
+            for (int i = 1; i < count; i++) {
+                final int tag = in.readUnsignedByte();
+
+                switch (tag) {
+                case UTF8:
+                    constants[i] = in.readUTF();
+                    break;
+                case INTEGER:
+                    constants[i] = in.readInt();
+                    break;
+                case FLOAT:
+                    constants[i] = in.readFloat();
+                    break;
+                case LONG:
+                    constants[i++] = in.readLong();
+                    break;
+                case DOUBLE:
+                    constants[i++] = in.readDouble();
+                    break;
+                case CLASS:
+                    final Ref ref = new Ref(in.readUnsignedShort());
+                    classes.add(ref);
+                    constants[i] = ref;
+                    break;
+                case STRING:
+                    constants[i] = new Ref(in.readUnsignedShort());
+                    break;
+                case METHOD_HANDLE:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case NAME_AND_TYPE:
+                    in.readUnsignedShort();
+                    descriptors.add(in.readUnsignedShort());
+                    break;
+                case METHOD_TYPE:
+                    descriptors.add(in.readUnsignedShort());
+                    break;
+                case MODULE:
+                case PACKAGE:
+                    in.readUnsignedShort();
+                    break;
+                default:
+
+                    // Field, Method & InterfaceMethod refs, Dynamic & InvokeDynamic
+                    if (tag < 9 || tag > 18 || tag == 13 || tag == 14) {
+                        throw new IOException("Invalid constant pool tag: " + tag);
+                    }
+
+                    in.readUnsignedShort();
+                    in.readUnsignedShort();
+                }
+            }
+
+            // Referenced classes
+            for (Ref ref : classes) {
+                addReferences(utf8(ref.index));
+            }
+
+            // Referenced types in descriptors (The other Utf8 constants are names or string literals)
+            for (int index : descriptors) {
+                addDescriptorReferences(utf8(index));
+            }
+        }
+
+        private void readMembers(String kind, List<String> members, List<String> constantValues)
+            throws IOException
+        {
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                final int     access = in.readUnsignedShort();
+                final String  memberName = utf8(in.readUnsignedShort());
+                final String  descriptor = utf8(in.readUnsignedShort());
+                addDescriptorReferences(descriptor);
+                StringBuilder constant = new StringBuilder();
+                final String  attributes = readAttributes(constant);
+
+                if ((access & ACC_PRIVATE) == 0) {
+                    members.add(kind + " " + access + " " + memberName + " " + descriptor + " " + attributes);
+
+                    if (constant.length() > 0) {
+                        constantValues.add(memberName + "=" + constant);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read the attributes, returning the part of them that belongs to the ABI
+         * (Generic signatures & declared exceptions), and adding the types in the signatures and annotations
+         * @param constant Where to store the constant value if any
+         */
+        private String readAttributes(StringBuilder constant)
+            throws IOException
+        {
+            StringBuilder result = new StringBuilder();
+
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                final String attribute = utf8(in.readUnsignedShort());
+                final int    length = in.readInt();
+
+                if ("ConstantValue".equals(attribute) && constant != null) {
+                    Object value = constants[in.readUnsignedShort()];
+                    constant.append(value instanceof Ref ? "\"" + utf8(((Ref) value).index) + "\""
+                                                               : String.valueOf(value));
+                }
+                else if ("Signature".equals(attribute)) {
+                    final String signature = utf8(in.readUnsignedShort());
+                    addDescriptorReferences(signature);
+                    result.append(" signature ").append(signature);
+                }
+                else if ("Exceptions".equals(attribute)) {
+                    result.append(" throws");
+
+                    for (int e = in.readUnsignedShort(); e > 0; e--) {
+                        result.append(' ').append(className(in.readUnsignedShort()));
+                    }
+                }
+                else if ("RuntimeVisibleParameterAnnotations".equals(attribute) ||
+                        "RuntimeInvisibleParameterAnnotations".equals(attribute)) {
+                    for (int p = in.readUnsignedByte(); p > 0; p--) {
+                        readAnnotations();
+                    }
+                }
+                else if ("RuntimeVisibleAnnotations".equals(attribute) ||
+                        "RuntimeInvisibleAnnotations".equals(attribute)) {
+                    readAnnotations();
+                }
+                else if ("AnnotationDefault".equals(attribute)) {
+                    readElementValue();
+                }
+                else {
+                    in.readFully(new byte[length]);
+                }
+            }
+
+            return result.toString();
+        }
+
+        private void readAnnotations()
+            throws IOException
+        {
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                readAnnotation();
+            }
+        }
+
+        /**
+         * Read an annotation, adding its type and the types in its values
+         */
+        private void readAnnotation()
+            throws IOException
+        {
+            addDescriptorReferences(utf8(in.readUnsignedShort()));
+
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                in.readUnsignedShort();  // name
+                readElementValue();
+            }
+        }
+
+        private void readElementValue()
+            throws IOException
+        {
+            final int tag = in.readUnsignedByte();
+
+            switch (tag) {
+            case 'e':
+
+                // Enum type & constant name
+                addDescriptorReferences(utf8(in.readUnsignedShort()));
+                in.readUnsignedShort();
+                break;
+            case 'c':
+                addDescriptorReferences(utf8(in.readUnsignedShort()));
+                break;
+            case '@':
+                readAnnotation();
+                break;
+            case '[':
+                for (int n = in.readUnsignedShort(); n > 0; n--) {
+                    readElementValue();
+                }
+
+                break;
+            default:
+
+                // A constant
+                in.readUnsignedShort();
+            }
+        }
+
+        private String utf8(int index)
+        {
+            return (String) constants[index];
+        }
+
+        private String className(int index)
+        {
+            return utf8(((Ref) constants[index]).index).replace('/', '.');
+        }
+
+        /**
+         * Add a name from a CONSTANT_Class entry. (It may be an array descriptor)
+         */
+        private void addReferences(String internalName)
+        {
+            if (internalName.startsWith("[")) {
+                addDescriptorReferences(internalName);
+            }
+            else {
+                addReference(internalName);
+            }
+        }
+
+        /**
+         * Add all the class names in a descriptor or signature like: <code>(ILa/b/C;)[La/b/D&lt;TT;&gt;;</code>
+         */
+        private void addDescriptorReferences(String descriptor)
+        {
+            int start = descriptor.indexOf('L');
+
+            while (start != -1) {
+                int end = start + 1;
+
+                while (end < descriptor.length() && isNameChar(descriptor.charAt(end))) {
+                    end++;
+                }
+
+                if (end < descriptor.length() && end > start + 1 &&
+                        (descriptor.charAt(end) == ';' || descriptor.charAt(end) == '<')) {
+                    addReference(descriptor.substring(start + 1, end));
+                }
+
+                start = descriptor.indexOf('L', end);
+            }
+        }
+
+        private void addReference(String internalName)
+        {
+            if (!internalName.startsWith("java/") && !internalName.startsWith("javax/")) {
+                references.add(internalName.replace('/', '.'));
+            }
+        }
+
+        private static boolean isNameChar(char chr)
+        {
+            return Character.isJavaIdentifierPart(chr) || chr == '/';
+        }
+
+        private static String hash(List<String> lines)
+        {
+            MessageDigest digest = StringUtils.md5Digest();
+
+            for (String line : lines) {
+                for (int i = 0; i < line.length(); i++) {
+                    final char c = line.charAt(i);
+                    digest.update((byte) (c >> 8));
+                    digest.update((byte) c);
+                }
+
+                digest.update((byte) '\n');
+            }
+
+            return StringUtils.toHex(digest.digest());
+        }
+    }
+
+    /**
+     * A reference to an Utf8 constant (From a Class or String constant)
+     */
+    private static class Ref
+    {
+        private final int index;
+
+        Ref(int index)
+        {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The jars of the class path indexed by the file managers of the {@link CompilerService}.
+ * For each jar it keeps its size and modification time when it was indexed, so the file managers
+ * holding an index of a jar modified since then are discarded, and the time it took to index it,
+ * that is saved each time a file manager that already indexed the jar is reused.
+ */
+public class ClassPathIndex
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Map<File, Entry> entries;
+
+    /**
+     * The time it took to index the classes of the jdk
+     */
+    private long platformMillis;
+
+    //~ Constructors .........................................................................................
+
+    ClassPathIndex()
+    {
+        entries = new HashMap<File, Entry>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Record that a jar has been indexed
+     * @param jar The jar
+     * @param millis The time it took to index it
+     * @return The entry for the jar as it is now
+     */
+    @NotNull synchronized Entry record(@NotNull File jar, long millis)
+    {
+        final Entry result = new Entry(jar, millis);
+        entries.put(jar, result);
+        return result;
+    }
+
+    /**
+     * Return the last entry recorded for a jar, or null if it has not been indexed
+     */
+    @Nullable synchronized Entry get(@NotNull File jar)
+    {
+        return entries.get(jar);
+    }
+
+    synchronized long getPlatformMillis()
+    {
+        return platformMillis;
+    }
+
+    synchronized void setPlatformMillis(long millis)
+    {
+        platformMillis = millis;
+    }
+
+    /**
+     * Return the number of jars indexed
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The state of a jar when it was indexed
+     */
+    static class Entry
+    {
+        @NotNull private final File jar;
+        private final long          lastModified;
+        private final long          length;
+        final long                  millis;
+
+        private Entry(@NotNull File jar, long millis)
+        {
+            this.jar = jar;
+            this.millis = millis;
+            lastModified = jar.lastModified();
+            length = jar.length();
+        }
+
+        /**
+         * Whether the jar has not been modified since it was indexed
+         */
+        boolean isCurrent()
+        {
+            return jar.lastModified() == lastModified && jar.length() == length;
+        }
+    }
+}
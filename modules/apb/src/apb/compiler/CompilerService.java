@@ -0,0 +1,434 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A pool of compiler contexts, the system compiler and a file manager, shared by all the compilations
+ * in the virtual machine (The modules of a build and, with the daemon, every build).
+ * A file manager keeps the jdk and the jars it opens indexed, so a context reused for a module
+ * does not index again the jars it shares with the modules previously compiled with it.
+ * Contexts are never used by two compilations at the same time, and the ones that indexed a jar modified
+ * since then are discarded (See {@link ClassPathIndex}).
+ */
+public class CompilerService
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final JavaCompiler        compiler;
+
+    /**
+     * What to do with each compilation task before calling it (null for nothing)
+     */
+    @Nullable private volatile TaskHook        hook;
+    @NotNull private final LinkedList<Context> idle;
+    @NotNull private final ClassPathIndex      index;
+
+    /**
+     * The classes in each package of the jdk listed so far (See {@link #isPlatformClass})
+     */
+    @NotNull private final Map<String, Set<String>> platformClasses;
+
+    /**
+     * The file manager to list the classes of the jdk, created the first time it is needed
+     */
+    @Nullable private StandardJavaFileManager platformFileManager;
+
+    //~ Constructors .........................................................................................
+
+    private CompilerService()
+    {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        index = new ClassPathIndex();
+        idle = new LinkedList<Context>();
+        platformClasses = new HashMap<String, Set<String>>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Return the service shared by all the compilations
+     */
+    @NotNull public static synchronized CompilerService getInstance()
+    {
+        if (instance == null) {
+            instance = new CompilerService();
+        }
+
+        return instance;
+    }
+
+    @NotNull public JavaCompiler getCompiler()
+    {
+        return compiler;
+    }
+
+    @NotNull public ClassPathIndex getIndex()
+    {
+        return index;
+    }
+
+    @Nullable public TaskHook getHook()
+    {
+        return hook;
+    }
+
+    /**
+     * Set what to do with each compilation task before calling it
+     * @param hook The hook, or null for nothing
+     */
+    public void setHook(@Nullable TaskHook hook)
+    {
+        this.hook = hook;
+    }
+
+    /**
+     * Whether the class is one of the jdk, found in the platform class path of the compiler
+     * @param className The name of the class (i.e. <code>org.w3c.dom.Document</code>)
+     */
+    public synchronized boolean isPlatformClass(@NotNull String className)
+        throws IOException
+    {
+        final int    dot = className.lastIndexOf('.');
+        final String pkg = dot == -1 ? "" : className.substring(0, dot);
+        Set<String>  classes = platformClasses.get(pkg);
+
+        if (classes == null) {
+            if (platformFileManager == null) {
+                platformFileManager = compiler.getStandardFileManager(null, null, null);
+            }
+
+            classes = new HashSet<String>();
+
+            for (JavaFileObject file : platformFileManager.list(StandardLocation.PLATFORM_CLASS_PATH, pkg,
+                                                                 CLASS_KIND, false)) {
+                classes.add(platformFileManager.inferBinaryName(StandardLocation.PLATFORM_CLASS_PATH, file));
+            }
+
+            platformClasses.put(pkg, classes);
+        }
+
+        return classes.contains(className);
+    }
+
+    /**
+     * Get a context to compile with the specified class path, that must be released after the compilation.
+     * It is the idle context used with the same options that indexed more jars of the class path,
+     * or a new one if there is none. (Options like the encoding or the target release are kept
+     * by the file manager, so it is not shared by compilations with different options)
+     * The jdk and the jars of the class path not indexed by the context yet are indexed before returning it.
+     * @param classPath The class path of the compilation
+     * @param options The options of the compilation, other than the class path and the directories
+     * @return The context
+     */
+    @NotNull public Context borrow(@NotNull List<File> classPath, @NotNull List<String> options)
+    {
+        Context result = null;
+
+        synchronized (this) {
+            int shared = -1;
+
+            for (Iterator<Context> it = idle.iterator(); it.hasNext();) {
+                final Context context = it.next();
+
+                if (!context.isCurrent()) {
+                    it.remove();
+                    context.close();
+                }
+                else if (context.options.equals(options) && context.sharedJars(classPath) > shared) {
+                    result = context;
+                    shared = context.sharedJars(classPath);
+                }
+            }
+
+            idle.remove(result);
+        }
+
+        if (result == null) {
+            result = new Context(compiler.getStandardFileManager(null, null, null), options);
+        }
+
+        result.prepare(classPath);
+        return result;
+    }
+
+    /**
+     * Return a context to the pool, once the compilation is done
+     */
+    public void release(@NotNull Context context)
+    {
+        synchronized (this) {
+            if (idle.size() < MAX_IDLE) {
+                idle.addFirst(context);
+                return;
+            }
+        }
+
+        context.close();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static CompilerService instance;
+
+    private static final EnumSet<JavaFileObject.Kind> CLASS_KIND = EnumSet.of(JavaFileObject.Kind.CLASS);
+
+    /**
+     * The maximum number of idle contexts kept
+     */
+    private static final int MAX_IDLE =
+        Integer.getInteger("apb.javac.contexts", Runtime.getRuntime().availableProcessors());
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * Something to do with each compilation task before calling it, like adding a listener of the phases
+     * of the compiler (Casting the task to the API of the system compiler).
+     */
+    public interface TaskHook
+    {
+        /**
+         * Called in the thread that is about to call the task
+         * @param task The compilation task
+         */
+        void prepare(@NotNull JavaCompiler.CompilationTask task);
+    }
+
+    /**
+     * A file manager with the jars it already indexed
+     */
+    public class Context
+    {
+        @NotNull private final StandardJavaFileManager fileManager;
+
+        /**
+         * The jars indexed by the file manager
+         */
+        @NotNull private final Map<File, ClassPathIndex.Entry> jars;
+
+        /**
+         * The options of the compilations the context is used for
+         */
+        @NotNull private final List<String> options;
+
+        /**
+         * Whether the file manager already indexed the jdk
+         */
+        private boolean platformIndexed;
+
+        /**
+         * The time saved in the compilation, indexing jars that were already indexed
+         */
+        private long savedMillis;
+
+        /**
+         * Whether the context was used before
+         */
+        private boolean warm;
+
+        private Context(@NotNull StandardJavaFileManager fileManager, @NotNull List<String> options)
+        {
+            this.fileManager = fileManager;
+            this.options = new ArrayList<String>(options);
+            jars = new HashMap<File, ClassPathIndex.Entry>();
+        }
+
+        @NotNull public StandardJavaFileManager getFileManager()
+        {
+            return fileManager;
+        }
+
+        /**
+         * Return the time saved in the compilation, by not indexing the jdk and the jars of the class path
+         * already indexed by the file manager
+         */
+        public long getSavedMillis()
+        {
+            return savedMillis;
+        }
+
+        /**
+         * Whether the context was used by a previous compilation
+         */
+        public boolean isWarm()
+        {
+            return warm;
+        }
+
+        /**
+         * Index the jdk and the jars in the class path not already indexed, keeping the time saved
+         */
+        private void prepare(List<File> classPath)
+        {
+            warm = platformIndexed;
+            savedMillis = 0;
+
+            try {
+                if (platformIndexed) {
+                    savedMillis += index.getPlatformMillis();
+                }
+                else {
+                    final long start = System.currentTimeMillis();
+                    fileManager.list(StandardLocation.PLATFORM_CLASS_PATH, "java.lang", CLASS_KIND, false);
+                    index.setPlatformMillis(System.currentTimeMillis() - start);
+                    platformIndexed = true;
+                }
+
+                for (File file : classPath) {
+                    final ClassPathIndex.Entry entry = jars.get(file);
+
+                    if (entry != null) {
+                        savedMillis += entry.millis;
+                    }
+                    else if (file.isFile()) {
+                        final long start = System.currentTimeMillis();
+                        fileManager.setLocation(StandardLocation.CLASS_PATH, Collections.singletonList(file));
+                        fileManager.list(StandardLocation.CLASS_PATH, "", CLASS_KIND, false);
+                        jars.put(file, index.record(file, System.currentTimeMillis() - start));
+                    }
+                }
+            }
+            catch (IOException ignore) {
+                // The compiler will report it
+            }
+        }
+
+        /**
+         * Return the number of jars in the class path already indexed
+         */
+        private int sharedJars(List<File> classPath)
+        {
+            int result = 0;
+
+            for (File file : classPath) {
+                if (jars.containsKey(file)) {
+                    result++;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Whether none of the jars indexed has been modified since then
+         */
+        private boolean isCurrent()
+        {
+            for (ClassPathIndex.Entry entry : jars.values()) {
+                if (!entry.isCurrent()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void close()
+        {
+            try {
+                fileManager.close();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * The time spent and saved compiling each module of a build
+     */
+    public static class Metrics
+    {
+        /**
+         * For each module: compilations, warm compilations, time spent and time saved
+         */
+        @NotNull private final Map<String, long[]> modules;
+
+        public Metrics()
+        {
+            modules = new TreeMap<String, long[]>();
+        }
+
+        /**
+         * Record a compilation
+         * @param module The name of the module compiled
+         * @param javac The compiler, after compiling the module
+         */
+        public synchronized void record(@NotNull String module, @NotNull JavaC javac)
+        {
+            long[] n = modules.get(module);
+
+            if (n == null) {
+                n = new long[4];
+                modules.put(module, n);
+            }
+
+            n[0]++;
+            n[1] += javac.isWarm() ? 1 : 0;
+            n[2] += javac.getCompileMillis();
+            n[3] += javac.getSavedMillis();
+        }
+
+        /**
+         * Return a report of the time spent and saved by module
+         */
+        @NotNull public synchronized String report()
+        {
+            StringBuilder result = new StringBuilder("Compiler contexts:\n");
+            long          saved = 0;
+
+            for (Map.Entry<String, long[]> entry : modules.entrySet()) {
+                final long[] n = entry.getValue();
+                result.append(String.format("    %-30s %d compilation%s (%d warm) %6d ms, %6d ms saved\n",
+                                            entry.getKey(), n[0], n[0] == 1 ? "" : "s", n[1], n[2], n[3]));
+                saved += n[3];
+            }
+
+            return result.append(String.format("    Total saved: %d ms\n", saved)).toString();
+        }
+
+        /**
+         * Return true if any compilation was recorded
+         */
+        public synchronized boolean isUsed()
+        {
+            return !modules.isEmpty();
+        }
+    }
+}
@@ -20,12 +20,22 @@ package apb.compiler;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.Nullable;
+
 /**
  * A Default {@link javax.tools.JavaFileManager} that just forward everything to {@link javax.tools.StandardJavaFileManager}
  * Plus add some simple defaults.
@@ -33,11 +43,39 @@ import javax.tools.StandardJavaFileManager;
 public class DefaultJavaFileManager
     extends ForwardingJavaFileManager<StandardJavaFileManager>
 {
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The archive to keep the generated classes in, instead of writing them (null to write them)
+     */
+    @Nullable private ClassArchive archive;
+
+    /**
+     * The classes generated by the compiler, by the source file they were generated from
+     */
+    private final Map<File, List<String>> generatedClasses;
+
+    /**
+     * The directory to write the classes generated from the sources in each source directory
+     * (null to write all of them to the target directory)
+     */
+    @Nullable private Map<File, File> outputDirs;
+
     //~ Constructors .........................................................................................
 
     protected DefaultJavaFileManager(JavaCompiler compiler)
     {
-        super(compiler.getStandardFileManager(null, null, null));
+        this(compiler.getStandardFileManager(null, null, null));
+    }
+
+    /**
+     * Forward to the specified file manager, that can be shared with other compilations
+     * (See {@link CompilerService})
+     */
+    protected DefaultJavaFileManager(StandardJavaFileManager fileManager)
+    {
+        super(fileManager);
+        generatedClasses = new HashMap<File, List<String>>();
     }
 
     //~ Methods ..............................................................................................
@@ -53,6 +91,90 @@ public class DefaultJavaFileManager
         return fileManager.getJavaFileObjectsFromFiles(files);
     }
 
+    /**
+     * Forward the invocation, keeping track of the classes generated from each source file.
+     * If there is an archive the classes are kept in it instead, and if there are output directories
+     * they are written to the one of their source directory.
+     */
+    @Override public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                       JavaFileObject.Kind kind, FileObject sibling)
+        throws IOException
+    {
+        File source = null;
+
+        if (kind == JavaFileObject.Kind.CLASS && sibling != null) {
+            final URI uri = sibling.toUri();
+
+            if ("file".equals(uri.getScheme())) {
+                source = FileUtils.normalize(new File(uri));
+                List<String> classes = generatedClasses.get(source);
+
+                if (classes == null) {
+                    classes = new ArrayList<String>();
+                    generatedClasses.put(source, classes);
+                }
+
+                classes.add(className);
+            }
+        }
+
+        if (archive != null && kind == JavaFileObject.Kind.CLASS) {
+            return archive.newOutput(className);
+        }
+
+        final File outputDir = source == null || outputDirs == null ? null : outputDir(source);
+
+        if (outputDir != null) {
+            final String fileName = className.replace('.', File.separatorChar) + kind.extension;
+            return fileManager.getJavaFileObjects(new File(outputDir, fileName)).iterator().next();
+        }
+
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+
+    /**
+     * Return the classes generated by the compiler, by the source file they were generated from
+     */
+    public Map<File, List<String>> getGeneratedClasses()
+    {
+        return generatedClasses;
+    }
+
+    /**
+     * Keep the generated classes in the specified archive instead of writing them
+     */
+    void setArchive(@Nullable ClassArchive archive)
+    {
+        this.archive = archive;
+    }
+
+    /**
+     * Write the generated classes to the output directory of their source directory,
+     * instead of to the target directory
+     * @param dirs The output directory for each (normalized) source directory
+     */
+    void setOutputDirs(@Nullable Map<File, File> dirs)
+    {
+        outputDirs = dirs;
+    }
+
+    /**
+     * Return the output directory for the classes generated from a source, or null if it is not
+     * in any of the source directories
+     */
+    @Nullable private File outputDir(File source)
+    {
+        final String path = source.getPath();
+
+        for (Map.Entry<File, File> entry : outputDirs.entrySet()) {
+            if (path.startsWith(entry.getKey().getPath() + File.separator)) {
+                return entry.getValue();
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Wrap the IOException from close in a runtime one.
      */
@@ -65,4 +187,17 @@ public class DefaultJavaFileManager
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Wrap the IOException from flush in a runtime one.
+     */
+    @Override public void flush()
+    {
+        try {
+            super.flush();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,237 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import apb.utils.FileUtils;
+import apb.utils.StringUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An on disk cache of the classes compiled from a project definition.
+ * Each entry is keyed by the source file, the source path, the jdk version and the apb version
+ * and contains the bytes of all the classes generated when compiling the source,
+ * together with the MD5 hash of the sources they were compiled from.
+ * An entry is only used if none of these sources has changed.
+ */
+class DefinitionCache
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final File   dir;
+    @NotNull private final String stamp;
+
+    //~ Constructors .........................................................................................
+
+    DefinitionCache(@NotNull File dir)
+    {
+        this.dir = dir;
+        stamp = System.getProperty("java.version") + ":" + apbStamp();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Read the entry for the specified source
+     * @return The entry, or null if there is no entry or any of the sources has changed
+     */
+    @Nullable Entry read(@Nullable File sourcePath, @NotNull File source)
+    {
+        File file = entryFile(sourcePath, source);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+
+            // Check the sources
+            for (int n = in.readInt(); n > 0; n--) {
+                File src = new File(in.readUTF());
+
+                if (!src.exists() || !FileUtils.md5(src).equals(in.readUTF())) {
+                    return null;
+                }
+            }
+
+            Entry result = new Entry(in.readUTF());
+
+            for (int n = in.readInt(); n > 0; n--) {
+                String name = in.readUTF();
+                String src = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                result.add(name, src.isEmpty() ? null : new File(src), bytes);
+            }
+
+            return result;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * Write the entry for the specified source.
+     * Failures are ignored, the definition will just be compiled again.
+     */
+    void write(@Nullable File sourcePath, @NotNull File source, @NotNull Entry entry)
+    {
+        // Hash the sources
+        Map<String, String> hashes = new TreeMap<String, String>();
+
+        try {
+            hashes.put(source.getAbsolutePath(), FileUtils.md5(source));
+
+            for (File src : entry.sources) {
+                if (src != null && !hashes.containsKey(src.getAbsolutePath())) {
+                    hashes.put(src.getAbsolutePath(), FileUtils.md5(src));
+                }
+            }
+        }
+        catch (IOException e) {
+            return;
+        }
+
+        // Write to a temporary file and rename, so concurrent runs never see a partial entry
+        File             file = entryFile(sourcePath, source);
+        File             tmp = new File(file.getPath() + ".tmp" + System.nanoTime());
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(hashes.size());
+
+            for (Map.Entry<String, String> hash : hashes.entrySet()) {
+                out.writeUTF(hash.getKey());
+                out.writeUTF(hash.getValue());
+            }
+
+            out.writeUTF(entry.mainClass);
+            out.writeInt(entry.names.size());
+
+            for (int i = 0; i < entry.names.size(); i++) {
+                final File src = entry.sources.get(i);
+                out.writeUTF(entry.names.get(i));
+                out.writeUTF(src == null ? "" : src.getAbsolutePath());
+                out.writeInt(entry.bytes.get(i).length);
+                out.write(entry.bytes.get(i));
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        }
+        catch (IOException ignore) {}
+        finally {
+            FileUtils.close(out);
+            tmp.delete();
+        }
+    }
+
+    private File entryFile(@Nullable File sourcePath, @NotNull File source)
+    {
+        String key =
+            source.getAbsolutePath() + File.pathSeparator +
+            (sourcePath == null ? "" : sourcePath.getAbsolutePath()) + File.pathSeparator + stamp;
+        return new File(dir, StringUtils.md5(key));
+    }
+
+    /**
+     * An stamp that identifies the apb version, so definitions are recompiled when apb is updated
+     */
+    private static String apbStamp()
+    {
+        CodeSource codeSource = DefinitionCache.class.getProtectionDomain().getCodeSource();
+
+        try {
+            if (codeSource != null && codeSource.getLocation() != null) {
+                final File f = new File(codeSource.getLocation().toURI());
+                return f.getAbsolutePath() + "@" + f.lastModified();
+            }
+        }
+        catch (URISyntaxException ignore) {}
+        catch (IllegalArgumentException ignore) {}
+
+        return "";
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xAB0DEF01;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The classes compiled from a project definition
+     */
+    static class Entry
+    {
+        @NotNull final List<byte[]> bytes;
+        @NotNull final String       mainClass;
+        @NotNull final List<String> names;
+        @NotNull final List<File>   sources;
+
+        Entry(@NotNull String mainClass)
+        {
+            this.mainClass = mainClass;
+            names = new ArrayList<String>();
+            sources = new ArrayList<File>();
+            bytes = new ArrayList<byte[]>();
+        }
+
+        void add(@NotNull String name, @Nullable File source, @NotNull byte[] classBytes)
+        {
+            names.add(name);
+            sources.add(source);
+            bytes.add(classBytes);
+        }
+    }
+}
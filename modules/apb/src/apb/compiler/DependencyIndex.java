@@ -0,0 +1,570 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import apb.utils.BuildState;
+import apb.utils.FileUtils;
+import apb.utils.StringUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The dependency index of a module used for incremental compilation.
+ * It records, for each source, the classes generated from it, and, for each class,
+ * its ABI hash and the classes it references.
+ * <p>
+ * With it, the sources to compile are the modified ones, plus the ones that reference
+ * classes whose ABI changed as a result of the compilation, transitively.
+ * The ABI hash of a class includes the ones of its supertypes, as the classes using it
+ * can also use the members it inherits.
+ * </p>
+ * <p>
+ * It also keeps the ABI of the modules this one depends on, so only the sources referencing
+ * classes whose ABI changed in them need to be compiled again.
+ * </p>
+ */
+public class DependencyIndex
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Map<String, ClassEntry> classes;
+
+    /**
+     * The ABI of the modules this one depends on, as it was when this module was compiled
+     */
+    @NotNull private final Map<String, ModuleAbi> dependencies;
+    @NotNull private final Map<File, SourceEntry> sources;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create an empty index
+     */
+    public DependencyIndex()
+    {
+        sources = new HashMap<File, SourceEntry>();
+        classes = new HashMap<String, ClassEntry>();
+        dependencies = new HashMap<String, ModuleAbi>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Load the index from the specified file
+     * @param file The file containing the index
+     * @return The index or null if the file does not exist or it is not a valid index
+     */
+    @Nullable public static DependencyIndex load(@NotNull File file)
+    {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+
+            DependencyIndex result = new DependencyIndex();
+
+            for (int n = in.readInt(); n > 0; n--) {
+                SourceEntry source = new SourceEntry();
+                result.sources.put(new File(in.readUTF()), source);
+
+                for (int c = in.readInt(); c > 0; c--) {
+                    source.classes.add(in.readUTF());
+                }
+            }
+
+            for (int n = in.readInt(); n > 0; n--) {
+                String     name = in.readUTF();
+                ClassEntry entry = new ClassEntry(new File(in.readUTF()), in.readUTF(), in.readUTF());
+                entry.abiHash = in.readUTF();
+                result.classes.put(name, entry);
+
+                for (int r = in.readInt(); r > 0; r--) {
+                    entry.supertypes.add(in.readUTF());
+                }
+
+                for (int r = in.readInt(); r > 0; r--) {
+                    entry.references.add(in.readUTF());
+                }
+            }
+
+            for (int n = in.readInt(); n > 0; n--) {
+                result.dependencies.put(in.readUTF(), ModuleAbi.read(in));
+            }
+
+            return result;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * Save the index to the specified file
+     * @param file The file to store the index in
+     * @throws IOException if the index cannot be written
+     */
+    public void save(@NotNull File file)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(sources.size());
+
+            for (Map.Entry<File, SourceEntry> entry : sources.entrySet()) {
+                out.writeUTF(entry.getKey().getPath());
+                writeStrings(out, entry.getValue().classes);
+            }
+
+            out.writeInt(classes.size());
+
+            for (Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+                final ClassEntry c = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(c.source.getPath());
+                out.writeUTF(c.ownAbiHash);
+                out.writeUTF(c.constantsHash);
+                out.writeUTF(c.abiHash);
+                writeStrings(out, c.supertypes);
+                writeStrings(out, c.references);
+            }
+
+            out.writeInt(dependencies.size());
+
+            for (Map.Entry<String, ModuleAbi> entry : dependencies.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Return the sources that must be compiled because they are new, they were modified
+     * or any of their class files is missing
+     * @param allSources All the sources of the module
+     * @param targetDir  The directory with the class files
+     * @param state      The state of the sources when they were compiled
+     */
+    @NotNull public List<File> modifiedSources(@NotNull Collection<File> allSources, @NotNull File targetDir,
+                                               @NotNull BuildState state)
+    {
+        List<File> result = new ArrayList<File>();
+
+        for (File source : allSources) {
+            SourceEntry entry = sources.get(FileUtils.normalize(source));
+
+            if (entry == null || state.isModified(source) || !classFilesExist(entry, targetDir)) {
+                result.add(source);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the indexed sources that are not longer in the module
+     * @param allSources All the sources of the module
+     */
+    @NotNull public List<File> removedSources(@NotNull Collection<File> allSources)
+    {
+        Set<File> current = new HashSet<File>();
+
+        for (File source : allSources) {
+            current.add(FileUtils.normalize(source));
+        }
+
+        List<File> result = new ArrayList<File>();
+
+        for (File source : sources.keySet()) {
+            if (!current.contains(source)) {
+                result.add(source);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove a source from the index, deleting the class files generated from it
+     * @param source The source to remove
+     * @param targetDir The directory with the class files
+     * @return The name of the removed classes
+     */
+    @NotNull public Set<String> remove(@NotNull File source, @NotNull File targetDir)
+    {
+        deleteClassFiles(Collections.singleton(source), targetDir);
+        SourceEntry entry = sources.remove(FileUtils.normalize(source));
+
+        if (entry == null) {
+            return Collections.emptySet();
+        }
+
+        for (String className : entry.classes) {
+            classes.remove(className);
+        }
+
+        return new HashSet<String>(entry.classes);
+    }
+
+    /**
+     * Delete the class files generated from the sources, so classes that are no longer
+     * defined in them do not remain in the output.
+     * The index entries are kept to be able to detect ABI changes after the compilation.
+     * @param compiledSources The sources that are about to be compiled
+     * @param targetDir The directory with the class files
+     */
+    public void deleteClassFiles(@NotNull Collection<File> compiledSources, @NotNull File targetDir)
+    {
+        for (File source : compiledSources) {
+            SourceEntry entry = sources.get(FileUtils.normalize(source));
+
+            if (entry != null) {
+                for (String className : entry.classes) {
+                    classFile(targetDir, className).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the class files generated from all the sources in the index
+     * @param targetDir The directory with the class files
+     */
+    public void deleteAllClassFiles(@NotNull File targetDir)
+    {
+        deleteClassFiles(new ArrayList<File>(sources.keySet()), targetDir);
+    }
+
+    /**
+     * Return the names of the classes generated from a source
+     * @param source The source
+     */
+    @NotNull public List<String> getClasses(@NotNull File source)
+    {
+        SourceEntry entry = sources.get(FileUtils.normalize(source));
+        return entry == null ? Collections.<String>emptyList() : entry.classes;
+    }
+
+    /**
+     * Update the index after a compilation
+     * @param compiledSources The sources that were compiled
+     * @param generatedClasses The classes generated by the compiler for each source
+     *                         (It may include sources implicitly compiled)
+     * @param targetDir The directory with the class files
+     * @return The changes in the ABI of the classes
+     * @throws IOException If the generated class files cannot be read
+     */
+    @NotNull public Changes update(@NotNull Collection<File> compiledSources,
+                                   @NotNull Map<File, List<String>> generatedClasses, @NotNull File targetDir)
+        throws IOException
+    {
+        Map<File, List<String>> generated = new HashMap<File, List<String>>();
+
+        for (File source : compiledSources) {
+            generated.put(FileUtils.normalize(source), new ArrayList<String>());
+        }
+
+        for (Map.Entry<File, List<String>> entry : generatedClasses.entrySet()) {
+            generated.put(FileUtils.normalize(entry.getKey()), entry.getValue());
+        }
+
+        Changes result = new Changes();
+
+        // The ABI of all the classes before, as the one of the classes not compiled
+        // changes with the one of their supertypes
+        Map<String, String> previous = new HashMap<String, String>();
+
+        for (Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+            previous.put(entry.getKey(), entry.getValue().abiHash);
+        }
+
+        // First remove classes no longer generated (They may have moved to another source)
+        for (Map.Entry<File, List<String>> entry : generated.entrySet()) {
+            final File  source = entry.getKey();
+            SourceEntry old = sources.put(source, new SourceEntry());
+
+            if (old != null) {
+                for (String className : old.classes) {
+                    if (!entry.getValue().contains(className)) {
+                        classes.remove(className);
+                        result.abiChanged.add(className);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<File, List<String>> entry : generated.entrySet()) {
+            final File source = entry.getKey();
+
+            for (String className : entry.getValue()) {
+                sources.get(source).classes.add(className);
+
+                final ClassFileInfo info = ClassFileInfo.read(classFile(targetDir, className));
+                ClassEntry          newEntry =
+                    new ClassEntry(source, info.getAbiHash(), info.getConstantsHash());
+                newEntry.supertypes.addAll(info.getSupertypes());
+                newEntry.references.addAll(info.getReferences());
+
+                ClassEntry oldEntry = classes.put(className, newEntry);
+
+                if (oldEntry != null && !oldEntry.constantsHash.equals(newEntry.constantsHash)) {
+                    result.constantsChanged = true;
+                }
+            }
+        }
+
+        updateAbiHashes();
+
+        for (Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+            if (!entry.getValue().abiHash.equals(previous.get(entry.getKey()))) {
+                result.abiChanged.add(entry.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the sources that reference any of the specified classes
+     * @param classNames The names of the classes
+     */
+    @NotNull public Set<File> dependents(@NotNull Set<String> classNames)
+    {
+        Set<File> result = new LinkedHashSet<File>();
+
+        if (!classNames.isEmpty()) {
+            for (ClassEntry entry : classes.values()) {
+                if (!result.contains(entry.source) && !Collections.disjoint(entry.references, classNames)) {
+                    result.add(entry.source);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the ABI of the classes of the module
+     */
+    @NotNull public ModuleAbi getAbi()
+    {
+        ModuleAbi result = new ModuleAbi();
+
+        for (Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+            result.add(entry.getKey(), entry.getValue().abiHash, entry.getValue().constantsHash);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the ABI that a dependency had when this module was last compiled
+     * @param dependency The name that identifies the dependency
+     * @return The ABI or null if unknown
+     */
+    @Nullable public ModuleAbi getDependencyAbi(@NotNull String dependency)
+    {
+        return dependencies.get(dependency);
+    }
+
+    /**
+     * Record the ABI of a dependency used to compile this module
+     * @param dependency The name that identifies the dependency
+     * @param abi The ABI of the dependency
+     */
+    public void setDependencyAbi(@NotNull String dependency, @NotNull ModuleAbi abi)
+    {
+        dependencies.put(dependency, abi);
+    }
+
+    /**
+     * Compute the ABI hash of every class, folding in the ones of its supertypes
+     */
+    private void updateAbiHashes()
+    {
+        Map<String, String> hashes = new HashMap<String, String>();
+
+        for (Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+            entry.getValue().abiHash = abiHash(entry.getKey(), hashes);
+        }
+    }
+
+    /**
+     * Return the ABI hash of a class including the ones of its supertypes.
+     * The supertypes from other modules take it from the ABI of the dependencies,
+     * and the ones not found (Like the jdk ones) do not contribute to it.
+     * @param className The name of the class
+     * @param hashes The hashes already computed
+     */
+    @NotNull private String abiHash(@NotNull String className, @NotNull Map<String, String> hashes)
+    {
+        String result = hashes.get(className);
+
+        if (result == null) {
+            final ClassEntry entry = classes.get(className);
+
+            if (entry == null) {
+                result = dependencyAbiHash(className);
+            }
+            else {
+                // Guard against cycles, that a stale index could have
+                hashes.put(className, "");
+                StringBuilder line = new StringBuilder(entry.ownAbiHash);
+
+                for (String supertype : entry.supertypes) {
+                    line.append(' ').append(abiHash(supertype, hashes));
+                }
+
+                result = StringUtils.md5(line.toString());
+            }
+
+            hashes.put(className, result);
+        }
+
+        return result;
+    }
+
+    @NotNull private String dependencyAbiHash(@NotNull String className)
+    {
+        for (ModuleAbi abi : dependencies.values()) {
+            final String hash = abi.getAbiHash(className);
+
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        return "";
+    }
+
+    private static File classFile(File targetDir, String className)
+    {
+        return new File(targetDir, className.replace('.', File.separatorChar) + ".class");
+    }
+
+    private static boolean classFilesExist(SourceEntry entry, File targetDir)
+    {
+        for (String className : entry.classes) {
+            if (!classFile(targetDir, className).exists()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings)
+        throws IOException
+    {
+        out.writeInt(strings.size());
+
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xAB01DE04;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The result of updating the index after a compilation
+     */
+    public static class Changes
+    {
+        /**
+         * The classes whose ABI changed (Including new and removed ones)
+         */
+        @NotNull public final Set<String> abiChanged = new HashSet<String>();
+
+        /**
+         * Whether the value of any constant changed
+         */
+        public boolean constantsChanged;
+    }
+
+    private static class SourceEntry
+    {
+        @NotNull private final List<String> classes;
+
+        SourceEntry()
+        {
+            classes = new ArrayList<String>();
+        }
+    }
+
+    private static class ClassEntry
+    {
+        /**
+         * The ABI hash including the ones of the supertypes
+         */
+        @NotNull private String abiHash;
+
+        @NotNull private final String       constantsHash;
+        @NotNull private final String       ownAbiHash;
+        @NotNull private final Set<String>  references;
+        @NotNull private final File         source;
+        @NotNull private final List<String> supertypes;
+
+        ClassEntry(@NotNull File source, @NotNull String ownAbiHash, @NotNull String constantsHash)
+        {
+            this.source = source;
+            this.ownAbiHash = ownAbiHash;
+            this.constantsHash = constantsHash;
+            abiHash = ownAbiHash;
+            supertypes = new ArrayList<String>();
+            references = new HashSet<String>();
+        }
+    }
+}
@@ -29,7 +29,7 @@ import javax.tools.JavaFileObject;
 import apb.Environment;
 
 import apb.utils.FileUtils;
-import apb.utils.StringUtils;
+import apb.utils.PathMatcher;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -46,7 +46,7 @@ public class DiagnosticReporter
 
     @NotNull private final List<Diagnostic<? extends JavaFileObject>> ds;
     @NotNull private final Environment                                env;
-    @NotNull private List<String>                                     excludes;
+    @NotNull private PathMatcher                                      excludes;
     @Nullable private String                                          lastFile;
     private int                                                       warns, errors;
 
@@ -61,7 +61,7 @@ public class DiagnosticReporter
         env = environment;
         lastFile = null;
         ds = new LinkedList<Diagnostic<? extends JavaFileObject>>();
-        excludes = Collections.emptyList();
+        excludes = new PathMatcher(Collections.<String>emptyList(), true);
         errors = warns = 0;
     }
 
@@ -99,7 +99,7 @@ public class DiagnosticReporter
      */
     public void setExcludes(@NotNull List<String> patterns)
     {
-        excludes = StringUtils.normalizePaths(patterns);
+        excludes = new PathMatcher(patterns, true);
     }
 
     /**
@@ -177,12 +177,7 @@ public class DiagnosticReporter
     {
         if (!excludes.isEmpty()) {
             String name = FileUtils.makeRelative(env.getBaseDir(), fileObject.toString());
-
-            for (String exclude : excludes) {
-                if (StringUtils.matchPath(exclude, name, true)) {
-                    return true;
-                }
-            }
+            return excludes.matches(name);
         }
 
         return false;
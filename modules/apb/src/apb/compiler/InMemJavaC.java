@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,12 +55,16 @@ public class InMemJavaC
 {
     //~ Instance fields ......................................................................................
 
+    /**
+     * The on disk cache of compiled definitions (Created on first use)
+     */
+    @Nullable private DefinitionCache     cache;
     @NotNull private final Map<File, Class> classesByFile;
 
-    @NotNull private final JavaCompiler          compiler;
-    @NotNull private final Environment           env;
-    @NotNull private final MemoryJavaFileManager fileManager;
-    @NotNull private final MemoryClassLoader     memoryClassLoader;
+    @NotNull private final JavaCompiler    compiler;
+    @NotNull private Environment           env;
+    @NotNull private MemoryJavaFileManager fileManager;
+    @NotNull private MemoryClassLoader     memoryClassLoader;
 
     //~ Constructors .........................................................................................
 
@@ -103,12 +109,50 @@ public class InMemJavaC
         invokeMain(javac.compileToClass(null, source), args);
     }
 
+    /**
+     * Set the environment used for logging.
+     * (When the compiler is shared among several builds)
+     * @param environment The environment
+     */
+    public void setEnvironment(@NotNull Environment environment)
+    {
+        env = environment;
+    }
+
+    /**
+     * Discard all the compiled classes if the source of any of them has been modified
+     * (or removed) since it was compiled.
+     * @return true if the classes were discarded
+     */
+    public boolean refresh()
+    {
+        if (memoryClassLoader.isUpToDate()) {
+            return false;
+        }
+
+        memoryClassLoader = new MemoryClassLoader(getClass().getClassLoader());
+        fileManager = new MemoryJavaFileManager(compiler, memoryClassLoader);
+        classesByFile.clear();
+        return true;
+    }
+
     public long sourceLastModified(@NotNull Class clazz)
     {
         return memoryClassLoader.equals(clazz.getClassLoader())
                ? memoryClassLoader.sourceLastModified(clazz.getName()) : 0;
     }
 
+    /**
+     * Return the source file the class was compiled from
+     * @param clazz The class
+     * @return The source file or null if the class was not compiled by this compiler
+     */
+    @Nullable public File sourceFile(@NotNull Class<?> clazz)
+    {
+        return memoryClassLoader.equals(clazz.getClassLoader())
+               ? memoryClassLoader.sourceFile(clazz.getName()) : null;
+    }
+
     /**
      * Compile the source in the specified File and return the associated class
      * @param sourcePath The (optional) sourcePath where to find the source for he class
@@ -124,6 +168,7 @@ public class InMemJavaC
             sourcePath == null ? null : asList("-sourcepath", sourcePath.getAbsolutePath());
 
         // Get the compilation task and invoke it
+        memoryClassLoader.compiled.clear();
         boolean result =
             compiler.getTask(null, fileManager, null, options, null,
                              fileManager.getJavaFileObjects(singleton(source))).call();
@@ -151,14 +196,71 @@ public class InMemJavaC
         Class<?> clazz = classesByFile.get(source);
 
         if (clazz == null) {
-            env.logVerbose("Loading: %s\n", source);
-            clazz = compileToClass(sourcePath, source);
+            clazz = loadFromCache(sourcePath, source);
+
+            if (clazz == null) {
+                env.logVerbose("Loading: %s\n", source);
+                clazz = compileToClass(sourcePath, source);
+                saveToCache(sourcePath, source, clazz);
+            }
+
             classesByFile.put(source, clazz);
         }
 
         return clazz;
     }
 
+    /**
+     * Try to load the classes for the source from the on disk cache
+     * @return The class for the source or null if it is not in the cache (or it is stale)
+     */
+    @Nullable private Class<?> loadFromCache(@Nullable File sourcePath, @NotNull File source)
+        throws ClassNotFoundException
+    {
+        final DefinitionCache.Entry entry = getCache() == null ? null : cache.read(sourcePath, source);
+
+        if (entry == null) {
+            return null;
+        }
+
+        env.logVerbose("Loading from cache: %s\n", source);
+
+        for (int i = 0; i < entry.names.size(); i++) {
+            final File src = entry.sources.get(i);
+            memoryClassLoader.addClass(entry.names.get(i), entry.bytes.get(i), src,
+                                       src == null ? 0 : src.lastModified());
+        }
+
+        return memoryClassLoader.classFor(entry.mainClass);
+    }
+
+    private void saveToCache(@Nullable File sourcePath, @NotNull File source, @NotNull Class<?> clazz)
+    {
+        if (getCache() != null) {
+            DefinitionCache.Entry entry = new DefinitionCache.Entry(clazz.getName());
+
+            for (String name : memoryClassLoader.compiled) {
+                final ClassInfo info = memoryClassLoader.classMap.get(name);
+                entry.add(name, info.source, info.getBytes());
+            }
+
+            cache.write(sourcePath, source, entry);
+        }
+    }
+
+    /**
+     * Return the on disk cache, or null if it has been disabled with the 'defcache' property
+     */
+    @Nullable private DefinitionCache getCache()
+    {
+        if (cache == null && !"false".equals(env.getProperty(DEFCACHE_PROPERTY, "true"))) {
+            File dir = new File(new File(System.getProperty("user.home"), APB_DIR), DEFCACHE_DIR);
+            cache = new DefinitionCache(dir);
+        }
+
+        return cache;
+    }
+
     /**
      * Invoke the main Method over the compiled class
      * @param clazz The clazz to invoke main over
@@ -182,6 +284,16 @@ public class InMemJavaC
         }
     }
 
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String APB_DIR = ".apb";
+    private static final String DEFCACHE_DIR = "defcache";
+
+    /**
+     * Set this property to false to disable the on disk cache of compiled definitions
+     */
+    private static final String DEFCACHE_PROPERTY = "defcache";
+
     //~ Inner Classes ........................................................................................
 
     /**
@@ -194,6 +306,7 @@ public class InMemJavaC
         private String            className;
         private long              lastModified;
         private MemoryClassLoader memoryClassLoader;
+        @Nullable private File    source;
 
         public MemoryJavaOutput(FileObject fileObject, String className, MemoryClassLoader memoryClassLoader)
         {
@@ -201,13 +314,16 @@ public class InMemJavaC
             this.className = className;
             this.memoryClassLoader = memoryClassLoader;
             lastModified = fileObject.getLastModified();
+
+            final URI uri = fileObject.toUri();
+            source = "file".equals(uri.getScheme()) ? new File(uri) : null;
         }
 
         public OutputStream openOutputStream()
             throws IOException
         {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            memoryClassLoader.addClass(className, outputStream, lastModified);
+            memoryClassLoader.addClass(className, outputStream, source, lastModified);
             return outputStream;
         }
     }
@@ -219,10 +335,12 @@ public class InMemJavaC
     {
         private ByteArrayOutputStream bytes;
         private long                  lastModified;
+        @Nullable private File        source;
 
-        public ClassInfo(ByteArrayOutputStream outputStream, long lastModified)
+        public ClassInfo(ByteArrayOutputStream outputStream, @Nullable File source, long lastModified)
         {
             bytes = outputStream;
+            this.source = source;
             this.lastModified = lastModified;
         }
 
@@ -230,6 +348,14 @@ public class InMemJavaC
         {
             return bytes.toByteArray();
         }
+
+        /**
+         * Return true if the source has not been modified since the class was compiled
+         */
+        boolean isUpToDate()
+        {
+            return source == null || source.lastModified() == lastModified;
+        }
     }
 
     /**
@@ -240,10 +366,16 @@ public class InMemJavaC
     {
         @NotNull private final HashMap<String, ClassInfo> classMap;
 
+        /**
+         * The names of the classes generated by the last compilation
+         */
+        @NotNull private final List<String> compiled;
+
         MemoryClassLoader(ClassLoader parent)
         {
             super(parent);
             classMap = new HashMap<String, ClassInfo>();
+            compiled = new ArrayList<String>();
         }
 
         protected Class<?> findClass(String className)
@@ -279,16 +411,47 @@ public class InMemJavaC
 
             for (String className : classMap.keySet()) {
                 if (path.endsWith(className)) {
-                    return findClass(className);
+                    return classFor(className);
                 }
             }
 
             throw new ClassNotFoundException();
         }
 
-        void addClass(final String name, ByteArrayOutputStream outputStream, final long lastModified)
+        /**
+         * Return the class with the given name defining it if necessary
+         */
+        @NotNull Class<?> classFor(@NotNull String className)
+            throws ClassNotFoundException
+        {
+            // The class may already be defined if it is shared by several sources
+            Class<?> result = findLoadedClass(className);
+            return result != null ? result : findClass(className);
+        }
+
+        void addClass(final String name, ByteArrayOutputStream outputStream, @Nullable File source,
+                      final long lastModified)
+        {
+            classMap.put(name, new ClassInfo(outputStream, source, lastModified));
+            compiled.add(name);
+        }
+
+        void addClass(final String name, byte[] bytes, @Nullable File source, final long lastModified)
         {
-            classMap.put(name, new ClassInfo(outputStream, lastModified));
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length);
+            outputStream.write(bytes, 0, bytes.length);
+            classMap.put(name, new ClassInfo(outputStream, source, lastModified));
+        }
+
+        boolean isUpToDate()
+        {
+            for (ClassInfo classInfo : classMap.values()) {
+                if (!classInfo.isUpToDate()) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         long sourceLastModified(String className)
@@ -296,6 +459,12 @@ public class InMemJavaC
             ClassInfo classInfo = classMap.get(className);
             return classInfo == null ? 0 : classInfo.lastModified;
         }
+
+        @Nullable File sourceFile(String className)
+        {
+            ClassInfo classInfo = classMap.get(className);
+            return classInfo == null ? null : classInfo.source;
+        }
     }
 
     /**
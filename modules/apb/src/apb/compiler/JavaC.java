@@ -21,16 +21,19 @@ package apb.compiler;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 
 import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Sep 8, 2008
@@ -43,22 +46,49 @@ public class JavaC
 {
     //~ Instance fields ......................................................................................
 
-    @NotNull private final JavaCompiler       compiler;
-    @NotNull private final DiagnosticReporter diagnostics;
-    @NotNull private final Set<File>          usedPathElements;
+    /**
+     * The archive to keep the generated classes in, instead of the target directory (null for none)
+     */
+    @Nullable private ClassArchive                 archive;
+
+    /**
+     * The time the last compilation took
+     */
+    private long                                   compileMillis;
+    @NotNull private final JavaCompiler            compiler;
+    @NotNull private final DiagnosticReporter      diagnostics;
+    @NotNull private final Map<File, List<String>> generatedClasses;
+
+    /**
+     * The output directory of the classes from each source directory, instead of the target directory
+     * (null for none)
+     */
+    @Nullable private Map<File, File>              outputDirs;
+
+    /**
+     * The time saved in the last compilation by reusing a compiler context
+     */
+    private long                                   savedMillis;
+    @NotNull private final Set<File>               usedPathElements;
+
+    /**
+     * Whether the last compilation reused a compiler context
+     */
+    private boolean                                warm;
 
     //~ Constructors .........................................................................................
 
     /**
      * Construct a JavaC instance
-     * Intialize the underlying compiler.
+     * Intialize the underlying compiler, shared with other compilations (See {@link CompilerService}).
      * @param reporter
      */
     public JavaC(@NotNull DiagnosticReporter reporter)
     {
-        compiler = ToolProvider.getSystemJavaCompiler();
+        compiler = CompilerService.getInstance().getCompiler();
         diagnostics = reporter;
         usedPathElements = new HashSet<File>();
+        generatedClasses = new HashMap<File, List<String>>();
     }
 
     //~ Methods ..............................................................................................
@@ -77,9 +107,15 @@ public class JavaC
                            @NotNull List<File> classPath, @NotNull List<String> additionalOptions,
                            boolean trackUnusedPathElements)
     {
+        final long                    start = System.currentTimeMillis();
+        final CompilerService         service = CompilerService.getInstance();
+        final CompilerService.Context context = service.borrow(classPath, additionalOptions);
+
         DefaultJavaFileManager fileManager =
-            trackUnusedPathElements ? new TrackingJavaFileManager(compiler, usedPathElements)
-                                    : new DefaultJavaFileManager(compiler);
+            trackUnusedPathElements ? new TrackingJavaFileManager(context.getFileManager(), usedPathElements)
+                                    : new DefaultJavaFileManager(context.getFileManager());
+        fileManager.setArchive(archive);
+        fileManager.setOutputDirs(outputDirs);
 
         List<String> options = new ArrayList<String>(additionalOptions);
         options.add("-d");
@@ -89,13 +125,99 @@ public class JavaC
         options.add("-sourcepath");
         options.add(FileUtils.makePath(sourceDirs));
 
-        boolean result =
-            compiler.getTask(null, fileManager, diagnostics, options, null,
-                             fileManager.getJavaFileObjects(files)).call();
-        fileManager.close();
+        boolean result;
+
+        try {
+            final JavaCompiler.CompilationTask task =
+                compiler.getTask(null, fileManager, diagnostics, options, null,
+                                 fileManager.getJavaFileObjects(files));
+            final CompilerService.TaskHook     hook = service.getHook();
+
+            if (hook != null) {
+                hook.prepare(task);
+            }
+
+            result = task.call();
+
+            // The file manager is kept open to be reused
+            fileManager.flush();
+        }
+        finally {
+            service.release(context);
+        }
+
+        generatedClasses.clear();
+        generatedClasses.putAll(fileManager.getGeneratedClasses());
+        compileMillis = System.currentTimeMillis() - start;
+        savedMillis = context.getSavedMillis();
+        warm = context.isWarm();
         return result;
     }
 
+    /**
+     * Return the time the last compilation took
+     */
+    public long getCompileMillis()
+    {
+        return compileMillis;
+    }
+
+    /**
+     * Return the time saved in the last compilation by reusing a compiler context
+     * that already indexed the jdk and some of the jars of the class path
+     */
+    public long getSavedMillis()
+    {
+        return savedMillis;
+    }
+
+    /**
+     * Whether the last compilation reused a compiler context
+     */
+    public boolean isWarm()
+    {
+        return warm;
+    }
+
+    /**
+     * Keep the classes generated by the following compilations in the specified archive,
+     * instead of writing them to the target directory
+     * @param archive The archive, or null to write the classes
+     */
+    public void setArchive(@Nullable ClassArchive archive)
+    {
+        this.archive = archive;
+    }
+
+    /**
+     * Write the classes generated by the following compilations from the sources in each source directory
+     * to a different output directory, instead of the target directory
+     * @param dirs The output directory for each source directory, or null to use the target directory
+     */
+    public void setOutputDirs(@Nullable Map<File, File> dirs)
+    {
+        if (dirs == null) {
+            outputDirs = null;
+        }
+        else {
+            outputDirs = new LinkedHashMap<File, File>();
+
+            for (Map.Entry<File, File> entry : dirs.entrySet()) {
+                outputDirs.put(FileUtils.normalize(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Return the classes generated by the last compilation, by the source file they were generated from.
+     * (It includes the sources implicitly compiled from the source path)
+     * @return A map from source files to the names of the classes generated from them
+     */
+    @NotNull public Map<File, List<String>> getGeneratedClasses()
+    {
+        return generatedClasses;
+    }
+
     /**
      * Return the list of unused path Elements. For this to be meaningfull the compiler must be called with
      * trackUnusedPathElements in true
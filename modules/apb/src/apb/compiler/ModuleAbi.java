@@ -0,0 +1,218 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import apb.utils.FileUtils;
+import apb.utils.StringUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The ABI of all the classes of a module, as published after compiling it.
+ * It contains the ABI and constants hash of each class, and a fingerprint of all of them,
+ * so the modules depending on it can quickly check whether anything they can see changed
+ * and, if so, which classes.
+ */
+public class ModuleAbi
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Map<String, String> abiHashes;
+    @NotNull private final Map<String, String> constantsHashes;
+    @Nullable private String                   fingerprint;
+
+    //~ Constructors .........................................................................................
+
+    ModuleAbi()
+    {
+        abiHashes = new TreeMap<String, String>();
+        constantsHashes = new TreeMap<String, String>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Load the ABI published in the specified file
+     * @param file The file with the ABI
+     * @return The ABI or null if the file does not exist or it is not valid
+     */
+    @Nullable public static ModuleAbi load(@NotNull File file)
+    {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return in.readInt() == MAGIC ? read(in) : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * Publish the ABI in the specified file.
+     * The file is not rewritten if it already contains the same ABI.
+     * @param file The file to store the ABI in
+     * @throws IOException if the file cannot be written
+     */
+    public void publish(@NotNull File file)
+        throws IOException
+    {
+        ModuleAbi published = load(file);
+
+        if (published == null || !published.getFingerprint().equals(getFingerprint())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(file)));
+
+            try {
+                out.writeInt(MAGIC);
+                write(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Return a hash of the ABI of all the classes
+     */
+    @NotNull public String getFingerprint()
+    {
+        if (fingerprint == null) {
+            MessageDigest digest = StringUtils.md5Digest();
+
+            for (Map.Entry<String, String> entry : abiHashes.entrySet()) {
+                final String line =
+                    entry.getKey() + " " + entry.getValue() + " " + constantsHashes.get(entry.getKey()) + "\n";
+
+                for (int i = 0; i < line.length(); i++) {
+                    digest.update((byte) line.charAt(i));
+                }
+            }
+
+            fingerprint = StringUtils.toHex(digest.digest());
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Return the classes whose ABI is different in the previous version of the module
+     * (Including the ones added or removed)
+     * @param previous The previous ABI, or null if unknown, in that case all the classes are returned
+     */
+    @NotNull public Set<String> changedClasses(@Nullable ModuleAbi previous)
+    {
+        Set<String> result = new HashSet<String>(abiHashes.keySet());
+
+        if (previous != null) {
+            for (Map.Entry<String, String> entry : previous.abiHashes.entrySet()) {
+                if (entry.getValue().equals(abiHashes.get(entry.getKey()))) {
+                    result.remove(entry.getKey());
+                }
+                else {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return true if the value of any constant differs from the previous version of the module
+     * @param previous The previous ABI
+     */
+    public boolean constantsChanged(@NotNull ModuleAbi previous)
+    {
+        for (Map.Entry<String, String> entry : previous.constantsHashes.entrySet()) {
+            final String hash = constantsHashes.get(entry.getKey());
+
+            if (hash != null && !hash.equals(entry.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the ABI hash of a class, or null if it is not in the module
+     */
+    @Nullable String getAbiHash(@NotNull String className)
+    {
+        return abiHashes.get(className);
+    }
+
+    void add(@NotNull String className, @NotNull String abiHash, @NotNull String constantsHash)
+    {
+        abiHashes.put(className, abiHash);
+        constantsHashes.put(className, constantsHash);
+        fingerprint = null;
+    }
+
+    static ModuleAbi read(DataInputStream in)
+        throws IOException
+    {
+        ModuleAbi result = new ModuleAbi();
+
+        for (int n = in.readInt(); n > 0; n--) {
+            result.add(in.readUTF(), in.readUTF(), in.readUTF());
+        }
+
+        return result;
+    }
+
+    void write(DataOutputStream out)
+        throws IOException
+    {
+        out.writeInt(abiHashes.size());
+
+        for (Map.Entry<String, String> entry : abiHashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+            out.writeUTF(constantsHashes.get(entry.getKey()));
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xAB0AB101;
+}
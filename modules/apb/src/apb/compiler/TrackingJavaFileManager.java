@@ -26,8 +26,8 @@ import java.util.List;
 import java.util.Set;
 
 import javax.tools.ForwardingJavaFileObject;
-import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -55,9 +55,10 @@ public class TrackingJavaFileManager
 
     //~ Constructors .........................................................................................
 
-    protected TrackingJavaFileManager(@NotNull JavaCompiler compiler, @NotNull Set<File> usedPathElements)
+    protected TrackingJavaFileManager(@NotNull StandardJavaFileManager fileManager,
+                                      @NotNull Set<File> usedPathElements)
     {
-        super(compiler);
+        super(fileManager);
         this.usedPathElements = usedPathElements;
     }
 
@@ -0,0 +1,229 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.events;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Something that happened during the build.
+ * Besides its kind and name, an event has the element and command being executed when it was fired,
+ * and a set of attributes that depend on the kind, like the number of files compiled by a task
+ * or the tests run by a suite.
+ * Events are immutable, so they can be handed to the listeners from another thread.
+ */
+public final class BuildEvent
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Map<String, String> attributes;
+    @Nullable private final String             command;
+    @Nullable private final String             element;
+    @NotNull private final Kind                kind;
+
+    /**
+     * The time it took, in microseconds, for the events that finish something
+     */
+    private final long            micros;
+    @NotNull private final String name;
+
+    /**
+     * The name of the thread that fired the event
+     */
+    @NotNull private final String thread;
+
+    /**
+     * The time the event was fired, in milliseconds
+     */
+    private final long time;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create an event fired by the current thread
+     * @param kind The kind of event
+     * @param name The name of what the event is about: the element, command, task, suite or test
+     * @param element The element being executed, or null if none
+     * @param command The command being executed, or null if none
+     * @param attributes The attributes of the event
+     * @param micros The time it took, for the events that finish something
+     */
+    public BuildEvent(@NotNull Kind kind, @NotNull String name, @Nullable String element, @Nullable String command,
+                      @NotNull Map<String, String> attributes, long micros)
+    {
+        this.kind = kind;
+        this.name = name;
+        this.element = element;
+        this.command = command;
+        this.attributes =
+            attributes.isEmpty() ? Collections.<String, String>emptyMap()
+                                 : new LinkedHashMap<String, String>(attributes);
+        this.micros = micros;
+        thread = Thread.currentThread().getName();
+        time = System.currentTimeMillis();
+    }
+
+    //~ Methods ..............................................................................................
+
+    @NotNull public Kind getKind()
+    {
+        return kind;
+    }
+
+    @NotNull public String getName()
+    {
+        return name;
+    }
+
+    @Nullable public String getElement()
+    {
+        return element;
+    }
+
+    @Nullable public String getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * Return the attributes of the event
+     */
+    @NotNull public Map<String, String> getAttributes()
+    {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Return the value of an attribute, or null if the event does not have it
+     */
+    @Nullable public String getAttribute(@NotNull String key)
+    {
+        return attributes.get(key);
+    }
+
+    /**
+     * Return the value of a numeric attribute, like the number of files compiled
+     * @return The value, or -1 if the event does not have it
+     */
+    public long getCount(@NotNull String key)
+    {
+        final String value = attributes.get(key);
+
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the time it took in microseconds, for the events that finish something, or 0
+     */
+    public long getMicros()
+    {
+        return micros;
+    }
+
+    /**
+     * Return the time the event was fired, in milliseconds
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Return the name of the thread that fired the event
+     */
+    @NotNull public String getThread()
+    {
+        return thread;
+    }
+
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder();
+        result.append(kind).append(' ').append(name);
+
+        if (element != null) {
+            result.append(" element=").append(element);
+        }
+
+        if (command != null) {
+            result.append(" command=").append(command);
+        }
+
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            result.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        return result.toString();
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The kinds of events
+     */
+    public enum Kind
+    {
+        BUILD_STARTED,
+        BUILD_FINISHED,
+
+        /**
+         * An element is activated to execute a command, and its dependencies
+         */
+        ELEMENT_ACTIVATED,
+        ELEMENT_FINISHED,
+        COMMAND_STARTED,
+        COMMAND_FINISHED,
+
+        /**
+         * The main tasks: "javac", "copy", "jar", "test" and "javadoc".
+         * The ones that process files finish with the number processed ("files").
+         */
+        TASK_STARTED,
+        TASK_FINISHED,
+
+        /**
+         * A test suite finishes with the number of tests run ("tests") and failed ("failures")
+         * when they are known.
+         */
+        SUITE_STARTED,
+        SUITE_FINISHED,
+
+        /**
+         * Tests are only reported when they run in the build process
+         */
+        TEST_STARTED,
+        TEST_FAILED,
+        TEST_FINISHED,
+
+        /**
+         * The outputs of a task are looked up in the build cache, the name is the one of the task
+         */
+        CACHE_HIT,
+        CACHE_MISS
+    }
+}
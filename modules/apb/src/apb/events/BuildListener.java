@@ -0,0 +1,40 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.events;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An Interface to implement to follow the execution of a build.
+ * Listeners are registered in the {@link apb.Environment}, or with the --listener option, in which case
+ * the class must have a public constructor without arguments.
+ * The events are delivered in the order they were fired, by a single thread that is not the one
+ * running the build, so a listener needs no synchronization but must not rely on the state of the build
+ * when it receives them. (See {@link EventDispatcher})
+ */
+public interface BuildListener
+{
+    //~ Methods ..............................................................................................
+
+    /**
+     * Called for each event of the build
+     * @param event The event
+     */
+    void handle(@NotNull BuildEvent event);
+}
@@ -0,0 +1,316 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.events;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import apb.utils.BuildTrace;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Delivers the events of the build to the listeners.
+ * The threads of the build never wait for the listeners: events are published in a ring buffer
+ * without locks, and delivered by a single thread that takes them from it.
+ * Publishing claims the next slot incrementing the head sequence with a compare and set, so several
+ * threads can publish at the same time. If the listeners fall so far behind that the buffer is full
+ * the event is dropped and counted, instead of blocking the build.
+ * It also observes the spans of the build (See {@link BuildTrace}), turning the ones of the elements,
+ * commands and tasks into events.
+ */
+public class EventDispatcher
+    implements BuildTrace.Span.Observer, Runnable
+{
+    //~ Instance fields ......................................................................................
+
+    private volatile boolean closed;
+
+    /**
+     * The thread delivering the events (Started with the first listener)
+     */
+    @Nullable private volatile Thread consumer;
+
+    /**
+     * The number of events dropped because the buffer was full
+     */
+    @NotNull private final AtomicLong dropped;
+
+    /**
+     * The listeners that failed, with the exception they threw. They do not receive more events.
+     */
+    @NotNull private final Map<BuildListener, RuntimeException> failures;
+
+    /**
+     * The sequence of the next slot to publish an event in
+     */
+    @NotNull private final AtomicLong                       head;
+    @NotNull private final List<BuildListener>              listeners;
+    private final int                                       mask;
+    @NotNull private final AtomicReferenceArray<BuildEvent> slots;
+
+    /**
+     * The sequence of the next event to deliver
+     */
+    private volatile long tail;
+
+    /**
+     * Whether the consumer is about to park, so publishers must wake it up
+     */
+    private volatile boolean waiting;
+
+    //~ Constructors .........................................................................................
+
+    public EventDispatcher()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create the dispatcher
+     * @param capacity The number of events that can wait to be delivered, rounded up to a power of 2
+     */
+    public EventDispatcher(int capacity)
+    {
+        int size = 1;
+
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        slots = new AtomicReferenceArray<BuildEvent>(size);
+        mask = size - 1;
+        head = new AtomicLong();
+        dropped = new AtomicLong();
+        listeners = new CopyOnWriteArrayList<BuildListener>();
+        failures = new LinkedHashMap<BuildListener, RuntimeException>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Add a listener, that will receive the events fired from now on
+     */
+    public synchronized void addListener(@NotNull BuildListener listener)
+    {
+        listeners.add(listener);
+
+        if (consumer == null && !closed) {
+            final Thread thread = new Thread(this, "apb-events");
+            thread.setDaemon(true);
+            consumer = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Publish an event to be delivered to the listeners. It never blocks.
+     * @return false if the event was dropped because the buffer is full, or the dispatcher is closed
+     */
+    public boolean fire(@NotNull BuildEvent event)
+    {
+        if (closed) {
+            return false;
+        }
+
+        long seq;
+
+        do {
+            seq = head.get();
+
+            if (seq - tail >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        while (!head.compareAndSet(seq, seq + 1));
+
+        slots.set((int) seq & mask, event);
+
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Fire the event for the start of a span
+     */
+    public void started(@NotNull BuildTrace.Span span)
+    {
+        fire(span, 0);
+    }
+
+    public void ended(@NotNull BuildTrace.Span span)
+    {
+        fire(span, 1);
+    }
+
+    /**
+     * Deliver the events already published and stop the thread delivering them.
+     * The events fired after closing it are discarded.
+     */
+    public void close()
+    {
+        final Thread thread;
+
+        synchronized (this) {
+            closed = true;
+            thread = consumer;
+        }
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Return the number of events dropped because the listeners could not keep up with the build
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Return the listeners that failed, with the exception they threw
+     */
+    @NotNull public synchronized Map<BuildListener, RuntimeException> getFailures()
+    {
+        return new LinkedHashMap<BuildListener, RuntimeException>(failures);
+    }
+
+    /**
+     * Deliver the events as they are published, until the dispatcher is closed and all of them are delivered
+     */
+    public void run()
+    {
+        while (true) {
+            final long seq = tail;
+
+            if (seq == head.get()) {
+                if (closed) {
+                    return;
+                }
+
+                // Check again after announcing it, so a publisher either sees it or its event is seen here
+                waiting = true;
+
+                if (seq == head.get() && !closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+
+                waiting = false;
+                continue;
+            }
+
+            final int        slot = (int) seq & mask;
+            final BuildEvent event = slots.get(slot);
+
+            if (event == null) {
+                // The slot is claimed but the event is not there yet
+                Thread.yield();
+                continue;
+            }
+
+            slots.set(slot, null);
+            deliver(event);
+
+            // Advanced after delivering it, so a closed dispatcher has delivered everything
+            tail = seq + 1;
+        }
+    }
+
+    private void deliver(@NotNull BuildEvent event)
+    {
+        for (BuildListener listener : listeners) {
+            try {
+                listener.handle(event);
+            }
+            catch (RuntimeException e) {
+                listeners.remove(listener);
+
+                synchronized (this) {
+                    failures.put(listener, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fire the event for the start or end of a span, taking the element and command from its arguments
+     * @param phase 0 for the start, 1 for the end
+     */
+    private void fire(@NotNull BuildTrace.Span span, int phase)
+    {
+        final BuildEvent.Kind[] kinds = KINDS.get(span.getCategory());
+
+        if (kinds != null && !listeners.isEmpty()) {
+            final Map<String, String> attributes = new LinkedHashMap<String, String>(span.getArgs());
+            final String              element = attributes.remove(ELEMENT);
+            final String              command = attributes.remove(COMMAND);
+
+            fire(new BuildEvent(kinds[phase], span.getName(), element, command, attributes,
+                                phase == 0 ? 0 : span.getMicros()));
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The longest the consumer waits for events before checking again
+     */
+    private static final long PARK_NANOS = 10000000L;
+
+    private static final String ELEMENT = "element";
+    private static final String COMMAND = "command";
+
+    /**
+     * The kinds of the events for the start and end of each category of spans
+     */
+    private static final Map<String, BuildEvent.Kind[]> KINDS = new HashMap<String, BuildEvent.Kind[]>();
+
+    static {
+        KINDS.put("build",
+                  new BuildEvent.Kind[] { BuildEvent.Kind.BUILD_STARTED, BuildEvent.Kind.BUILD_FINISHED });
+        KINDS.put("element",
+                  new BuildEvent.Kind[] { BuildEvent.Kind.ELEMENT_ACTIVATED, BuildEvent.Kind.ELEMENT_FINISHED });
+        KINDS.put("command",
+                  new BuildEvent.Kind[] { BuildEvent.Kind.COMMAND_STARTED, BuildEvent.Kind.COMMAND_FINISHED });
+        KINDS.put("task",
+                  new BuildEvent.Kind[] { BuildEvent.Kind.TASK_STARTED, BuildEvent.Kind.TASK_FINISHED });
+    }
+}
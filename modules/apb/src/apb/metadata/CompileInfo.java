@@ -56,6 +56,12 @@ public class CompileInfo
      */
     @BuildProperty public boolean failOnWarning = false;
 
+    /**
+     * Use a dependency index to recompile only the modified sources and the ones affected by them.
+     * If false, sources are compiled when their class file is older than them.
+     */
+    @BuildProperty public boolean incremental = true;
+
     /**
      * Whether to enable recommended warnings
      */
@@ -77,6 +83,15 @@ public class CompileInfo
      */
     @BuildProperty public String target = "";
 
+    /**
+     * Compile the classes straight into the package, keeping them in memory instead of writing them
+     * to the output directory. It only applies to modules whose classes are just used through the package:
+     * it is ignored for modules with tests, without package, including other modules in it
+     * or used by other modules of the build, as they compile against the output directory.
+     * All the sources are compiled when any of them changes (See {@link #incremental}).
+     */
+    @BuildProperty public boolean toPackage = false;
+
     /**
      * Wheter to validate that all dependencies are being used
      * If it's true and there are some unused dependencies it will fail with the list of unused ones
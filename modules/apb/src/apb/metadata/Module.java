@@ -52,6 +52,7 @@ import static java.util.Arrays.asList;
  *                    .
  *                    +-- output +-- classes --   <-- Compiled classes and resources here
  *                               +-- javadoc --   <-- javadoc here
+ *                               +-- state   --   <-- build state here
  *        +--- module2/
  *        .
  *        .
@@ -107,6 +108,11 @@ public class Module
      */
     @BuildProperty public String source = "$moduledir/src";
 
+    /**
+     * The directory where the state of the build is kept (i.e. the incremental compilation index)
+     */
+    @BuildProperty public String state = "$moduledir/output/state";
+
     /**
      * The list of modules & libraries this module depends from
      */
@@ -133,6 +139,7 @@ public class Module
     {
         ModuleHelper helper = env.getModuleHelper();
         RemoveTask.remove(env, helper.getOutput());
+        RemoveTask.remove(env, helper.getStateDir());
         RemoveTask.remove(env, helper.getPackageFile());
         RemoveTask.remove(env, helper.getGeneratedSource());
         env.forward("clean", tests);
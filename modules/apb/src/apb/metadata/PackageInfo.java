@@ -32,6 +32,14 @@ public class PackageInfo
      */
     @BuildProperty public String name = "${group}-${moduleid}-${version}";
 
+    /**
+     * Whether to generate a reproducible package, with the same bytes for the same content:
+     * entries sorted by name, a fixed timestamp for all of them and the manifest attributes sorted.
+     * The md5 hash of the package is written to a file next to it (With the '.md5' extension),
+     * and the package is not replaced when a new build produces the same content.
+     */
+    @BuildProperty public boolean reproducible;
+
     /**
      * The packaging type for the module
      */
@@ -101,6 +101,13 @@ public class TestModule
      */
     public boolean forkPerSuite = false;
 
+    /**
+     *  The number of processes to fork to run the test suites concurrently, each one running several suites.
+     *  The suites are distributed among them instead of running all of them in a single process.
+     *  (Values lower than 2 disable it, and it is ignored when coverage or the debugger are enabled)
+     */
+    public int forkPool = 0;
+
     /**
      * Max. memory allocate for the tests (in megabytes).
      */
@@ -111,6 +118,21 @@ public class TestModule
       */
     @BuildProperty public String reportsDir = "$moduledir/output/reports";
 
+    /**
+     * Run only the test suites affected by the classes recompiled since they last passed.
+     * The classes and resources used by each suite are recorded when it runs, and the suite is skipped
+     * while none of them changes. (A forced build runs all of them, and it is ignored when coverage is enabled)
+     * Files read without the class loader (i.e. through a relative path) are not recorded,
+     * so the suites using them should not rely on this.
+     */
+    public boolean selectAffected = false;
+
+    /**
+     * The number of test suites to run concurrently in the same process, each one in its own thread
+     * and with its own class loader (1 to run them one after the other)
+     */
+    public int suiteThreads = 1;
+
     /**
      * The type of runner for the test
      */
@@ -18,10 +18,13 @@ package apb.tasks;
 import apb.Environment;
 import apb.ModuleHelper;
 import apb.metadata.ResourcesInfo;
+import apb.utils.BuildState;
+import apb.utils.BuildTrace;
 import apb.utils.DirectoryScanner;
 import apb.utils.FileUtils;
 import static apb.utils.StringUtils.isEmpty;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,6 +57,11 @@ public class CopyTask
     @NotNull private final File   outputDir;
     @NotNull private final File   sourceDir;
 
+    /**
+     * The state of the files when they were copied (null to check timestamps instead)
+     */
+    @Nullable private BuildState state;
+
     //~ Constructors .........................................................................................
 
     public CopyTask(@NotNull Environment env, @NotNull File sourceDir, @NotNull File outputDir)
@@ -96,6 +104,7 @@ public class CopyTask
         copy.setFiltering(resources.filtering);
         copy.setIncludes(resources.includes());
         copy.setExcludes(resources.excludes());
+        copy.state = helper.getBuildState(STATE_SCOPE);
         copy.execute();
     }
 
@@ -111,68 +120,84 @@ public class CopyTask
 
     public void execute()
     {
-        if (includes.isEmpty()) {
-            // Set defaults
-            includes = Arrays.asList("**/**");
-            excludes = Arrays.asList("**/*.java");
-        }
-
-        if (!sourceDir.exists()) {
-            env.logInfo("Skip non existing resourceDirectory: %s\n", sourceDir.getPath());
-            return;
-        }
-
-        if (!outputDir.exists() && !outputDir.mkdirs()) {
-            env.handle("Cannot create resource output directory: " + outputDir);
-            return;
-        }
-
-        if (env.isVerbose()) {
-            env.logVerbose("Copying resources from: %s\n", sourceDir);
-            env.logVerbose("                    to: %s\n", outputDir);
-            env.logVerbose("              includes: %s\n", includes);
+        final BuildTrace.Span span = env.startSpan("copy", "task");
 
-            if (!excludes.isEmpty()) {
-                env.logVerbose("              excludes: %s\n", excludes);
+        try {
+            if (includes.isEmpty()) {
+                // Set defaults
+                includes = Arrays.asList("**/**");
+                excludes = Arrays.asList("**/*.java");
             }
-        }
 
-        Map<File, File> includedFiles = findFiles(sourceDir, outputDir);
+            if (!sourceDir.exists()) {
+                env.logInfo("Skip non existing resourceDirectory: %s\n", sourceDir.getPath());
+                return;
+            }
 
-        if (includedFiles.isEmpty()) {
-            return;
-        }
+            if (!outputDir.exists() && !outputDir.mkdirs()) {
+                env.handle("Cannot create resource output directory: " + outputDir);
+                return;
+            }
 
-        env.logInfo("Copying %2d resource%s\nto %s\n", includedFiles.size(),
-                    includedFiles.size() > 1 ? "s" : "", outputDir);
+            if (env.isVerbose()) {
+                env.logVerbose("Copying resources from: %s\n", sourceDir);
+                env.logVerbose("                    to: %s\n", outputDir);
+                env.logVerbose("              includes: %s\n", includes);
 
-        List<FileUtils.Filter> filters = new ArrayList<FileUtils.Filter>();
-        filters.add(new FileUtils.Filter() {
-                public String filter(String str)
-                {
-                    return env.expand(str);
+                if (!excludes.isEmpty()) {
+                    env.logVerbose("              excludes: %s\n", excludes);
                 }
-            });
+            }
 
-        for (Map.Entry<File, File> entry : includedFiles.entrySet()) {
-            File source = entry.getKey();
-            File to = entry.getValue();
+            Map<File, File> includedFiles = findFiles(sourceDir, outputDir);
 
-            try {
-                if (filtering && !doNotFilter.contains(FileUtils.extension(source).toLowerCase())) {
-                    env.logVerbose("Filtering %s\n", source);
-                    env.logVerbose("       to %s\n", to);
-                    FileUtils.copyFileFiltering(source, to, encoding, filters);
+            if (includedFiles.isEmpty()) {
+                saveState();
+                return;
+            }
+
+            env.logInfo("Copying %2d resource%s\nto %s\n", includedFiles.size(),
+                        includedFiles.size() > 1 ? "s" : "", outputDir);
+            span.arg("files", includedFiles.size());
+
+            List<FileUtils.Filter> filters = new ArrayList<FileUtils.Filter>();
+            filters.add(new FileUtils.Filter() {
+                    public String filter(String str)
+                    {
+                        return env.expand(str);
+                    }
+                });
+
+            for (Map.Entry<File, File> entry : includedFiles.entrySet()) {
+                File source = entry.getKey();
+                File to = entry.getValue();
+
+                try {
+                    if (filtering && !doNotFilter.contains(FileUtils.extension(source).toLowerCase())) {
+                        env.logVerbose("Filtering %s\n", source);
+                        env.logVerbose("       to %s\n", to);
+                        FileUtils.copyFileFiltering(source, to, encoding, filters);
+                    }
+                    else {
+                        env.logVerbose("Copy %s\n", source);
+                        env.logVerbose("  to %s\n", to);
+                        FileUtils.copyFile(source, to);
+                    }
+
+                    if (state != null) {
+                        state.record(source);
+                    }
                 }
-                else {
-                    env.logVerbose("Copy %s\n", source);
-                    env.logVerbose("  to %s\n", to);
-                    FileUtils.copyFile(source, to);
+                catch (IOException e) {
+                    env.handle(e);
                 }
             }
-            catch (IOException e) {
-                env.handle(e);
-            }
+
+            env.invalidateFileTrees(outputDir);
+            saveState();
+        }
+        finally {
+            span.end();
         }
     }
 
@@ -193,13 +218,15 @@ public class CopyTask
 
     private Map<File, File> findFiles(File resourceDirectory, File outputDirectory)
     {
-        DirectoryScanner scanner = new DirectoryScanner(resourceDirectory, includes, excludes);
+        final DirectoryScanner scanner;
 
         try {
+            scanner = new DirectoryScanner(env.getFileTree(resourceDirectory), includes, excludes);
             scanner.scan();
         }
         catch (IOException e) {
             env.handle(e);
+            return Collections.emptyMap();
         }
 
         Map<File, File> files = new LinkedHashMap<File, File>();
@@ -208,11 +235,28 @@ public class CopyTask
             File from = new File(resourceDirectory, name);
             File to = new File(outputDirectory, name);
 
-            if (env.forceBuild() || !to.exists() || from.lastModified() > to.lastModified()) {
+            if (env.forceBuild() || !to.exists() ||
+                    (state == null ? from.lastModified() > to.lastModified() : state.isModified(from))) {
                 files.put(from, to);
             }
         }
 
         return files;
     }
+
+    private void saveState()
+    {
+        if (state != null) {
+            try {
+                state.save();
+            }
+            catch (IOException e) {
+                env.handle(e);
+            }
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String STATE_SCOPE = "resources";
 }
@@ -16,6 +16,7 @@
 package apb.tasks;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,6 +28,8 @@ import java.util.Map;
 
 import apb.Environment;
 
+import apb.utils.BuildTrace;
+
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 //
@@ -75,6 +78,9 @@ public class ExecTask
 
     public void execute()
     {
+        // The span covers the whole life of the process
+        final BuildTrace.Span span = env.startSpan(new File(cmd.get(0)).getName(), "process");
+
         try {
             logCommand();
             Process p = createProcess();
@@ -95,10 +101,25 @@ public class ExecTask
             }
 
             exitValue = p.exitValue();
+            span.arg("exitValue", exitValue);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
+        finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Start the process without waiting for it, the standard error is redirected to the standard output.
+     * @return The process started
+     */
+    @NotNull Process start()
+        throws IOException
+    {
+        logCommand();
+        return createProcess();
     }
 
     public void putEnv(String key, String value)
@@ -137,11 +158,15 @@ public class ExecTask
         return b.start();
     }
 
+    /**
+     * Log the output of the process as it comes.
+     * The environment may keep the chunks until their lines end, so they are read as large as available.
+     */
     private void logStream(InputStream in)
         throws IOException
     {
         Reader s = new InputStreamReader(in);
-        char[] buff = new char[256];
+        char[] buff = new char[8192];
         int    n;
 
         while ((n = s.read(buff)) > -1) {
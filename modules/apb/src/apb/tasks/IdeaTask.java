@@ -37,6 +37,8 @@ import apb.metadata.Module;
 import apb.metadata.PackageType;
 import apb.metadata.ProjectElement;
 import apb.metadata.TestModule;
+import apb.utils.BuildState;
+import apb.utils.BuildTrace;
 import apb.utils.FileUtils;
 import static apb.utils.FileUtils.makeRelative;
 import apb.utils.XmlUtils;
@@ -84,21 +86,28 @@ public class IdeaTask
 
     public void execute()
     {
-        if (helper instanceof ModuleHelper) {
-            final ModuleHelper mod = (ModuleHelper) helper;
-            rewriteModule(mod);
-
-            for (TestModule testModule : mod.getModule().tests()) {
-                env.activate(testModule);
-                rewriteModule(env.getModuleHelper());
-                env.deactivate();
+        final BuildTrace.Span span = env.startSpan("idea", "task");
+
+        try {
+            if (helper instanceof ModuleHelper) {
+                final ModuleHelper mod = (ModuleHelper) helper;
+                rewriteModule(mod);
+
+                for (TestModule testModule : mod.getModule().tests()) {
+                    env.activate(testModule);
+                    rewriteModule(env.getModuleHelper());
+                    env.deactivate();
+                }
+
+                env.activate(mod.getModule());
             }
 
-            env.activate(mod.getModule());
+            if (helper.isTopLevel()) {
+                rewriteProject();
+            }
         }
-
-        if (helper.isTopLevel()) {
-            rewriteProject();
+        finally {
+            span.end();
         }
     }
 
@@ -130,20 +139,56 @@ public class IdeaTask
 
                 rewriteDependencies(module, component);
 
-                writeDocument(ideaFile, document);
+                writeDocument(module, ideaFile, document);
             }
         }
     }
 
-    private void writeDocument(File ideaFile, Document document)
+    private void writeDocument(ProjectElementHelper element, File ideaFile, Document document)
     {
         env.logInfo("Writing: %s\n", ideaFile);
         XmlUtils.writeDocument(document, ideaFile);
+        recordDefinition(element, ideaFile);
+    }
+
+    /**
+     * Check if the idea file must be generated.
+     * (It does not exist or the content of the definition of the element changed since it was generated)
+     */
+    private boolean mustBuild(ProjectElementHelper element, File ideaFile)
+    {
+        if (overwrite || !ideaFile.exists()) {
+            return true;
+        }
+
+        final File source = element.getSourceFile();
+
+        return source == null ? ideaFile.lastModified() < element.lastModified()
+                              : BuildState.load(new File(modulesHome, STATE_FILE)).isModified(ideaFile.getPath(),
+                                                                                               source);
     }
 
-    private boolean mustBuild(ProjectElementHelper module, File ideaFile)
+    /**
+     * Record the state of the definition the idea file was generated from
+     */
+    private void recordDefinition(ProjectElementHelper element, File ideaFile)
     {
-        return overwrite || !ideaFile.exists() || ideaFile.lastModified() < module.lastModified();
+        final File source = element.getSourceFile();
+
+        if (source != null) {
+            // The state is shared by all the modules, that can be processed concurrently
+            synchronized (IdeaTask.class) {
+                BuildState state = BuildState.load(new File(modulesHome, STATE_FILE));
+
+                try {
+                    state.record(ideaFile.getPath(), source);
+                    state.save();
+                }
+                catch (IOException e) {
+                    env.handle(e);
+                }
+            }
+        }
     }
 
     private void rewriteProject()
@@ -177,7 +222,7 @@ public class IdeaTask
             }
 
             generateProjectDefinitionsModule(modulesElement);
-            writeDocument(ideaFile, document);
+            writeDocument(helper, ideaFile, document);
         }
     }
 
@@ -575,6 +620,7 @@ public class IdeaTask
     @NonNls private static final String WILDCARD_RESOURCE_PATTERNS = "wildcardResourcePatterns";
 
     @NonNls private static final String IDEA_DIR = "idea";
+    @NonNls private static final String STATE_FILE = ".apb-state";
     private static final String         IDEA_MODULES_HOME = System.getProperty("IDEA_MODULES_HOME");
 
     @NonNls private static final String MODULE_ROOT = "NewModuleRootManager";
@@ -18,29 +18,44 @@ package apb.tasks;
 import apb.BuildException;
 import apb.Environment;
 import apb.ModuleHelper;
+import apb.compiler.ClassArchive;
+import apb.events.BuildEvent;
 import apb.metadata.Dependency;
 import apb.metadata.Module;
 import apb.metadata.PackageInfo;
 import apb.metadata.PackageType;
+import apb.utils.BuildCache;
+import apb.utils.BuildState;
+import apb.utils.BuildTrace;
 import apb.utils.DirectoryScanner;
 import apb.utils.FileUtils;
+import apb.utils.ParallelJarWriter;
+import apb.utils.StringUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.GregorianCalendar;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.CRC32;
@@ -58,6 +73,22 @@ public class JarTask
 {
     //~ Instance fields ......................................................................................
 
+    /**
+     * The cache of built jars (null for none)
+     */
+    @Nullable private BuildCache cache;
+
+    /**
+     * Classes compiled straight into the jar, added besides the files in the directories (null for none)
+     */
+    @Nullable private ClassArchive classes;
+
+    /**
+     * Whether the classes are compiled straight into the jar, so if they were not compiled in this build
+     * the ones in the current jar are kept (See {@link apb.metadata.CompileInfo#toPackage})
+     */
+    private boolean classesInJar;
+
     private String       comment;
     private boolean      doCompress = true;
     private List<String> excludes, includes;
@@ -65,7 +96,17 @@ public class JarTask
 
     private int               level = Deflater.DEFAULT_COMPRESSION;
     @NotNull private Manifest manifest;
-    private List<File>        sourceDir;
+
+    /**
+     * Whether to generate the same bytes for the same content (See {@link PackageInfo#reproducible})
+     */
+    private boolean    reproducible;
+    private List<File> sourceDir;
+
+    /**
+     * The state of the jar and its files when it was built (null to check timestamps instead)
+     */
+    @Nullable private BuildState state;
 
     //~ Constructors .........................................................................................
 
@@ -90,7 +131,17 @@ public class JarTask
 
         if (packageInfo.type != PackageType.NONE) {
             JarTask jarTask = new JarTask(env, helper.getPackageFile());
+            jarTask.state = helper.getBuildState(STATE_SCOPE + helper.getPackageFile().getName());
+            jarTask.cache = env.getBuildCache();
+            jarTask.setReproducible(packageInfo.reproducible);
             jarTask.addDir(helper.getOutput());
+
+            if (helper.compilesToPackage()) {
+                jarTask.classesInJar = true;
+                jarTask.classes = helper.getClassArchive();
+                helper.setClassArchive(null);
+            }
+
             final String mainClass = packageInfo.mainClass;
 
             if (mainClass != null && !mainClass.isEmpty()) {
@@ -115,6 +166,9 @@ public class JarTask
 
             if (packageInfo.generateSourcesJar) {
                 jarTask = new JarTask(helper.getEnv(), helper.getSourcePackageFile());
+                jarTask.state = helper.getBuildState(STATE_SCOPE + helper.getSourcePackageFile().getName());
+                jarTask.cache = env.getBuildCache();
+                jarTask.setReproducible(packageInfo.reproducible);
                 jarTask.addDir(helper.getSource());
                 jarTask.setExcludes(DirectoryScanner.DEFAULT_EXCLUDES);
                 jarTask.execute();
@@ -140,22 +194,57 @@ public class JarTask
 
     public void execute()
     {
-        long                    jarTimeStamp = checkJarFile();
-        Map<File, List<String>> files = new LinkedHashMap<File, List<String>>();
+        final BuildTrace.Span span = env.startSpan("jar", "task");
 
-        for (File dir : sourceDir) {
-            DirectoryScanner scanner = new DirectoryScanner(dir, includes, excludes);
+        try {
+            long                    jarTimeStamp = checkJarFile();
+            Map<File, List<String>> files = new LinkedHashMap<File, List<String>>();
 
-            try {
-                files.put(dir, scanner.scan());
+            for (File dir : sourceDir) {
+                try {
+                    DirectoryScanner scanner = new DirectoryScanner(env.getFileTree(dir), includes, excludes);
+                    files.put(dir, scanner.scan());
+                }
+                catch (IOException e) {
+                    env.handle(e);
+                }
             }
-            catch (IOException e) {
-                env.handle(e);
+
+            if (classes != null || !uptodate(jarTimeStamp, files)) {
+                if (classes == null && classesInJar && jarTimeStamp != -1) {
+                    keepClasses();
+                }
+
+                if (cache == null) {
+                    buildJar(files);
+                }
+                else {
+                    buildJarCached(cache, files);
+                }
+
+                env.invalidateFileTrees(jarFile);
+                recordState(files);
+
+                int n = 0;
+
+                for (List<String> names : files.values()) {
+                    n += names.size();
+                }
+
+                span.arg("files", n);
             }
-        }
 
-        if (!uptodate(jarTimeStamp, files)) {
-            buildJar(files);
+            if (state != null) {
+                try {
+                    state.save();
+                }
+                catch (IOException e) {
+                    env.handle(e);
+                }
+            }
+        }
+        finally {
+            span.end();
         }
     }
 
@@ -169,6 +258,11 @@ public class JarTask
         excludes = patterns;
     }
 
+    public void setReproducible(boolean reproducible)
+    {
+        this.reproducible = reproducible;
+    }
+
     public void setIncludes(@NotNull List<String> patterns)
     {
         includes = patterns;
@@ -179,6 +273,20 @@ public class JarTask
         sourceDir.add(file);
     }
 
+    /**
+     * Keep the classes of the current jar, as they were not compiled in this build
+     */
+    private void keepClasses()
+    {
+        try {
+            classes = ClassArchive.read(jarFile);
+            env.logVerbose("Keeping %d classes from: %s\n", classes.size(), jarFile);
+        }
+        catch (IOException e) {
+            env.handle(e);
+        }
+    }
+
     private long checkJarFile()
     {
         final boolean exists = jarFile.exists();
@@ -201,47 +309,374 @@ public class JarTask
 
     private void buildJar(Map<File, List<String>> files)
     {
+        final File tmp = new File(jarFile.getPath() + ".tmp");
+
         try {
-            env.logInfo("Building: %s\n", jarFile.getCanonicalPath());
+            final Map<String, File> entries = listEntries(files);
+            long                    bytes = classes == null ? 0 : classes.bytes();
 
-            JarOutputStream jarOutputStream = null;
+            for (File file : entries.values()) {
+                bytes += file == null ? 0 : file.length();
+            }
 
-            boolean success = false;
+            final byte[]                   manifestBytes = manifestBytes();
+            final boolean                  parallel = ParallelJarWriter.fits(entries.size(), bytes);
+            final ParallelJarWriter.Source previous = parallel ? openPrevious(manifestBytes) : null;
 
-            try {
-                jarOutputStream = openJar();
+            env.logInfo(previous == null ? "Building: %s\n" : "Updating: %s\n", jarFile.getCanonicalPath());
+            FileUtils.validateDirectory(jarFile.getParentFile());
 
-                Set<String> addedDirs = new HashSet<String>();
+            // Write to a temporary file if the current jar is being read or might be kept
+            final File target = previous != null || reproducible ? tmp : jarFile;
 
-                for (File dir : files.keySet()) {
-                    for (String fileName : files.get(dir)) {
-                        writeToJar(jarOutputStream, dir.getAbsolutePath(), new File(dir, fileName),
-                                   addedDirs);
-                    }
+            try {
+                if (parallel) {
+                    writeJar(entries, target, manifestBytes, previous);
+                }
+                else {
+                    writeJarSequentially(entries, target, manifestBytes);
                 }
-
-                jarOutputStream.setComment(comment);
-                success = true;
             }
             finally {
-                closeJar(jarOutputStream, success);
+                FileUtils.close(previous);
+            }
+
+            if (target == tmp) {
+                replaceJar(tmp);
+            }
+
+            if (!reproducible) {
+                getHashFile().delete();
             }
         }
         catch (IOException ioe) {
+            tmp.delete();
             jarFile.delete();
             throw new BuildException("Problem creating: " + jarFile + " " + ioe.getMessage(), ioe);
         }
     }
 
-    private JarOutputStream openJar()
+    /**
+     * Open the current jar to copy its unchanged entries, if it was built by this task
+     * with the same manifest & comment and has not been modified since then
+     * @param manifestBytes The content of the manifest of the new jar
+     * @return The current jar or null if it must be fully rebuilt
+     */
+    @Nullable private ParallelJarWriter.Source openPrevious(byte[] manifestBytes)
+    {
+        if (state == null || env.forceBuild() || !jarFile.exists() || state.isModified(jarFile)) {
+            return null;
+        }
+
+        ParallelJarWriter.Source result = ParallelJarWriter.Source.open(jarFile);
+
+        if (result != null && !result.matches(manifestBytes, comment)) {
+            FileUtils.close(result);
+            result = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Replace the jar with a new version.
+     * If the jar is reproducible and the content did not change, the current one is kept, so its timestamp
+     * does not change either, and the hash of its content is published next to it.
+     */
+    private void replaceJar(File newJar)
+        throws IOException
+    {
+        final String hash = reproducible ? FileUtils.md5(newJar) : null;
+
+        if (hash != null && jarFile.exists() && hash.equals(FileUtils.md5(jarFile))) {
+            env.logVerbose("Content not changed: %s\n", jarFile);
+            newJar.delete();
+        }
+        else if (!newJar.renameTo(jarFile) && !(jarFile.delete() && newJar.renameTo(jarFile))) {
+            throw new IOException("Cannot write: " + jarFile);
+        }
+
+        if (hash != null) {
+            publishHash(hash);
+        }
+    }
+
+    /**
+     * Write the hash of the content of the jar to {@link #getHashFile()}, unless it is already there
+     */
+    private void publishHash(String hash)
+        throws IOException
+    {
+        final File hashFile = getHashFile();
+
+        if (hashFile.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(hashFile));
+
+            try {
+                if (hash.equals(reader.readLine())) {
+                    return;
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        FileWriter writer = FileUtils.createWriter(hashFile);
+
+        try {
+            writer.write(hash + "\n");
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The file with the md5 hash of the content of a reproducible jar
+     */
+    private File getHashFile()
+    {
+        return new File(jarFile.getPath() + HASH_EXT);
+    }
+
+    /**
+     * Return the content of the manifest.
+     * For reproducible jars the attributes are written sorted by name, as Manifest keeps them in a hash map.
+     */
+    private byte[] manifestBytes()
+        throws IOException
+    {
+        if (!reproducible) {
+            return ParallelJarWriter.manifestBytes(manifest);
+        }
+
+        final String          version = Attributes.Name.MANIFEST_VERSION.toString();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        writeSection(result, version, manifest.getMainAttributes().getValue(version), manifest.getMainAttributes());
+
+        for (String name : new TreeSet<String>(manifest.getEntries().keySet())) {
+            writeSection(result, "Name", name, manifest.getAttributes(name));
+        }
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Write a section of a manifest, with the specified header first and then the attributes sorted by name
+     */
+    private static void writeSection(ByteArrayOutputStream out, String name, @Nullable String value,
+                                     Attributes attributes)
         throws IOException
     {
-        FileUtils.validateDirectory(jarFile.getParentFile());
+        Map<String, String> sorted = new TreeMap<String, String>();
 
-        final FileOutputStream os = new FileOutputStream(jarFile);
-        final JarOutputStream  jarOutputStream = new JarOutputStream(os, manifest);
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            sorted.put(entry.getKey().toString(), entry.getValue().toString());
+        }
+
+        sorted.remove(name);
+
+        if (value != null) {
+            writeHeader(out, name, value);
+        }
+
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            writeHeader(out, entry.getKey(), entry.getValue());
+        }
+
+        out.write(CRLF);
+    }
+
+    /**
+     * Write a manifest header.
+     * Lines are limited to 72 bytes and continued with a leading space (Without splitting UTF-8 characters)
+     */
+    private static void writeHeader(ByteArrayOutputStream out, String name, String value)
+        throws IOException
+    {
+        final byte[] line = (name + ": " + value).getBytes("UTF-8");
+        int          start = 0;
+        int          max = MANIFEST_LINE_LENGTH;
+
+        while (line.length - start > max) {
+            int end = start + max;
+
+            while ((line[end] & 0xC0) == 0x80) {
+                end--;
+            }
+
+            out.write(line, start, end - start);
+            out.write(CRLF);
+            out.write(' ');
+            start = end;
+            max = MANIFEST_LINE_LENGTH - 1;
+        }
+
+        out.write(line, start, line.length - start);
+        out.write(CRLF);
+    }
+
+    /**
+     * Write the jar compressing the entries concurrently
+     * @param entries The entries to write
+     * @param file The file to write the jar to
+     * @param manifestBytes The content of the manifest
+     * @param previous A previous version of the jar to copy the entries of unchanged files from, or null
+     */
+    private void writeJar(Map<String, File> entries, File file, byte[] manifestBytes,
+                          @Nullable ParallelJarWriter.Source previous)
+        throws IOException
+    {
+        final ParallelJarWriter writer =
+            new ParallelJarWriter(file, manifestBytes, doCompress, level, reproducible ? FIXED_TIME : null);
+        boolean                 success = false;
+        int                     copied = 0;
+
+        try {
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                final String name = entry.getKey();
+                final File   entryFile = entry.getValue();
+                final byte[] content = classes == null ? null : classes.get(name);
+
+                if (content != null) {
+                    env.logVerbose("Adding class... %s\n", name);
+                    writer.addBytes(name, content);
+                }
+                else if (entryFile == null) {
+                    env.logVerbose("Adding dir...   %s\n", name);
+                    writer.addDirectory(name);
+                }
+                else if (previous != null && state != null && !state.isModified(entryFile) &&
+                             writer.copyEntry(previous, name, entryFile)) {
+                    copied++;
+                }
+                else {
+                    env.logVerbose("Adding entry... %s\n", name);
+                    writer.addFile(name, entryFile);
+                }
+            }
+
+            writer.setComment(comment);
+            writer.close();
+            success = true;
+        }
+        finally {
+            if (!success) {
+                writer.abort();
+                file.delete();
+            }
+        }
+
+        if (previous != null) {
+            env.logVerbose("Copied %d unchanged entries\n", copied);
+        }
+    }
+
+    /**
+     * Write the jar with a JarOutputStream, for jars that need Zip64 extensions
+     */
+    private void writeJarSequentially(Map<String, File> entries, File file, byte[] manifestBytes)
+        throws IOException
+    {
+        JarOutputStream jarOutputStream = null;
+
+        boolean success = false;
+
+        try {
+            jarOutputStream = openJar(file, manifestBytes);
+
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                final String name = entry.getKey();
+                final File   entryFile = entry.getValue();
+                final byte[] content = classes == null ? null : classes.get(name);
+
+                if (content != null) {
+                    env.logVerbose("Adding class... %s\n", name);
+                    jarOutputStream.putNextEntry(newEntry(name));
+                    jarOutputStream.write(content);
+                }
+                else if (entryFile == null) {
+                    env.logVerbose("Adding dir...   %s\n", name);
+                    writeDirectory(jarOutputStream, name);
+                }
+                else {
+                    env.logVerbose("Adding entry... %s\n", name);
+                    writeToJar(jarOutputStream, name, entryFile);
+                }
+            }
+
+            jarOutputStream.setComment(comment);
+            success = true;
+        }
+        finally {
+            closeJar(jarOutputStream, success);
+        }
+    }
+
+    /**
+     * Restore the jar from the build cache, or build it and store it there
+     */
+    private void buildJarCached(BuildCache buildCache, Map<File, List<String>> files)
+    {
+        BuildCache.Key key = buildCache.newKey(CACHE_TASK);
+
+        try {
+            key.add(new String(manifestBytes(), "ISO-8859-1"));
+            key.add(String.valueOf(comment)).add(doCompress + ":" + level + ":" + reproducible);
+
+            for (File dir : files.keySet()) {
+                for (String fileName : files.get(dir)) {
+                    final File file = new File(dir, fileName);
+
+                    if (file.isFile()) {
+                        key.add(fileName.replace(File.separatorChar, '/')).add(file);
+                    }
+                }
+            }
+
+            if (classes != null) {
+                for (Map.Entry<String, byte[]> entry : classes.getClasses().entrySet()) {
+                    final byte[] hash = StringUtils.md5Digest().digest(entry.getValue());
+                    key.add(entry.getKey()).add(StringUtils.toHex(hash));
+                }
+            }
+
+            final BuildCache.Entry entry = buildCache.get(key);
+            env.fire(entry == null ? BuildEvent.Kind.CACHE_MISS : BuildEvent.Kind.CACHE_HIT, "jar");
+
+            if (entry != null) {
+                env.logInfo("Restoring from the build cache: %s\n", jarFile.getCanonicalPath());
+
+                if (reproducible) {
+                    final File tmp = new File(jarFile.getPath() + ".tmp");
+                    entry.restore(CACHE_ENTRY, tmp);
+                    replaceJar(tmp);
+                }
+                else {
+                    entry.restore(CACHE_ENTRY, jarFile);
+                }
+
+                return;
+            }
+        }
+        catch (IOException e) {
+            throw new BuildException("Problem creating: " + jarFile + " " + e.getMessage(), e);
+        }
+
+        buildJar(files);
+        buildCache.put(key, Collections.singletonMap(CACHE_ENTRY, jarFile), Collections.<String, String>emptyMap());
+    }
+
+    private JarOutputStream openJar(File file, byte[] manifestBytes)
+        throws IOException
+    {
+        final FileOutputStream os = new FileOutputStream(file);
+        final JarOutputStream  jarOutputStream = new JarOutputStream(os);
         jarOutputStream.setMethod(doCompress ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
         jarOutputStream.setLevel(level);
+        jarOutputStream.putNextEntry(newEntry(JarFile.MANIFEST_NAME));
+        jarOutputStream.write(manifestBytes);
         return jarOutputStream;
     }
 
@@ -262,13 +697,35 @@ public class JarTask
 
     /**
      * Check if the jar file is uptodate.
-     * (The timestamp for all files is lower than the jar one)
+     * (The timestamp for all files is lower than the jar one or, if there is an state,
+     * neither the jar nor any of the files were modified and no file was added or removed)
      * @param jarTimeStamp The timestamp for the jar file
      * @param files The set of files to add
      * @return true if the jar is 'uptodate'
      */
     private boolean uptodate(long jarTimeStamp, Map<File, List<String>> files)
     {
+        if (reproducible && !getHashFile().exists()) {
+            return false;
+        }
+
+        if (state != null) {
+            if (jarTimeStamp == -1 || state.isModified(jarFile)) {
+                return false;
+            }
+
+            final List<File> all = listFiles(files);
+
+            for (File file : all) {
+                if (state.isModified(file)) {
+                    return false;
+                }
+            }
+
+            all.add(jarFile);
+            return !state.retainAll(all);
+        }
+
         for (File dir : files.keySet()) {
             for (String fileName : files.get(dir)) {
                 File file = new File(dir, fileName);
@@ -283,43 +740,99 @@ public class JarTask
         return true;
     }
 
-    private void writeToJar(JarOutputStream jarOut, String baseDir, File file, Set<String> addedDirs)
-        throws IOException
+    /**
+     * Record the state of the jar and the files added to it
+     */
+    private void recordState(Map<File, List<String>> files)
     {
-        String fileName = file.getAbsolutePath();
+        if (state != null) {
+            final List<File> all = listFiles(files);
+            all.add(jarFile);
 
-        if (!fileName.startsWith(baseDir)) {
-            env.handle("Wrong basedir");
-            return;
+            try {
+                for (File file : all) {
+                    state.record(file);
+                }
+            }
+            catch (IOException e) {
+                env.handle(e);
+            }
+
+            state.retainAll(all);
         }
+    }
 
-        fileName = fileName.substring(baseDir.length() + 1).replace(File.separatorChar, '/');
+    private static List<File> listFiles(Map<File, List<String>> files)
+    {
+        List<File> result = new ArrayList<File>();
 
-        if (fileName.isEmpty() || file.length() == 0 || file.isDirectory()) {
-            return;
+        for (File dir : files.keySet()) {
+            for (String fileName : files.get(dir)) {
+                final File file = new File(dir, fileName);
+
+                if (file.isFile()) {
+                    result.add(file);
+                }
+            }
         }
 
-        writeParentDirs(jarOut, fileName, addedDirs);
+        return result;
+    }
 
-        env.logVerbose("Adding entry... %s\n", fileName);
+    /**
+     * Return the entries of the jar, by name, in the order they must be written
+     * (Sorted by name for reproducible jars).
+     * The parent directories of each file are added before it, and mapped to null.
+     * The classes compiled straight into the jar go after the files, also mapped to null.
+     */
+    private Map<String, File> listEntries(Map<File, List<String>> files)
+    {
+        Map<String, File> result = reproducible ? new TreeMap<String, File>() : new LinkedHashMap<String, File>();
 
-        JarEntry entry = new JarEntry(fileName);
-        jarOut.putNextEntry(entry);
+        for (File dir : files.keySet()) {
+            final String baseDir = dir.getAbsolutePath();
 
-        byte[]          arr = new byte[1024];
-        FileInputStream fileIn = new FileInputStream(file);
-        int             n;
+            for (String name : files.get(dir)) {
+                final File file = new File(dir, name);
+                String     fileName = file.getAbsolutePath();
 
-        while ((n = fileIn.read(arr)) > 0) {
-            jarOut.write(arr, 0, n);
+                if (!fileName.startsWith(baseDir)) {
+                    env.handle("Wrong basedir");
+                    continue;
+                }
+
+                fileName = fileName.substring(baseDir.length() + 1).replace(File.separatorChar, '/');
+
+                if (fileName.isEmpty() || file.length() == 0 || file.isDirectory()) {
+                    continue;
+                }
+
+                if (result.containsKey(fileName)) {
+                    env.handle("Duplicate entry: " + fileName);
+                    continue;
+                }
+
+                addParentDirs(result, fileName);
+                result.put(fileName, file);
+            }
         }
 
-        fileIn.close();
-        jarOut.flush();
+        if (classes != null) {
+            for (String name : classes.getClasses().keySet()) {
+                if (result.containsKey(name)) {
+                    env.handle("Duplicate entry: " + name);
+                    continue;
+                }
+
+                addParentDirs(result, name);
+                result.put(name, null);
+            }
+        }
+
+        return result;
     }
 
-    private void writeParentDirs(JarOutputStream jarOut, String fileName, Set<String> addedDirs)
-        throws IOException
+    private static void addParentDirs(Map<String, File> entries, String fileName)
     {
         List<String> directories = new ArrayList<String>();
         int          slashPos = fileName.length();
@@ -327,25 +840,72 @@ public class JarTask
         while ((slashPos = fileName.lastIndexOf('/', slashPos - 1)) != -1) {
             String dirName = fileName.substring(0, slashPos + 1);
 
-            if (!addedDirs.contains(dirName)) {
+            if (!entries.containsKey(dirName)) {
                 directories.add(dirName);
-                addedDirs.add(dirName);
             }
         }
 
         for (int i = directories.size() - 1; i >= 0; i--) {
-            String dirName = directories.get(i);
-            env.logVerbose("Adding dir...   %s\n", dirName);
-            JarEntry ze = new JarEntry(dirName);
-            ze.setSize(0);
-            ze.setMethod(ZipEntry.STORED);
-            ze.setCrc(EMPTY_CRC);
+            entries.put(directories.get(i), null);
+        }
+    }
+
+    private void writeToJar(JarOutputStream jarOut, String fileName, File file)
+        throws IOException
+    {
+        JarEntry entry = newEntry(fileName);
+        jarOut.putNextEntry(entry);
+
+        byte[]          arr = new byte[1024];
+        FileInputStream fileIn = new FileInputStream(file);
+        int             n;
+
+        while ((n = fileIn.read(arr)) > 0) {
+            jarOut.write(arr, 0, n);
+        }
+
+        fileIn.close();
+        jarOut.flush();
+    }
+
+    private void writeDirectory(JarOutputStream jarOut, String dirName)
+        throws IOException
+    {
+        JarEntry ze = newEntry(dirName);
+        ze.setSize(0);
+        ze.setMethod(ZipEntry.STORED);
+        ze.setCrc(EMPTY_CRC);
+
+        jarOut.putNextEntry(ze);
+    }
+
+    private JarEntry newEntry(String name)
+    {
+        JarEntry result = new JarEntry(name);
 
-            jarOut.putNextEntry(ze);
+        if (reproducible) {
+            result.setTime(FIXED_TIME);
         }
+
+        return result;
     }
 
     //~ Static fields/initializers ...........................................................................
 
     private static final long EMPTY_CRC = new CRC32().getValue();
+
+    private static final String STATE_SCOPE = "jar-";
+    private static final String CACHE_TASK = "jar";
+    private static final String CACHE_ENTRY = "package.jar";
+
+    private static final String HASH_EXT = ".md5";
+
+    /**
+     * The time of all the entries of reproducible jars.
+     * (1980-02-01, as 1980-01-01 can fall before the minimum zip time in some time zones)
+     */
+    private static final long FIXED_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+
+    private static final int    MANIFEST_LINE_LENGTH = 72;
+    private static final byte[] CRLF = { '\r', '\n' };
 }
@@ -15,6 +15,7 @@
 
 package apb.tasks;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,6 +28,7 @@ import apb.ModuleHelper;
 import apb.metadata.Dependency;
 import apb.metadata.LocalLibrary;
 
+import apb.utils.BuildTrace;
 import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
@@ -115,39 +117,31 @@ public class JavaTask
 
     public void execute()
     {
-        List<String> args = new ArrayList<String>();
-
-        // add Java executable
-        args.add(FileUtils.findJavaExecutable("java", env));
-
-        // Memory
-
-        args.add("-Xmx" + memory + "m");
-
-        // Pass properties
-        for (Map.Entry<String, String> entry : properties.entrySet()) {
-            args.add("-D" + entry.getKey() + "=" + entry.getValue());
-        }
-
-        args.addAll(javaArgs);
+        final BuildTrace.Span span = env.startSpan("java", "task");
 
-        // add classpath
-        if (classpath != null && !classpath.isEmpty()) {
-            args.add("-classpath");
-            args.add(classpath);
+        try {
+            ExecTask task = new ExecTask(env, command());
+            task.setCurrentDirectory(currentDirectory);
+            task.putAll(environment);
+            task.execute();
+            exitValue = task.getExitValue();
         }
-
-        if (executeJar) {
-            args.add("-jar");
+        finally {
+            span.end();
         }
+    }
 
-        args.add(jarOrClass);
-        args.addAll(cmd);
-        ExecTask task = new ExecTask(env, args);
+    /**
+     * Start the java process without waiting for it, the standard error is redirected to the standard output.
+     * @return The process started
+     */
+    @NotNull Process start()
+        throws IOException
+    {
+        ExecTask task = new ExecTask(env, command());
         task.setCurrentDirectory(currentDirectory);
         task.putAll(environment);
-        task.execute();
-        exitValue = task.getExitValue();
+        return task.start();
     }
 
     public void putEnv(String key, String value)
@@ -200,4 +194,37 @@ public class JavaTask
     {
         this.memory = memory;
     }
+
+    private List<String> command()
+    {
+        List<String> args = new ArrayList<String>();
+
+        // add Java executable
+        args.add(FileUtils.findJavaExecutable("java", env));
+
+        // Memory
+
+        args.add("-Xmx" + memory + "m");
+
+        // Pass properties
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            args.add("-D" + entry.getKey() + "=" + entry.getValue());
+        }
+
+        args.addAll(javaArgs);
+
+        // add classpath
+        if (classpath != null && !classpath.isEmpty()) {
+            args.add("-classpath");
+            args.add(classpath);
+        }
+
+        if (executeJar) {
+            args.add("-jar");
+        }
+
+        args.add(jarOrClass);
+        args.addAll(cmd);
+        return args;
+    }
 }
@@ -0,0 +1,166 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import apb.Environment;
+import apb.ModuleHelper;
+
+import apb.utils.BuildTrace;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compiles in advance, in a single compiler invocation, the modules of a build compiled with the same options,
+ * so the compiler is started, and the JDK and shared libraries are loaded, only once for all of them.
+ * A module is compiled in a batch only if each module it depends on is either compiled in the same batch
+ * or up to date, and its sources are compiled together with the sources of the ones in the batch.
+ * The classes of each module are written to its own output directory.
+ * As the batch is compiled with the class path of all its modules, the classes of each one are checked to use
+ * only the ones in its own class path; if not, the modules are compiled on their own.
+ * (Enabled with the 'batchcompile' property, see {@link Environment#isBatchCompile()})
+ */
+public class JavacBatch
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Environment env;
+
+    /**
+     * The batches, by the key of the options of their modules (See {@link JavacTask#batchKey()})
+     */
+    @NotNull private final Map<String, Map<JavacTask, List<File>>> batches;
+
+    /**
+     * The key of the batch of each module in a batch
+     */
+    @NotNull private final Map<ModuleHelper, String> batchOf;
+
+    /**
+     * The modules of each batch
+     */
+    @NotNull private final Map<String, List<ModuleHelper>> modules;
+
+    /**
+     * The modules that will not be compiled
+     */
+    @NotNull private final Set<ModuleHelper> uptodate;
+
+    //~ Constructors .........................................................................................
+
+    public JavacBatch(@NotNull Environment env)
+    {
+        this.env = env;
+        batches = new LinkedHashMap<String, Map<JavacTask, List<File>>>();
+        batchOf = new HashMap<ModuleHelper, String>();
+        modules = new HashMap<String, List<ModuleHelper>>();
+        uptodate = new HashSet<ModuleHelper>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Add a module to be compiled. Modules must be added after the ones they depend on.
+     * Modules not added are considered to be compiled on their own.
+     * @param module The module
+     * @param task The task to compile it (See {@link JavacTask#forModule})
+     */
+    public void add(@NotNull ModuleHelper module, @NotNull JavacTask task)
+    {
+        final List<File> sources = task.batchSources();
+
+        if (sources == null) {
+            return;
+        }
+
+        final String key = task.batchKey();
+        boolean      dependenciesUptodate = true;
+        boolean      inBatch = true;
+
+        for (ModuleHelper dependency : module.getDirectDependencies()) {
+            if (!uptodate.contains(dependency)) {
+                dependenciesUptodate = false;
+                inBatch &= key.equals(batchOf.get(dependency));
+            }
+        }
+
+        if (sources.isEmpty()) {
+            if (dependenciesUptodate) {
+                uptodate.add(module);
+            }
+        }
+        else if (inBatch) {
+            Map<JavacTask, List<File>> batch = batches.get(key);
+
+            if (batch == null) {
+                batch = new LinkedHashMap<JavacTask, List<File>>();
+                batches.put(key, batch);
+                modules.put(key, new ArrayList<ModuleHelper>());
+            }
+
+            batch.put(task, sources);
+            modules.get(key).add(module);
+            batchOf.put(module, key);
+        }
+    }
+
+    /**
+     * Compile each batch of more than one module
+     * @return The modules compiled, that need not be compiled again in the build
+     */
+    @NotNull public List<ModuleHelper> compile()
+    {
+        List<ModuleHelper> result = new ArrayList<ModuleHelper>();
+
+        for (Map.Entry<String, Map<JavacTask, List<File>>> entry : batches.entrySet()) {
+            final List<ModuleHelper> batch = modules.get(entry.getKey());
+
+            if (batch.size() > 1) {
+                env.logInfo("Compiling %d modules in a batch: %s\n", batch.size(), batch);
+                final BuildTrace.Span span = env.startSpan("javac", "task").arg("modules", batch.toString());
+                int                   files = 0;
+
+                for (List<File> sources : entry.getValue().values()) {
+                    files += sources.size();
+                }
+
+                span.arg("files", files);
+
+                try {
+                    if (JavacTask.compileBatch(entry.getValue())) {
+                        result.addAll(batch);
+                    }
+                }
+                finally {
+                    span.end();
+                }
+            }
+        }
+
+        return result;
+    }
+}
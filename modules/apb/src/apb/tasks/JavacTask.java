@@ -21,25 +21,43 @@ package apb.tasks;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
 
 import apb.Environment;
 import apb.ModuleHelper;
 
+import apb.compiler.ClassArchive;
+import apb.compiler.ClassFileInfo;
+import apb.compiler.CompilerService;
+import apb.compiler.DependencyIndex;
 import apb.compiler.DiagnosticReporter;
 import apb.compiler.JavaC;
+import apb.compiler.ModuleAbi;
+
+import apb.events.BuildEvent;
 
 import apb.metadata.CompileInfo;
 import apb.metadata.LocalLibrary;
 
+import apb.utils.BuildCache;
+import apb.utils.BuildState;
+import apb.utils.BuildTrace;
 import apb.utils.DirectoryScanner;
 import apb.utils.FileUtils;
 import apb.utils.StringUtils;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 //
 // User: emilio
@@ -52,22 +70,57 @@ public class JavacTask
 {
     //~ Instance fields ......................................................................................
 
-    private Map<String, String>       annnotationOptions;
-    @NotNull private final List<File> classPath;
-    private boolean                   debug;
-    private boolean                   deprecated;
-    private List<String>              excludes;
-    private boolean                   failOnWarning;
-    private List<String>              includes;
-    private boolean                   lint;
-    private String                    lintOptions;
-    private DiagnosticReporter        reporter;
-    private String                    source;
-    @NotNull private final List<File> sourceDirs;
-    private String                    target;
-    @NotNull private final File       targetDir;
-    private boolean                   trackUnusedDependencies;
-    private boolean                   warn;
+    /**
+     * The file to publish the ABI of the compiled classes in (null for none)
+     */
+    @Nullable private File                 abiFile;
+    private Map<String, String>            annnotationOptions;
+
+    /**
+     * The cache of compiled classes (null for none)
+     */
+    @Nullable private BuildCache           cache;
+    @NotNull private final List<File>      classPath;
+
+    /**
+     * The files with the ABI published by the modules this one depends on, by their output directory
+     */
+    @NotNull private final Map<File, File> dependencyAbis;
+    private boolean                        debug;
+    private boolean                        deprecated;
+    private List<String>                   excludes;
+    private boolean                        failOnWarning;
+
+    /**
+     * The number of files compiled by the task
+     */
+    private int                            filesCompiled;
+    private List<String>                   includes;
+
+    /**
+     * The file with the dependency index used for incremental compilation (null for none)
+     */
+    @Nullable private File                 indexFile;
+    private boolean                        lint;
+    private String                         lintOptions;
+
+    /**
+     * The package to compile the classes straight into (null to write them to the target directory)
+     */
+    @Nullable private File                 packageFile;
+    private DiagnosticReporter             reporter;
+    private String                         source;
+    @NotNull private final List<File>      sourceDirs;
+
+    /**
+     * The state of the sources when they were compiled (null to check timestamps instead)
+     */
+    @Nullable private BuildState           state;
+    private String                         target;
+    @NotNull private final File            targetDir;
+    private boolean                        trackUnusedDependencies;
+    private boolean                        warn;
+    @NotNull private List<String>          warnExcludes;
 
     //~ Constructors .........................................................................................
 
@@ -77,14 +130,24 @@ public class JavacTask
         this.targetDir = targetDir;
         this.sourceDirs = sourceDirs;
         classPath = new ArrayList<File>();
+        dependencyAbis = new LinkedHashMap<File, File>();
         includes = Collections.singletonList("**/*.java");
         excludes = Collections.emptyList();
+        warnExcludes = Collections.emptyList();
         reporter = new DiagnosticReporter(env);
     }
 
     //~ Methods ..............................................................................................
 
     public static void execute(Environment env)
+    {
+        forModule(env).execute();
+    }
+
+    /**
+     * Create the task to compile the current module
+     */
+    @NotNull public static JavacTask forModule(Environment env)
     {
         ModuleHelper     module = env.getModuleHelper();
         CompileInfo      info = module.getCompileInfo();
@@ -111,111 +174,787 @@ public class JavacTask
         javac.trackUnusedDependencies = info.validateDependencies;
         javac.includes = info.includes();
         javac.excludes = info.excludes();
+        javac.state = module.getBuildState(STATE_SCOPE);
+
+        if (info.toPackage && !module.compilesToPackage()) {
+            env.logVerbose("Classes used outside the package. Writing them to: %s\n", module.getOutput());
+        }
+
+        if (module.compilesToPackage()) {
+            javac.packageFile = module.getPackageFile();
+            module.getAbiFile().delete();
+        }
+        else if (info.incremental) {
+            javac.indexFile = new File(module.getStateDir(), INDEX_FILE);
+            javac.abiFile = module.getAbiFile();
+            javac.cache = env.getBuildCache();
+
+            for (ModuleHelper dependency : module.getDirectDependencies()) {
+                javac.dependencyAbis.put(dependency.getOutput(), dependency.getAbiFile());
+            }
+        }
+        else {
+            // Do not leave an stale ABI for the modules depending on this one
+            module.getAbiFile().delete();
+        }
 
         if (info.defaultErrorFormatter) {
             javac.reporter = null;
         }
         else {
-            javac.reporter.setExcludes(info.warnExcludes());
+            javac.warnExcludes = info.warnExcludes();
+            javac.reporter.setExcludes(javac.warnExcludes);
         }
 
-        javac.execute();
+        return javac;
     }
 
     public void execute()
     {
         validateDirectories(env, sourceDirs, targetDir);
 
-        JavaC jc = new JavaC(reporter);
+        JavaC                 jc = new JavaC(reporter);
+        final BuildTrace.Span span = env.startSpan("javac", "task");
 
-        List<File> files = findFiles();
+        try {
+            if (packageFile != null) {
+                compileToPackage(jc);
+            }
+            else if (indexFile == null || state == null) {
+                List<File> files = findFiles();
 
-        if (files.isEmpty()) {
-            env.logVerbose("Nothing to compile\n");
+                if (files.isEmpty()) {
+                    env.logVerbose("Nothing to compile\n");
+                }
+                else if (!compile(jc, files)) {
+                    return;
+                }
+
+                saveState(files);
+            }
+            else {
+                compileIncrementally(jc, state);
+            }
+        }
+        finally {
+            env.invalidateFileTrees(targetDir);
+            span.arg("files", filesCompiled).end();
+        }
+    }
+
+    /**
+     * Return the sources to compile if the module is compiled in a batch with others (See {@link JavacBatch}),
+     * or null if it must be compiled on its own.
+     * Modules compiled incrementally are only batched when all their sources must be compiled.
+     * If none of their sources was modified, added or removed an empty list is returned, they will be compiled
+     * on their own if the ABI of a dependency changes.
+     */
+    @Nullable List<File> batchSources()
+    {
+        if (packageFile != null || trackUnusedDependencies || cache != null) {
+            return null;
+        }
+
+        validateDirectories(env, sourceDirs, targetDir);
+
+        if (indexFile == null || state == null) {
+            return findFiles();
         }
-        else {
-            env.logInfo("Compiling %3d file%s\n", files.size(), (files.size() > 1) ? "s" : "");
 
-            if (env.isVerbose()) {
-                for (File file : FileUtils.removePrefix(sourceDirs, files)) {
-                    env.logVerbose("         %s\n", file);
+        final List<File> allSources = findSources();
+
+        if (env.forceBuild() || !indexFile.exists()) {
+            return allSources;
+        }
+
+        if (state.retainAll(allSources)) {
+            return null;
+        }
+
+        for (File source : allSources) {
+            if (state.isModified(source)) {
+                return null;
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Return a key identifying the options used to compile, modules with the same key can be compiled together
+     */
+    @NotNull String batchKey()
+    {
+        return compilerOptions() + " " + failOnWarning + " " + (reporter == null) + " " + warnExcludes;
+    }
+
+    /**
+     * Compile the sources of several modules in a single compiler invocation with the options of the first one,
+     * writing the classes of each one to its target directory. The state of each module is recorded
+     * as if it had been compiled on its own.
+     * The batch is compiled with the class path of all the modules, so the classes of each one are verified
+     * to use only the ones in its own class path. If any does not, the classes of the batch are removed and
+     * the modules must be compiled on their own, where the compiler reports the classes it cannot find.
+     * @param sources The sources to compile for each module (See {@link #batchSources()}), in build order
+     * @return true if the compilation succeeded
+     */
+    static boolean compileBatch(@NotNull Map<JavacTask, List<File>> sources)
+    {
+        final JavacTask first = sources.keySet().iterator().next();
+        final JavacTask batch = new JavacTask(first.env, new ArrayList<File>(), first.targetDir);
+        batch.debug = first.debug;
+        batch.deprecated = first.deprecated;
+        batch.lint = first.lint;
+        batch.lintOptions = first.lintOptions;
+        batch.source = first.source;
+        batch.target = first.target;
+        batch.warn = first.warn;
+        batch.failOnWarning = first.failOnWarning;
+        batch.annnotationOptions = first.annnotationOptions;
+        batch.reporter = first.reporter;
+
+        Map<File, File> outputDirs = new LinkedHashMap<File, File>();
+        List<File>      files = new ArrayList<File>();
+
+        for (Map.Entry<JavacTask, List<File>> entry : sources.entrySet()) {
+            final JavacTask task = entry.getKey();
+
+            for (File dir : task.sourceDirs) {
+                batch.sourceDirs.add(dir);
+                outputDirs.put(dir, task.targetDir);
+            }
+
+            addAllNew(batch.classPath, task.classPath);
+            files.addAll(entry.getValue());
+        }
+
+        JavaC jc = new JavaC(batch.reporter);
+        jc.setOutputDirs(outputDirs);
+
+        try {
+            if (!batch.compile(jc, files)) {
+                return false;
+            }
+
+            final Map<File, List<String>> generated = jc.getGeneratedClasses();
+
+            for (Map.Entry<JavacTask, List<File>> entry : sources.entrySet()) {
+                final JavacTask task = entry.getKey();
+                final String    missing = task.missingReference(entry.getValue(), generated);
+
+                if (missing != null) {
+                    first.env.logInfo("Classes compiled to %s use %s, not in their class path. " +
+                                      "Compiling the modules on their own.\n", task.targetDir, missing);
+
+                    for (Map.Entry<JavacTask, List<File>> e : sources.entrySet()) {
+                        e.getKey().deleteClasses(e.getValue(), generated);
+                    }
+
+                    return false;
                 }
+            }
 
-                env.logVerbose("ClassPath: \n");
+            for (Map.Entry<JavacTask, List<File>> entry : sources.entrySet()) {
+                entry.getKey().batchCompiled(entry.getValue(), jc.getGeneratedClasses());
+            }
+        }
+        catch (IOException e) {
+            first.env.handle(e);
+            return false;
+        }
+        finally {
+            for (JavacTask task : sources.keySet()) {
+                first.env.invalidateFileTrees(task.targetDir);
+            }
+        }
+
+        return true;
+    }
 
-                for (File file : classPath) {
-                    env.logVerbose("         %s\n", file);
+    /**
+     * Return a class used by the ones compiled from the sources that is not in the class path of this module
+     * (Nor generated in its target directory, nor in the jdk), or null if there is none.
+     * @param files The sources of this module compiled
+     * @param generated The classes generated by the whole batch, by source
+     */
+    @Nullable private String missingReference(List<File> files, Map<File, List<String>> generated)
+        throws IOException
+    {
+        final List<File>           path = new ArrayList<File>();
+        final Map<File, ZipFile>   jars = new HashMap<File, ZipFile>();
+        final Map<String, Boolean> found = new HashMap<String, Boolean>();
+        final CompilerService      service = CompilerService.getInstance();
+        path.add(targetDir);
+        path.addAll(classPath);
+
+        try {
+            for (File source : files) {
+                final List<String> names = generated.get(FileUtils.normalize(source));
+
+                if (names != null) {
+                    for (String name : names) {
+                        for (String reference : ClassFileInfo.read(classFile(name)).getReferences()) {
+                            Boolean inPath = found.get(reference);
+
+                            if (inPath == null) {
+                                inPath = service.isPlatformClass(reference) || isInPath(path, jars, reference);
+                                found.put(reference, inPath);
+                            }
+
+                            if (!inPath) {
+                                return reference;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            for (ZipFile jar : jars.values()) {
+                jar.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Delete the classes generated from the sources, after compiling them in a batch that was not valid
+     * @param files The sources of this module compiled
+     * @param generated The classes generated by the whole batch, by source
+     */
+    private void deleteClasses(List<File> files, Map<File, List<String>> generated)
+    {
+        for (File source : files) {
+            final List<String> names = generated.get(FileUtils.normalize(source));
+
+            if (names != null) {
+                for (String name : names) {
+                    classFile(name).delete();
+                }
+            }
+        }
+    }
+
+    private File classFile(String className)
+    {
+        return new File(targetDir, className.replace('.', File.separatorChar) + ".class");
+    }
+
+    /**
+     * Whether the class is in any of the directories or jars of the path
+     */
+    private static boolean isInPath(List<File> path, Map<File, ZipFile> jars, String className)
+        throws IOException
+    {
+        final String name = className.replace('.', '/') + ".class";
+
+        for (File file : path) {
+            if (file.isDirectory()) {
+                if (new File(file, name).exists()) {
+                    return true;
                 }
+            }
+            else if (file.isFile()) {
+                ZipFile jar = jars.get(file);
 
-                env.logVerbose("Source:\n");
+                if (jar == null) {
+                    jar = new ZipFile(file);
+                    jars.put(file, jar);
+                }
 
-                for (File dir : sourceDirs) {
-                    env.logVerbose("         %s\n", dir);
+                if (jar.getEntry(name) != null) {
+                    return true;
                 }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the state of the sources compiled in a batch, and rebuild the dependency index
+     * if the module is compiled incrementally
+     * @param files The sources of this module compiled
+     * @param generated The classes generated by the whole batch, by source
+     */
+    private void batchCompiled(List<File> files, Map<File, List<String>> generated)
+        throws IOException
+    {
+        if (indexFile == null || state == null) {
+            saveState(files);
+        }
+        else {
+            rebuildIndex(generated, files);
+        }
+    }
 
-                env.logVerbose("Target directory: %s\n", targetDir);
+    /**
+     * Compile all the sources keeping the classes in memory, for the JarTask to write them into the package.
+     * Nothing is compiled if the package exists and no source was modified, added or removed.
+     * The package is removed once compiled, so it is compiled again if it is not rebuilt in this build.
+     */
+    private void compileToPackage(JavaC jc)
+    {
+        final List<File> sources = findSources();
+        boolean          modified = state == null || state.retainAll(sources) || env.forceBuild() ||
+                                    !packageFile.exists();
+
+        for (Iterator<File> it = sources.iterator(); !modified && it.hasNext();) {
+            modified = state.isModified(it.next());
+        }
+
+        if (!modified) {
+            env.logVerbose("Nothing to compile\n");
+            return;
+        }
+
+        deleteClassFiles();
+
+        final ClassArchive archive = new ClassArchive();
+        jc.setArchive(archive);
+
+        if (!sources.isEmpty() && !compile(jc, sources)) {
+            return;
+        }
+
+        env.logVerbose("Compiled %d classes for: %s\n", archive.size(), packageFile);
+        packageFile.delete();
+        env.invalidateFileTrees(packageFile);
+        env.getModuleHelper().setClassArchive(archive);
+        saveState(sources);
+    }
+
+    /**
+     * Delete the class files in the target directory, left by previous builds that did not compile
+     * to the package, so they are not packaged with the new classes
+     */
+    private void deleteClassFiles()
+    {
+        try {
+            DirectoryScanner scanner =
+                new DirectoryScanner(env.getFileTree(targetDir), CLASS_FILES, Collections.<String>emptyList());
+
+            for (String file : scanner.scan()) {
+                new File(targetDir, file).delete();
             }
+        }
+        catch (IOException e) {
+            env.handle(e);
+        }
+    }
+
+    /**
+     * Compile the modified sources and, transitively, the sources that reference classes
+     * whose ABI changed, either in this module or in the modules it depends on.
+     * Compile everything if there is no index or the value of any constant changed
+     * (Constants are inlined, so their users cannot be tracked).
+     * If there is something to compile and the classes for the current sources, dependencies and options
+     * are in the build cache restore them instead.
+     */
+    private void compileIncrementally(JavaC jc, BuildState sourcesState)
+    {
+        final List<File> allSources = findSources();
+        DependencyIndex  index = env.forceBuild() ? null : DependencyIndex.load(indexFile);
+
+        List<File>  files;
+        Set<String> removedClasses = new HashSet<String>();
 
-            List<String> options = new ArrayList<String>();
+        if (index == null) {
+            index = new DependencyIndex();
+            files = allSources;
+        }
+        else {
+            files = index.modifiedSources(allSources, targetDir, sourcesState);
 
-            if (debug) {
-                options.add("-g");
+            // Delete the classes from removed sources
+            for (File source : index.removedSources(allSources)) {
+                env.logVerbose("Removed source: %s\n", source);
+                removedClasses.addAll(index.remove(source, targetDir));
             }
 
-            if (lint) {
-                if (lintOptions.isEmpty()) {
-                    options.add("-Xlint");
+            addAllNew(files, index.dependents(removedClasses));
+        }
+
+        final boolean dependenciesChanged = checkDependencies(index, files, allSources);
+
+        if (files.isEmpty()) {
+            env.logVerbose("Nothing to compile\n");
+        }
+
+        Set<File> compiled = new HashSet<File>();
+
+        try {
+            final BuildCache.Key key = files.isEmpty() || cache == null ? null : cacheKey(cache, allSources);
+
+            if (key != null) {
+                final BuildCache.Entry entry = cache.get(key);
+                env.fire(entry == null ? BuildEvent.Kind.CACHE_MISS : BuildEvent.Kind.CACHE_HIT, "javac");
+
+                if (entry != null) {
+                    restoreFromCache(entry, index, allSources);
+                    return;
+                }
+
+                env.logVerbose("Classes not found in the build cache\n");
+            }
+
+            while (!files.isEmpty()) {
+                index.deleteClassFiles(files, targetDir);
+
+                if (!compile(jc, files)) {
+                    return;
+                }
+
+                compiled.addAll(files);
+                compiled.addAll(jc.getGeneratedClasses().keySet());
+
+                DependencyIndex.Changes changes = index.update(files, jc.getGeneratedClasses(), targetDir);
+
+                files = new ArrayList<File>();
+
+                if (changes.constantsChanged) {
+                    env.logVerbose("Constant values changed. Compiling all sources.\n");
+                    addAllNew(files, allSources);
                 }
                 else {
-                    options.add("-Xlint:" + lintOptions);
+                    addAllNew(files, index.dependents(changes.abiChanged));
                 }
-            }
 
-            if (deprecated) {
-                options.add("-deprecation");
+                files.removeAll(compiled);
             }
 
-            if (!warn) {
-                options.add("-nowarn");
+            if (!compiled.isEmpty() || !removedClasses.isEmpty() || dependenciesChanged) {
+                index.save(indexFile);
             }
 
-            if (reporter == null && failOnWarning) {
-                options.add("-Werror");
+            saveState(index, compiled, allSources, sourcesState);
+
+            if (key != null) {
+                storeInCache(cache, key, index, allSources);
             }
+        }
+        catch (IOException e) {
+            env.handle(e);
+        }
+    }
+
+    /**
+     * Record the state of the compiled sources and publish the ABI of the module
+     */
+    private void saveState(DependencyIndex index, Collection<File> compiled, List<File> allSources,
+                           BuildState sourcesState)
+        throws IOException
+    {
+        for (File file : compiled) {
+            sourcesState.record(file);
+        }
 
-            if (!source.isEmpty()) {
-                options.add("-source");
-                options.add(source);
+        sourcesState.retainAll(allSources);
+        sourcesState.save();
+
+        if (abiFile != null) {
+            index.getAbi().publish(abiFile);
+        }
+    }
+
+    /**
+     * Return the key of the classes compiled from the sources in the build cache.
+     * It includes the compiler options, the content of the sources and libraries and the ABI of
+     * the modules this one depends on.
+     * @return The key, or null if any element of the classpath cannot be identified
+     */
+    @Nullable private BuildCache.Key cacheKey(BuildCache buildCache, List<File> allSources)
+        throws IOException
+    {
+        BuildCache.Key key = buildCache.newKey(CACHE_TASK);
+
+        for (String option : compilerOptions()) {
+            key.add(option);
+        }
+
+        for (File file : classPath) {
+            final File abi = dependencyAbis.get(file);
+
+            if (abi != null) {
+                final ModuleAbi moduleAbi = ModuleAbi.load(abi);
+
+                if (moduleAbi == null) {
+                    return null;
+                }
+
+                key.add(moduleAbi.getFingerprint());
+            }
+            else if (file.isFile()) {
+                key.add(file);
             }
+            else if (file.exists()) {
+                // An arbitrary directory
+                return null;
+            }
+        }
+
+        for (File source : allSources) {
+            key.add(relativePath(source)).add(source);
+        }
+
+        return key;
+    }
 
-            if (!target.isEmpty()) {
-                options.add("-target");
-                options.add(target);
+    /**
+     * Restore the classes from the build cache and rebuild the dependency index from them
+     */
+    private void restoreFromCache(BuildCache.Entry entry, DependencyIndex oldIndex, List<File> allSources)
+        throws IOException
+    {
+        env.logInfo("Restoring classes from the build cache\n");
+        oldIndex.deleteAllClassFiles(targetDir);
+        entry.restoreAll(targetDir);
+
+        Map<File, List<String>> generated = new HashMap<File, List<String>>();
+
+        for (File source : allSources) {
+            final String classes = entry.getAttribute(relativePath(source));
+            generated.put(source,
+                          classes == null || classes.isEmpty() ? Collections.<String>emptyList()
+                                                               : Arrays.asList(classes.split(" ")));
+        }
+
+        rebuildIndex(generated, allSources);
+    }
+
+    /**
+     * Build a new dependency index after compiling all the sources, then save it and the state of the sources
+     * @param generated The classes generated from each source (It may include sources from other modules)
+     * @param allSources All the sources of the module
+     */
+    private void rebuildIndex(Map<File, List<String>> generated, List<File> allSources)
+        throws IOException
+    {
+        Map<File, List<String>> classes = new HashMap<File, List<String>>();
+
+        for (File source : allSources) {
+            final List<String> names = generated.get(FileUtils.normalize(source));
+            classes.put(source, names == null ? Collections.<String>emptyList() : names);
+        }
+
+        DependencyIndex index = new DependencyIndex();
+        index.update(allSources, classes, targetDir);
+        checkDependencies(index, new ArrayList<File>(), allSources);
+        index.save(indexFile);
+        saveState(index, allSources, allSources, state);
+    }
+
+    /**
+     * Store the classes compiled from all the sources in the build cache
+     */
+    private void storeInCache(BuildCache buildCache, BuildCache.Key key, DependencyIndex index,
+                              List<File> allSources)
+    {
+        Map<String, File>   files = new LinkedHashMap<String, File>();
+        Map<String, String> attributes = new HashMap<String, String>();
+
+        for (File source : allSources) {
+            StringBuilder classes = new StringBuilder();
+
+            for (String className : index.getClasses(source)) {
+                final String name = className.replace('.', '/') + ".class";
+                files.put(name, new File(targetDir, name));
+                classes.append(classes.length() == 0 ? "" : " ").append(className);
             }
 
-            for (Map.Entry<String, String> entry : annnotationOptions.entrySet()) {
-                options.add("-A" + entry.getKey() + "=" + entry.getValue());
+            attributes.put(relativePath(source), classes.toString());
+        }
+
+        buildCache.put(key, files, attributes);
+    }
+
+    /**
+     * Return the path of the source relative to its source directory (Using '/' as separator)
+     */
+    private String relativePath(File source)
+    {
+        final String path = source.getPath();
+
+        for (File dir : sourceDirs) {
+            final String prefix = FileUtils.normalize(dir).getPath() + File.separator;
+
+            if (path.startsWith(prefix)) {
+                return path.substring(prefix.length()).replace(File.separatorChar, '/');
             }
+        }
 
-            final boolean status =
-                jc.compile(files, sourceDirs, targetDir, classPath, options, trackUnusedDependencies);
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Compare the ABI published by the modules this one depends on with the one they had when
+     * this module was compiled, adding to the files to compile the ones referencing classes whose ABI changed.
+     * (All the sources if any constant value changed)
+     * @return true if the ABI of any dependency changed
+     */
+    private boolean checkDependencies(DependencyIndex index, List<File> files, List<File> allSources)
+    {
+        boolean result = false;
 
-            if (reporter != null) {
-                reporter.reportSumary(failOnWarning);
+        for (File file : dependencyAbis.values()) {
+            final ModuleAbi abi = ModuleAbi.load(file);
+
+            // Not compiled incrementally
+            if (abi == null) {
+                continue;
             }
 
-            if (!status) {
-                env.handle("Compilation failed");
+            final String    dependency = FileUtils.normalize(file).getPath();
+            final ModuleAbi previous = index.getDependencyAbi(dependency);
+
+            if (previous == null || !previous.getFingerprint().equals(abi.getFingerprint())) {
+                if (previous != null && abi.constantsChanged(previous)) {
+                    env.logVerbose("Constant values changed in a dependency. Compiling all sources.\n");
+                    addAllNew(files, allSources);
+                }
+                else {
+                    addAllNew(files, index.dependents(abi.changedClasses(previous)));
+                }
+
+                index.setDependencyAbi(dependency, abi);
+                result = true;
             }
-            else if (trackUnusedDependencies) {
-                final List<File> unused = jc.unusedPathElements(classPath);
+        }
 
-                if (!unused.isEmpty()) {
-                    env.handle(StringUtils.appendIndenting("Unused path elements: ",
-                                                           FileUtils.makePath(unused, "\n")));
+        return result;
+    }
+
+    /**
+     * Record the state of the compiled files
+     */
+    private void saveState(List<File> files)
+    {
+        if (state != null) {
+            try {
+                for (File file : files) {
+                    state.record(file);
                 }
+
+                state.save();
+            }
+            catch (IOException e) {
+                env.handle(e);
+            }
+        }
+    }
+
+    private static void addAllNew(List<File> files, Iterable<File> newFiles)
+    {
+        for (File file : newFiles) {
+            if (!files.contains(file)) {
+                files.add(file);
+            }
+        }
+    }
+
+    /**
+     * Compile the specified files
+     * @return true if the compilation succeeded
+     */
+    private boolean compile(JavaC jc, List<File> files)
+    {
+        env.logInfo("Compiling %3d file%s\n", files.size(), (files.size() > 1) ? "s" : "");
+        filesCompiled += files.size();
+
+        if (env.isVerbose()) {
+            for (File file : FileUtils.removePrefix(sourceDirs, files)) {
+                env.logVerbose("         %s\n", file);
+            }
+
+            env.logVerbose("ClassPath: \n");
+
+            for (File file : classPath) {
+                env.logVerbose("         %s\n", file);
+            }
+
+            env.logVerbose("Source:\n");
+
+            for (File dir : sourceDirs) {
+                env.logVerbose("         %s\n", dir);
+            }
+
+            env.logVerbose("Target directory: %s\n", targetDir);
+        }
+
+        final boolean status =
+            jc.compile(files, sourceDirs, targetDir, classPath, compilerOptions(), trackUnusedDependencies);
+
+        if (jc.isWarm()) {
+            env.logVerbose("Reused compiler context, saved ~%d ms\n", jc.getSavedMillis());
+        }
+
+        final String name = env.getCurrentName();
+        env.getCompilerMetrics().record(name == null ? "" : name, jc);
+
+        if (reporter != null) {
+            reporter.reportSumary(failOnWarning);
+        }
+
+        if (!status) {
+            env.handle("Compilation failed");
+        }
+        else if (trackUnusedDependencies) {
+            final List<File> unused = jc.unusedPathElements(classPath);
+
+            if (!unused.isEmpty()) {
+                env.handle(StringUtils.appendIndenting("Unused path elements: ",
+                                                       FileUtils.makePath(unused, "\n")));
+            }
+        }
+
+        return status;
+    }
+
+    private List<String> compilerOptions()
+    {
+        List<String> options = new ArrayList<String>();
+
+        if (debug) {
+            options.add("-g");
+        }
+
+        if (lint) {
+            if (lintOptions.isEmpty()) {
+                options.add("-Xlint");
+            }
+            else {
+                options.add("-Xlint:" + lintOptions);
             }
         }
+
+        if (deprecated) {
+            options.add("-deprecation");
+        }
+
+        if (!warn) {
+            options.add("-nowarn");
+        }
+
+        if (reporter == null && failOnWarning) {
+            options.add("-Werror");
+        }
+
+        if (!source.isEmpty()) {
+            options.add("-source");
+            options.add(source);
+        }
+
+        if (!target.isEmpty()) {
+            options.add("-target");
+            options.add(target);
+        }
+
+        for (Map.Entry<String, String> entry : annnotationOptions.entrySet()) {
+            options.add("-A" + entry.getKey() + "=" + entry.getValue());
+        }
+
+        return options;
     }
 
     private static void validateDirectories(Environment env, List<File> sourceDirs, File targetDir)
@@ -259,7 +998,7 @@ public class JavacTask
 
         try {
             for (File dir : sourceDirs) {
-                DirectoryScanner scanner = new DirectoryScanner(dir, includes, excludes);
+                DirectoryScanner scanner = new DirectoryScanner(env.getFileTree(dir), includes, excludes);
                 scanner.scan();
                 filterByTimeStamp(result, dir, scanner.getIncludedFiles());
             }
@@ -271,6 +1010,30 @@ public class JavacTask
         return result;
     }
 
+    /**
+     * Return all the sources to compile, without checking timestamps
+     */
+    private List<File> findSources()
+    {
+        List<File> result = new ArrayList<File>();
+
+        try {
+            for (File dir : sourceDirs) {
+                DirectoryScanner scanner = new DirectoryScanner(env.getFileTree(dir), includes, excludes);
+                scanner.scan();
+
+                for (String file : scanner.getIncludedFiles()) {
+                    result.add(FileUtils.normalize(new File(dir, file)));
+                }
+            }
+        }
+        catch (IOException e) {
+            env.handle(e);
+        }
+
+        return result;
+    }
+
     private void filterByTimeStamp(List<File> result, File dir, List<String> files)
     {
         for (String file : files) {
@@ -282,7 +1045,9 @@ public class JavacTask
             else {
                 File classFile = new File(targetDir, FileUtils.changeExtension(file, ".class"));
 
-                if (!classFile.exists() || (classFile.lastModified() < sourceFile.lastModified())) {
+                if (!classFile.exists() ||
+                        (state == null ? classFile.lastModified() < sourceFile.lastModified()
+                                       : state.isModified(sourceFile))) {
                     result.add(sourceFile);
                 }
             }
@@ -293,4 +1058,12 @@ public class JavacTask
     {
         classPath.addAll(files);
     }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String INDEX_FILE = "javac.index";
+    private static final String STATE_SCOPE = "javac";
+    private static final String CACHE_TASK = "javac";
+
+    private static final List<String> CLASS_FILES = Collections.singletonList("**/*.class");
 }
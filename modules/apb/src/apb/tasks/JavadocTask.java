@@ -32,6 +32,7 @@ import apb.Proxy;
 import apb.metadata.JavadocInfo;
 import apb.metadata.ResourcesInfo;
 
+import apb.utils.BuildTrace;
 import apb.utils.FileUtils;
 import apb.utils.StringUtils;
 
@@ -171,56 +172,63 @@ public class JavadocTask
 
     public void execute()
     {
-        FileUtils.validateDirectory(outputDirectory);
+        final BuildTrace.Span span = env.startSpan("javadoc", "task");
 
-        copyAllResources();
+        try {
+            FileUtils.validateDirectory(outputDirectory);
 
-        ExecTask execTask = new ExecTask(env, args);
+            copyAllResources();
 
-        args.add(FileUtils.findJavaExecutable("javadoc", env));
+            ExecTask execTask = new ExecTask(env, args);
 
-        execTask.setCurrentDirectory(outputDirectory.getAbsolutePath());
+            args.add(FileUtils.findJavaExecutable("javadoc", env));
 
-        addMemoryArg(args, maxMemory);
-        addProxyArg(args);
+            execTask.setCurrentDirectory(outputDirectory.getAbsolutePath());
 
-        if (!additionalJavadocOptions.isEmpty()) {
-            args.addAll(Arrays.asList(additionalJavadocOptions.split(":")));
-        }
+            addMemoryArg(args, maxMemory);
+            addProxyArg(args);
 
-        if (locale != null) {
-            addArgument("-locale", locale.toString());
-        }
+            if (!additionalJavadocOptions.isEmpty()) {
+                args.addAll(Arrays.asList(additionalJavadocOptions.split(":")));
+            }
 
-        addArgument("-classpath", classPath);
+            if (locale != null) {
+                addArgument("-locale", locale.toString());
+            }
 
-        addArgument("-doclet", doclet);
+            addArgument("-classpath", classPath);
 
-        addArgument("-overview", overview);
+            addArgument("-doclet", doclet);
 
-        args.add("-" + visibility.toString().toLowerCase());
+            addArgument("-overview", overview);
 
-        addArgument("-sourcepath", sourcePath);
+            args.add("-" + visibility.toString().toLowerCase());
 
-        args.add("-subpackages");
-        args.add(FileUtils.makePathFromStrings(packages.isEmpty() ? collectPackages() : packages));
+            addArgument("-sourcepath", sourcePath);
 
-        if (!excludes.isEmpty()) {
-            args.add("-exclude");
-            args.add(FileUtils.makePathFromStrings(excludes));
-        }
+            args.add("-subpackages");
+            args.add(FileUtils.makePathFromStrings(packages.isEmpty() ? collectPackages() : packages));
 
-        args.add(env.isVerbose() ? "-verbose" : "-quiet");
+            if (!excludes.isEmpty()) {
+                args.add("-exclude");
+                args.add(FileUtils.makePathFromStrings(excludes));
+            }
 
-        if (!additionalParams.isEmpty()) {
-            args.addAll(additionalParams);
-        }
+            args.add(env.isVerbose() ? "-verbose" : "-quiet");
 
-        if (doclet.isEmpty()) {
-            addStandardDocletOptions();
-        }
+            if (!additionalParams.isEmpty()) {
+                args.addAll(additionalParams);
+            }
+
+            if (doclet.isEmpty()) {
+                addStandardDocletOptions();
+            }
 
-        execTask.execute();
+            execTask.execute();
+        }
+        finally {
+            span.end();
+        }
     }
 
     public Proxy getActiveProxy()
@@ -27,6 +27,7 @@ import apb.ModuleHelper;
 
 import apb.metadata.LocalLibrary;
 
+import apb.utils.BuildTrace;
 import apb.utils.XmlUtils;
 
 import org.jetbrains.annotations.NotNull;
@@ -70,7 +71,14 @@ public class JdevTask
 
     public void execute()
     {
-        build();
+        final BuildTrace.Span span = env.startSpan("jdev", "task");
+
+        try {
+            build();
+        }
+        finally {
+            span.end();
+        }
     }
 
     public void build()
@@ -19,6 +19,8 @@ import java.io.File;
 
 import apb.Environment;
 
+import apb.utils.BuildTrace;
+
 import org.jetbrains.annotations.NotNull;
 //
 // User: emilio
@@ -54,13 +56,21 @@ public class RemoveTask
     public void execute()
     {
         if (file.exists()) {
-            String type = file.isDirectory() ? "directory" : "file";
-            env.logInfo("Deleting %s %s\n", type, file.getAbsolutePath());
+            final BuildTrace.Span span = env.startSpan("remove", "task");
+
+            try {
+                String type = file.isDirectory() ? "directory" : "file";
+                env.logInfo("Deleting %s %s\n", type, file.getAbsolutePath());
 
-            boolean ok = file.isDirectory() ? doRemoveDir(file) : file.delete();
+                boolean ok = file.isDirectory() ? doRemoveDir(file) : file.delete();
+                env.invalidateFileTrees(file);
 
-            if (!ok) {
-                env.handle("Unable to delete " + type + " " + file.getAbsolutePath());
+                if (!ok) {
+                    env.handle("Unable to delete " + type + " " + file.getAbsolutePath());
+                }
+            }
+            finally {
+                span.end();
             }
         }
     }
@@ -0,0 +1,144 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import apb.Command;
+import apb.Environment;
+
+import apb.events.BuildEvent;
+
+import apb.testrunner.output.DefaultTestReport;
+import apb.testrunner.output.TestReport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A report that fires the events of the suites and tests run in the build process to the listeners
+ * of the build (See {@link BuildEvent}).
+ * The suites may run in other threads, so the events carry the element and command that started the run.
+ */
+class TestEventReport
+    extends DefaultTestReport
+{
+    //~ Instance fields ......................................................................................
+
+    @Nullable private final String               command;
+    @Nullable private final String               element;
+    @NotNull private final transient Environment env;
+
+    //~ Constructors .........................................................................................
+
+    TestEventReport(@NotNull Environment env)
+    {
+        this(env, env.getCurrentName(), commandName(env));
+    }
+
+    private TestEventReport(@NotNull Environment env, @Nullable String element, @Nullable String command)
+    {
+        this.env = env;
+        this.element = element;
+        this.command = command;
+    }
+
+    //~ Methods ..............................................................................................
+
+    @NotNull public TestReport init(@NotNull File reportsDir)
+    {
+        return new TestEventReport(env, element, command);
+    }
+
+    public void startSuite(@NotNull String suiteName)
+    {
+        super.startSuite(suiteName);
+        fire(BuildEvent.Kind.SUITE_STARTED, suiteName, Collections.<String, String>emptyMap());
+    }
+
+    public void endSuite()
+    {
+        final String suite = getCurrentSuite();
+        super.endSuite();
+
+        if (suite != null) {
+            final Map<String, String> attributes = new LinkedHashMap<String, String>();
+            attributes.put("status", getSuiteTestFailures() == 0 ? "passed" : "failed");
+            attributes.put("tests", String.valueOf(getSuiteTestsRun()));
+            attributes.put("failures", String.valueOf(getSuiteTestFailures()));
+            attributes.put("millis", String.valueOf(getSuiteTimeEllapsed()));
+            fire(BuildEvent.Kind.SUITE_FINISHED, suite, attributes);
+        }
+    }
+
+    public void startTest(@NotNull String testName)
+    {
+        super.startTest(testName);
+        fire(BuildEvent.Kind.TEST_STARTED, testName, suiteAttribute());
+    }
+
+    public void endTest()
+    {
+        final String test = getCurrentTest();
+        super.endTest();
+
+        if (test != null) {
+            fire(BuildEvent.Kind.TEST_FINISHED, test, suiteAttribute());
+        }
+    }
+
+    public void failure(@NotNull Throwable t)
+    {
+        super.failure(t);
+        final String              test = getCurrentTest();
+        final Map<String, String> attributes = suiteAttribute();
+        attributes.put("error", String.valueOf(t));
+        fire(BuildEvent.Kind.TEST_FAILED, test == null ? "" : test, attributes);
+    }
+
+    @NotNull private Map<String, String> suiteAttribute()
+    {
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        final String              suite = getCurrentSuite();
+
+        if (suite != null) {
+            result.put("suite", suite);
+        }
+
+        return result;
+    }
+
+    private void fire(@NotNull BuildEvent.Kind kind, @NotNull String name, @NotNull Map<String, String> attributes)
+    {
+        env.fire(new BuildEvent(kind, name, element, command, attributes, 0));
+    }
+
+    @Nullable private static String commandName(@NotNull Environment env)
+    {
+        final Command command = env.getCurrentCommand();
+        return command == null ? null : command.getName();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final long serialVersionUID = 4395027261381208157L;
+}
@@ -0,0 +1,329 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import apb.BuildException;
+import apb.Environment;
+
+import apb.events.BuildEvent;
+
+import apb.testrunner.Main;
+import apb.testrunner.TestRunner;
+import apb.testrunner.output.DefaultTestReport;
+import apb.testrunner.output.TestReport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A pool of forked test runners running the suites of a test module concurrently.
+ * Each runner is a java process started once, that runs the suites it reads from its standard input
+ * (See {@link Main#SUITE_DONE}).
+ * The suites are distributed evenly among the runners, and a runner that finished its own ones takes
+ * the pending suites of the others, starting from the last one.
+ * The output of the runners is logged line by line, and the results of each suite are merged
+ * into the report of the test task.
+ */
+class TestRunnerPool
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Environment env;
+
+    /**
+     * The output and results of the runners, to be logged and merged by the thread running the pool
+     */
+    @NotNull private final BlockingQueue<Event> events;
+
+    /**
+     * The task to start each runner
+     */
+    @NotNull private final JavaTask runner;
+
+    @NotNull private final List<Worker> workers;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create the pool
+     * @param env The environment
+     * @param runner The task to start a test runner in server mode
+     * @param size The number of runners
+     */
+    TestRunnerPool(@NotNull Environment env, @NotNull JavaTask runner, int size)
+    {
+        this.env = env;
+        this.runner = runner;
+        events = new LinkedBlockingQueue<Event>();
+        workers = new ArrayList<Worker>();
+
+        for (int i = 0; i < size; i++) {
+            workers.add(new Worker(i + 1));
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Run the specified suites, waiting for all of them to finish
+     * @param suites The names of the suites
+     * @param report The report to merge the results of the suites into
+     * @return The worse exit value of the suites
+     */
+    int run(@NotNull Collection<String> suites, @NotNull TestReport report)
+    {
+        int i = 0;
+
+        for (String suite : suites) {
+            workers.get(i++ % workers.size()).suites.add(suite);
+        }
+
+        try {
+            for (Worker worker : workers) {
+                worker.startRunner();
+            }
+        }
+        catch (IOException e) {
+            throw new BuildException(e);
+        }
+
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        int result = TestRunner.OK;
+        int running = workers.size();
+
+        try {
+            while (running > 0) {
+                final Event event = events.take();
+
+                if (event.line != null) {
+                    env.logInfo("%s\n", event.line);
+                }
+                else if (event.result != null) {
+                    final int[] r = event.result;
+                    result = TestRunner.worseResult(result, r[0]);
+
+                    if (report instanceof DefaultTestReport) {
+                        ((DefaultTestReport) report).merge(r[1], r[2], r[3], r[4]);
+                    }
+
+                    if (env.hasListeners()) {
+                        env.fire(BuildEvent.Kind.SUITE_FINISHED, event.suite, "status",
+                                 r[0] == TestRunner.OK ? "passed" : "failed", "tests", String.valueOf(r[3]),
+                                 "failures", String.valueOf(r[4]));
+                    }
+                }
+                else if (event.suite != null) {
+                    env.fire(BuildEvent.Kind.SUITE_STARTED, event.suite);
+                }
+                else {
+                    running--;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            env.handle(e);
+            result = TestRunner.ERROR;
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse the results written by a runner after a suite
+     */
+    @NotNull private static int[] parseResult(@NotNull String line)
+    {
+        final String[] values = line.substring(Main.SUITE_DONE.length()).trim().split(" ");
+        final int[]    result = new int[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+        }
+
+        return result;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The results of a suite that could not be run
+     */
+    private static final int[] FAILED = { TestRunner.ERROR, 1, 1, 0, 0 };
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A line of output, the start of a suite (When it only has the suite), the results of a suite,
+     * or the end of a runner (When all are null)
+     */
+    private static class Event
+    {
+        @Nullable private final String line;
+        @Nullable private final int[]  result;
+        @Nullable private final String suite;
+
+        Event(@Nullable String line, @Nullable int[] result)
+        {
+            this(line, result, null);
+        }
+
+        Event(@Nullable String line, @Nullable int[] result, @Nullable String suite)
+        {
+            this.line = line;
+            this.result = result;
+            this.suite = suite;
+        }
+    }
+
+    /**
+     * The thread feeding the suites to a runner
+     */
+    private class Worker
+        extends Thread
+    {
+        @Nullable private Writer                           input;
+        @Nullable private BufferedReader                   output;
+        @Nullable private Process                          process;
+        @NotNull private final LinkedBlockingDeque<String> suites;
+
+        Worker(int n)
+        {
+            super("test-runner-" + n);
+            suites = new LinkedBlockingDeque<String>();
+            setDaemon(true);
+        }
+
+        @Override public void run()
+        {
+            try {
+                String suite;
+
+                while ((suite = nextSuite()) != null) {
+                    runSuite(suite);
+                }
+            }
+            finally {
+                stopRunner();
+                events.add(new Event(null, null));
+            }
+        }
+
+        /**
+         * Return the next suite of the worker, or the last pending one of another worker
+         */
+        @Nullable private String nextSuite()
+        {
+            String result = suites.pollFirst();
+
+            for (int i = 0; result == null && i < workers.size(); i++) {
+                result = workers.get(i).suites.pollLast();
+            }
+
+            return result;
+        }
+
+        /**
+         * Send the suite to the runner and forward its output until the suite finishes.
+         * If the runner dies the suite fails, and a new runner is started for the next one.
+         */
+        private void runSuite(@NotNull String suite)
+        {
+            try {
+                if (process == null) {
+                    startRunner();
+                }
+
+                input.write(suite + "\n");
+                input.flush();
+                events.add(new Event(null, null, suite));
+
+                String line;
+
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith(Main.SUITE_DONE)) {
+                        events.add(new Event(null, parseResult(line), suite));
+                        return;
+                    }
+
+                    events.add(new Event(line, null));
+                }
+
+                events.add(new Event(suite + ": the test runner exited unexpectedly.", null));
+            }
+            catch (IOException e) {
+                events.add(new Event(suite + ": " + e.getMessage(), null));
+            }
+
+            events.add(new Event(null, FAILED, suite));
+            stopRunner();
+        }
+
+        private void startRunner()
+            throws IOException
+        {
+            process = runner.start();
+            input = new OutputStreamWriter(process.getOutputStream());
+            output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        }
+
+        /**
+         * Close the input of the runner, so it exits, forwarding its remaining output
+         */
+        private void stopRunner()
+        {
+            final Process p = process;
+
+            if (p != null) {
+                process = null;
+
+                try {
+                    input.close();
+                    String line;
+
+                    while ((line = output.readLine()) != null) {
+                        events.add(new Event(line, null));
+                    }
+
+                    p.waitFor();
+                }
+                catch (IOException ignore) {
+                    p.destroy();
+                }
+                catch (InterruptedException e) {
+                    p.destroy();
+                }
+            }
+        }
+    }
+}
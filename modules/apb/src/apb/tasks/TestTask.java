@@ -36,15 +36,21 @@ import apb.TestModuleHelper;
 
 import apb.coverage.CoverageBuilder;
 
+import apb.events.BuildEvent;
+
 import apb.metadata.CoverageInfo;
 import apb.metadata.TestModule;
 
 import apb.testrunner.Invocation;
+import apb.testrunner.TestImpact;
 import apb.testrunner.TestRunner;
+import apb.testrunner.TestSetFailedException;
+import apb.testrunner.TestTimings;
 import apb.testrunner.output.TestReport;
 import apb.testrunner.output.TestReportBroadcaster;
 import apb.testrunner.output.SimpleReport;
 
+import apb.utils.BuildTrace;
 import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
@@ -75,6 +81,11 @@ public class TestTask
      */
     boolean forkPerSuite;
 
+    /**
+     * The number of fork'ed processes running the test suites concurrently (Disabled if lower than 2)
+     */
+    int forkPool;
+
     /**
      * The classes to be tested
      */
@@ -128,6 +139,16 @@ public class TestTask
     @NotNull private TestReport          report;
     @Nullable private File               reportDir;
 
+    /**
+     * Run only the suites affected by the classes changed since they last passed
+     */
+    private boolean selectAffected;
+
+    /**
+     * The number of suites to run concurrently in the same process
+     */
+    private int suiteThreads;
+
     //~ Constructors .........................................................................................
 
     public TestTask(@NotNull Environment env)
@@ -150,6 +171,7 @@ public class TestTask
         TestModule testModule = moduleHelper.getModule();
         fork = testModule.fork;
         forkPerSuite = testModule.forkPerSuite;
+        forkPool = testModule.forkPool;
         failIfEmpty = testModule.failIfEmpty;
         failOnError = testModule.failOnError;
 
@@ -164,10 +186,19 @@ public class TestTask
 
         properties = testModule.properties();
         enableAssertions = testModule.enableAssertions;
+        suiteThreads = testModule.suiteThreads;
+
+        // Coverage needs all the suites to run
+        selectAffected = testModule.selectAffected && !coverage.enable;
 
         enableDebugger = testModule.enableDebugger;
 
-        if (forkPerSuite || enableDebugger || coverage.enable) {
+        // The runners of the pool do not support coverage, and only one process can be debugged
+        if (enableDebugger || coverage.enable) {
+            forkPool = 0;
+        }
+
+        if (forkPerSuite || forkPool > 1 || enableDebugger || coverage.enable) {
             fork = true;
         }
     }
@@ -216,39 +247,46 @@ public class TestTask
 
     public void execute()
     {
-        if (env.isVerbose()) {
-            env.logVerbose("Test Classpath: \n");
+        final BuildTrace.Span span = env.startSpan("test", "task");
 
-            for (File file : classPath) {
-                env.logVerbose("                %s\n", file);
-            }
-        }
+        try {
+            if (env.isVerbose()) {
+                env.logVerbose("Test Classpath: \n");
 
-        Properties originalSystemProperties = processProperties(!fork);
+                for (File file : classPath) {
+                    env.logVerbose("                %s\n", file);
+                }
+            }
 
-        int result = fork ? executeOutOfProcess() : executeInProcess();
+            Properties originalSystemProperties = processProperties(!fork);
 
-        if (originalSystemProperties != null) {
-            // restore system properties, only makes sense when not forking..
-            System.setProperties(originalSystemProperties);
-        }
+            int result = fork ? executeOutOfProcess() : executeInProcess();
 
-        if (result == TestRunner.NO_TESTS) {
-            if (failIfEmpty) {
-                throw new BuildException("No tests were executed!");
+            if (originalSystemProperties != null) {
+                // restore system properties, only makes sense when not forking..
+                System.setProperties(originalSystemProperties);
             }
-        }
-        else if (result != TestRunner.OK) {
-            if (failOnError) {
-                throw new BuildException(FAILED_TESTS);
+
+            if (result == TestRunner.NO_TESTS) {
+                if (failIfEmpty) {
+                    throw new BuildException("No tests were executed!");
+                }
             }
+            else if (result != TestRunner.OK) {
+                if (failOnError) {
+                    throw new BuildException(FAILED_TESTS);
+                }
 
-            env.logWarning(FAILED_TESTS);
+                env.logWarning(FAILED_TESTS);
 
-            if (reportDir != null) {
-                env.logWarning("                 Check: %s\n", reportDir);
+                if (reportDir != null) {
+                    env.logWarning("                 Check: %s\n", reportDir);
+                }
             }
         }
+        finally {
+            span.end();
+        }
     }
 
     protected Properties processProperties(boolean setInSystem)
@@ -304,8 +342,9 @@ public class TestTask
             reportSpecsFile = reportSpecs();
             coverageBuilder = new CoverageBuilder(env, moduleHelper);
 
-            return forkPerSuite ? executeEachSuite(reportSpecsFile, coverageBuilder)
-                                : invokeRunner(testCreator(), reportSpecsFile, coverageBuilder, null);
+            return forkPool > 1 ? executePool(reportSpecsFile, coverageBuilder)
+                   : forkPerSuite ? executeEachSuite(reportSpecsFile, coverageBuilder)
+                   : invokeRunner(testCreator(), reportSpecsFile, coverageBuilder, null);
         }
         catch (Exception e) {
             throw new BuildException(e);
@@ -324,24 +363,171 @@ public class TestTask
     private int executeEachSuite(@NotNull File reportSpecsFile, @NotNull CoverageBuilder coverageBuilder)
         throws Exception
     {
-        ClassLoader cl = createClassLoader(classPath);
-
-        final Invocation  creator = testCreator();
-        final Set<String> tests = listTests(cl, creator, moduleHelper.getOutput(), includes, excludes);
+        final Invocation         creator = testCreator();
+        final Collection<String> tests = affected(schedule(listSuites(creator)));
         report.startRun(tests.size());
 
         int result = TestRunner.OK;
 
         for (String testSet : tests) {
-            result = worseResult(result, invokeRunner(creator, reportSpecsFile, coverageBuilder, testSet));
+            env.fire(BuildEvent.Kind.SUITE_STARTED, testSet);
+            final int r = invokeRunner(creator, reportSpecsFile, coverageBuilder, testSet);
+            env.fire(BuildEvent.Kind.SUITE_FINISHED, testSet, "status", r == TestRunner.OK ? "passed" : "failed");
+            result = worseResult(result, r);
         }
 
         report.stopRun();
         return result;
     }
 
+    /**
+     * Run the suites in a pool of fork'ed runners, each one running several suites
+     * (See {@link TestRunnerPool})
+     */
+    private int executePool(@NotNull File reportSpecsFile, @NotNull CoverageBuilder coverageBuilder)
+        throws Exception
+    {
+        final Invocation         creator = testCreator();
+        final Set<String>        found = listSuites(creator);
+        final Collection<String> tests = affected(schedule(found));
+        report.startRun(tests.size());
+
+        int result = TestRunner.OK;
+
+        if (!tests.isEmpty()) {
+            final int runners = Math.min(forkPool, tests.size());
+            env.logVerbose("Running %d suites in %d processes\n", tests.size(), runners);
+
+            final JavaTask runner =
+                runnerTask(creator, reportSpecsFile, coverageBuilder, Arrays.asList("--server"));
+            result = new TestRunnerPool(env, runner, runners).run(tests, report);
+        }
+
+        report.stopRun();
+
+        // Suites skipped because they are not affected or in other shards do not count as missing
+        return failIfEmpty && report.getSuitesRun() == 0 && tests.size() == found.size() ? TestRunner.NO_TESTS
+                                                                                          : result;
+    }
+
+    /**
+     * Return the names of the suites to run, loading them with the test classes
+     */
+    @NotNull private Set<String> listSuites(@NotNull Invocation creator)
+        throws TestSetFailedException
+    {
+        return listTests(createClassLoader(testClassPath()), creator, moduleHelper.getOutput(), includes,
+                         excludes);
+    }
+
+    /**
+     * Return the suites affected by the changes since they last passed, or all of them if the selection
+     * is not enabled or the build is forced (See {@link TestImpact})
+     */
+    @NotNull private Collection<String> affected(@NotNull Collection<String> suites)
+    {
+        if (!selectAffected || env.forceBuild()) {
+            return suites;
+        }
+
+        final List<String> result = new TestImpact(footprintsDir()).affected(suites);
+        env.logVerbose("Running %d of %d suites, the ones affected by the changes\n", result.size(),
+                       suites.size());
+        return result;
+    }
+
+    /**
+     * Return the suites in the shard to run, the longest ones first (See {@link TestTimings})
+     */
+    @NotNull private List<String> schedule(@NotNull Set<String> suites)
+    {
+        final int          shards = env.getShards();
+        final List<String> result = timings().schedule(suites, env.getShard(), shards);
+
+        if (shards > 1) {
+            env.logVerbose("Running shard %d/%d: %d of %d suites\n", env.getShard(), shards, result.size(),
+                           suites.size());
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the times of the suites
+     */
+    @NotNull private TestTimings timings()
+    {
+        return new TestTimings(timingsDir(), env.getSharedTimingsDir() != null);
+    }
+
+    /**
+     * Return the directory with the times of the suites, the one shared by the shards if specified
+     */
+    @NotNull private File timingsDir()
+    {
+        final File shared = env.getSharedTimingsDir();
+        return shared != null ? shared : new File(moduleHelper.getStateDir(), "timings");
+    }
+
+    /**
+     * Return the directory with the footprints of the suites
+     */
+    @NotNull private File footprintsDir()
+    {
+        return new File(moduleHelper.getStateDir(), "footprints");
+    }
+
+    /**
+     * Return the class path to load the tests, including the test classes and the classes to test
+     */
+    @NotNull private Collection<File> testClassPath()
+    {
+        final Collection<File> result = new ArrayList<File>(classPath);
+        result.add(moduleHelper.getOutput());
+        result.addAll(classesToTest);
+        return result;
+    }
+
     private int invokeRunner(@NotNull Invocation creator, @NotNull File reportSpecsFile,
                              @NotNull CoverageBuilder coverageBuilder, @Nullable String suite)
+    {
+        List<String> suiteArgs = new ArrayList<String>();
+
+        if (failIfEmpty) {
+            suiteArgs.add("-f");
+        }
+
+        if (suite == null) {
+            if (suiteThreads > 1) {
+                suiteArgs.add("-j");
+                suiteArgs.add(String.valueOf(suiteThreads));
+            }
+
+            suiteArgs.add("-i");
+            suiteArgs.add(makePathFromStrings(includes));
+            suiteArgs.add("-e");
+            suiteArgs.add(makePathFromStrings(excludes));
+        }
+        else {
+            suiteArgs.add("-s");
+            suiteArgs.add(suite.replace('.', '/'));
+        }
+
+        JavaTask java = runnerTask(creator, reportSpecsFile, coverageBuilder, suiteArgs);
+
+        // Execute
+        java.execute();
+
+        return java.getExitValue();
+    }
+
+    /**
+     * Create the task to run a test runner in a new process
+     * @param suiteArgs The arguments selecting the suites to run
+     */
+    @NotNull private JavaTask runnerTask(@NotNull Invocation creator, @NotNull File reportSpecsFile,
+                                         @NotNull CoverageBuilder coverageBuilder,
+                                         @NotNull List<String> suiteArgs)
     {
         // Create Java Command
         List<String> args = new ArrayList<String>();
@@ -374,10 +560,6 @@ public class TestTask
             args.add("-v");
         }
 
-        if (failIfEmpty) {
-            args.add("-f");
-        }
-
         if (!coverage.enable) {
             args.add("-c");
             final Collection<File> path = new ArrayList<File>(classPath);
@@ -385,15 +567,27 @@ public class TestTask
             args.add(FileUtils.makePath(path));
         }
 
-        if (suite == null) {
-            args.add("-i");
-            args.add(makePathFromStrings(includes));
-            args.add("-e");
-            args.add(makePathFromStrings(excludes));
+        args.addAll(suiteArgs);
+
+        if (selectAffected) {
+            args.add("--footprints");
+            args.add(footprintsDir().getAbsolutePath());
+
+            if (env.forceBuild()) {
+                args.add("-a");
+            }
         }
-        else {
-            args.add("-s");
-            args.add(suite.replace('.', '/'));
+
+        args.add("--timings");
+        args.add(timingsDir().getAbsolutePath());
+
+        if (env.getSharedTimingsDir() == null) {
+            args.add("--local-timings");
+        }
+
+        if (env.getShards() > 1) {
+            args.add("--shard");
+            args.add(env.getShard() + "/" + env.getShards());
         }
 
         args.add("--creator");
@@ -405,10 +599,7 @@ public class TestTask
         // Add the test directory
         args.add(moduleHelper.getOutput().getAbsolutePath());
 
-        // Execute
-        java.execute();
-
-        return java.getExitValue();
+        return java;
     }
 
     private String runnerClassPath()
@@ -447,8 +638,22 @@ public class TestTask
         try {
             TestRunner        runner =
                 new TestRunner(moduleHelper.getOutput(), reportDir, includes, excludes);
-            final ClassLoader loader = createClassLoader(classPath);
-            runner.run(testCreator(), report, loader);
+            final ClassLoader loader = createClassLoader(testClassPath());
+            runner.setThreads(suiteThreads);
+            runner.setFailEmpty(failIfEmpty);
+
+            runner.setTimings(timings(), env.getShard(), env.getShards());
+
+            if (selectAffected) {
+                runner.setImpact(new TestImpact(footprintsDir()), !env.forceBuild());
+            }
+
+            // Report the suites and tests to the listeners of the build too
+            final TestReport r =
+                env.hasListeners()
+                ? new TestReportBroadcaster(Arrays.<TestReport>asList(report, new TestEventReport(env))) : report;
+
+            return runner.run(testCreator(), r, loader);
         }
         catch (Exception e) {
             env.handle(e);
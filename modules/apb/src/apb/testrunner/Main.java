@@ -15,17 +15,21 @@
 
 package apb.testrunner;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
 
+import apb.testrunner.output.DefaultTestReport;
 import apb.testrunner.output.SimpleReport;
 import apb.testrunner.output.TestReport;
 
@@ -54,6 +58,20 @@ public class Main
                            options.getExcludes());
         runner.setVerbose(options.isVerbose());
         runner.setFailEmpty(options.getFailEmpty());
+        runner.setThreads(options.getThreads());
+
+        final String footprints = options.getFootprintsDir();
+
+        if (footprints != null) {
+            runner.setImpact(new TestImpact(new File(footprints)), !options.runAll());
+        }
+
+        final String timings = options.getTimingsDir();
+
+        if (timings != null) {
+            final int[] shard = options.getShard();
+            runner.setTimings(new TestTimings(new File(timings), !options.hasLocalTimings()), shard[0], shard[1]);
+        }
 
         run(runner, options);
     }
@@ -71,7 +89,11 @@ public class Main
 
         int r;
 
-        if (suite == null) {
+        if (options.isServer()) {
+            serve(runner, creator, classloader, report);
+            r = TestRunner.OK;
+        }
+        else if (suite == null) {
             r = runner.run(creator, report, classloader);
         }
         else {
@@ -82,6 +104,53 @@ public class Main
         System.exit(r);
     }
 
+    /**
+     * Run the suites read from the standard input, one per line, until it is closed.
+     * After each suite a line starting with {@link #SUITE_DONE} is written to the standard output, followed by
+     * the exit value, the number of suites run and failed, and the number of tests run and failed.
+     */
+    private static void serve(TestRunner runner, TestSetCreator<?> creator, ClassLoader classloader,
+                              TestReport report)
+    {
+        final PrintStream out = System.out;
+
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String               suite;
+
+            while ((suite = in.readLine()) != null) {
+                int r = TestRunner.ERROR;
+                int suitesRun = 1;
+                int suitesFailed = 1;
+                int testsRun = 0;
+                int failures = 0;
+
+                try {
+                    final TestReport result =
+                        runner.runSuite(suite.replace('.', '/') + ".class", creator, classloader, report);
+                    r = runner.exitValue(result);
+                    suitesRun = result.getSuitesRun();
+                    suitesFailed = result.getSuitesFailed();
+
+                    if (result instanceof DefaultTestReport) {
+                        testsRun = ((DefaultTestReport) result).getTotalTestsRun();
+                        failures = ((DefaultTestReport) result).getTotalFailures();
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                out.println(SUITE_DONE + r + " " + suitesRun + " " + suitesFailed + " " + testsRun + " " +
+                            failures);
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static ClassLoader createClassLoader(TestRunnerOptions options)
         throws TestSetFailedException
     {
@@ -135,4 +204,11 @@ public class Main
             }
         }
     }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The prefix of the line written by the server after running each suite
+     */
+    public static final String SUITE_DONE = "#apb-suite-done ";
 }
@@ -0,0 +1,165 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.testrunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The footprint of each test suite: the classes and resources it used the last time it passed, to run only
+ * the suites affected by the files changed since then.
+ * The footprint of a suite is kept in its own file, with the size and modification time of the class files
+ * and resources it read from the directories of the class path, and of the jars in the class path.
+ * A suite is affected if it has no footprint (It is new or it did not pass), or if any of those files
+ * changed or was removed.
+ */
+public class TestImpact
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The directory with the footprints
+     */
+    @NotNull private final File dir;
+
+    //~ Constructors .........................................................................................
+
+    public TestImpact(@NotNull File dir)
+    {
+        this.dir = dir;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Return the suites affected by the changes, keeping their order
+     * @param suites The names of the suites
+     */
+    @NotNull public List<String> affected(@NotNull Collection<String> suites)
+    {
+        final List<String> result = new ArrayList<String>();
+
+        for (String suite : suites) {
+            if (isAffected(suite)) {
+                result.add(suite);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Whether the suite has to run, because it has no footprint or any file in it changed
+     * @param suite The name of the suite
+     */
+    public boolean isAffected(@NotNull String suite)
+    {
+        final File file = footprintFile(suite);
+
+        if (!file.exists()) {
+            return true;
+        }
+
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader(file));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(" ", 3);
+                    final File     f = new File(fields[2]);
+
+                    if (f.lastModified() != Long.parseLong(fields[0]) || f.length() != Long.parseLong(fields[1])) {
+                        return true;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException e) {
+            return true;
+        }
+        catch (RuntimeException e) {
+            // A malformed footprint
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the footprint of a suite that passed
+     * @param suite The name of the suite
+     * @param files The class files, resources and jars used by the suite
+     */
+    public void record(@NotNull String suite, @NotNull Collection<File> files)
+    {
+        dir.mkdirs();
+        final File file = footprintFile(suite);
+        final File tmp = new File(dir, file.getName() + ".tmp");
+
+        try {
+            final PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+
+            try {
+                for (File f : files) {
+                    writer.println(f.lastModified() + " " + f.length() + " " + f.getAbsolutePath());
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            file.delete();
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            // Without a footprint the suite just runs again
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Remove the footprint of a suite, so it runs again next time
+     */
+    public void remove(@NotNull String suite)
+    {
+        footprintFile(suite).delete();
+    }
+
+    @NotNull private File footprintFile(@NotNull String suite)
+    {
+        return new File(dir, suite + ".footprint");
+    }
+}
@@ -18,18 +18,32 @@ package apb.testrunner;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import apb.testrunner.output.DefaultTestReport;
 import apb.testrunner.output.TestReport;
 
 import apb.utils.DirectoryScanner;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Nov 6, 2008
@@ -44,8 +58,34 @@ public class TestRunner
 
     @NotNull private List<String> excludes;
     private boolean               failEmpty;
+
+    /**
+     * The footprints of the suites, if they are recorded
+     */
+    @Nullable private TestImpact  impact;
     @NotNull private List<String> includes;
     @NotNull private File         outputDir;
+
+    /**
+     * Whether to run only the suites affected by the changes since their footprint was recorded
+     */
+    private boolean selectAffected;
+
+    /**
+     * The shard of the suites to run, and the number of shards
+     */
+    private int shard;
+    private int shards;
+
+    /**
+     * The number of suites to run concurrently
+     */
+    private int threads;
+
+    /**
+     * The times of the suites, if they are recorded
+     */
+    @Nullable private TestTimings timings;
     private boolean               verbose;
 
     //~ Constructors .........................................................................................
@@ -57,6 +97,9 @@ public class TestRunner
         this.includes = includes;
         this.excludes = excludes;
         this.outputDir = outputDir;
+        threads = 1;
+        shard = 1;
+        shards = 1;
     }
 
     //~ Methods ..............................................................................................
@@ -83,33 +126,105 @@ public class TestRunner
     public int run(TestSetCreator<?> creator, TestReport report, ClassLoader testsClassLoader)
         throws TestSetFailedException
     {
-        final Collection<TestSet> tests =
-            loadTests(testsClassLoader, creator, basedir, includes, excludes).values();
+        Collection<TestSet<?>> tests = loadTests(testsClassLoader, creator, basedir, includes, excludes).values();
+        final int              found = tests.size();
+
+        if (timings != null) {
+            tests = schedule(tests);
+
+            if (verbose && shards > 1) {
+                System.out.println("Running shard " + shard + "/" + shards + ": " + tests.size() + " of " + found +
+                                   " suites");
+            }
+        }
+
+        if (impact != null && selectAffected) {
+            final int n = tests.size();
+            tests = affected(tests);
+
+            if (verbose) {
+                System.out.println("Running " + tests.size() + " of " + n +
+                                   " suites, the ones affected by the changes");
+            }
+        }
 
         report = report.init(outputDir);
         report.startRun(tests.size());
 
-        for (TestSet testSet : tests) {
-            testSet.run(testsClassLoader, report);
+        if (threads > 1 && tests.size() > 1) {
+            runConcurrently(tests, creator, report, testsClassLoader);
+        }
+        else {
+            final URL[] dirs = impact == null ? null : classDirectories(testsClassLoader);
+
+            for (TestSet<?> testSet : tests) {
+                run(testSet, creator, report, testsClassLoader, dirs);
+            }
         }
 
         report.stopRun();
 
-        return exitValue(report);
+        // Skipping the suites not affected or in other shards is not the same as not finding any
+        return tests.isEmpty() && found > 0 ? OK : exitValue(report);
     }
 
     public int runOne(String suite, TestSetCreator<?> creator, ClassLoader testsClassLoader,
                       TestReport report)
         throws TestSetFailedException
+    {
+        return exitValue(runSuite(suite, creator, testsClassLoader, report));
+    }
+
+    /**
+     * Run a single suite
+     * @return The report initialized from the specified one, with the results of the suite
+     */
+    @NotNull public TestReport runSuite(String suite, TestSetCreator<?> creator, ClassLoader testsClassLoader,
+                                        TestReport report)
+        throws TestSetFailedException
     {
         report = report.init(outputDir);
         TestSet testSet = loadTest(testsClassLoader, creator, suite);
 
         if (testSet != null) {
-            testSet.run(testsClassLoader, report);
+            run(testSet, creator, report, testsClassLoader,
+                impact == null ? null : classDirectories(testsClassLoader));
         }
 
-        return exitValue(report);
+        return report;
+    }
+
+    /**
+     * Record the footprint of each suite run, the classes it used
+     * @param footprints The footprints of the suites
+     * @param select Whether to run only the suites affected by the changes since their footprint was recorded
+     *               (Suites run explicitly with {@link #runSuite} are always run)
+     */
+    public void setImpact(@NotNull TestImpact footprints, boolean select)
+    {
+        impact = footprints;
+        selectAffected = select;
+    }
+
+    /**
+     * Record the time each suite takes, running the longest ones first
+     * @param times The times of the suites
+     * @param shard The shard of the suites to run, from 1 to the number of shards
+     * @param n The number of shards to split the suites in (See {@link TestTimings#schedule})
+     */
+    public void setTimings(@NotNull TestTimings times, int shard, int n)
+    {
+        timings = times;
+        this.shard = shard;
+        shards = n;
+    }
+
+    /**
+     * Set the number of suites to run concurrently, each one in its own thread and class loader
+     */
+    public void setThreads(int n)
+    {
+        threads = n;
     }
 
     public void setVerbose(boolean v)
@@ -127,12 +242,198 @@ public class TestRunner
         return verbose;
     }
 
-    private static <T> Map<String, TestSet> loadTests(ClassLoader testsClassLoader, TestSetCreator<T> creator,
-                                                      File basedir, List<String> includes,
-                                                      List<String> excludes)
+    /**
+     * Run the suites in a pool of threads.
+     * The classes in the directories of the class path (The test classes and the ones of the modules)
+     * are loaded again for each suite by its own class loader, so suites do not share their static state.
+     * The classes in jars are shared.
+     */
+    private void runConcurrently(@NotNull Collection<TestSet<?>> tests, @NotNull final TestSetCreator<?> creator,
+                                 @NotNull final TestReport report, @NotNull final ClassLoader testsClassLoader)
         throws TestSetFailedException
     {
-        Map<String, TestSet> testSets = new HashMap<String, TestSet>();
+        final URL[]                 dirs = classDirectories(testsClassLoader);
+        final ExecutorService       pool = Executors.newFixedThreadPool(Math.min(threads, tests.size()));
+        final List<Callable<Void>> suites = new ArrayList<Callable<Void>>();
+
+        for (final TestSet<?> testSet : tests) {
+            suites.add(new Callable<Void>() {
+                    public Void call()
+                        throws TestSetFailedException
+                    {
+                        run(testSet, creator, report, testsClassLoader, dirs);
+                        return null;
+                    }
+                });
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(suites)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new TestSetFailedException(e);
+        }
+        catch (ExecutionException e) {
+            throw new TestSetFailedException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run a suite
+     * @param dirs The directories with the classes to load again for the suite, in its own class loader.
+     *             If null the suite runs with the classes loaded by the tests class loader
+     */
+    private void run(@NotNull TestSet<?> testSet, @NotNull TestSetCreator<?> creator, @NotNull TestReport report,
+                     @NotNull ClassLoader testsClassLoader, @Nullable URL[] dirs)
+        throws TestSetFailedException
+    {
+        if (dirs == null) {
+            testSet.run(testsClassLoader, report);
+        }
+        else {
+            final SuiteClassLoader loader = new SuiteClassLoader(dirs, testsClassLoader);
+            final Thread           thread = Thread.currentThread();
+            final ClassLoader      previous = thread.getContextClassLoader();
+            thread.setContextClassLoader(loader);
+
+            try {
+                reload(creator, testSet, loader).run(loader, report);
+            }
+            finally {
+                thread.setContextClassLoader(previous);
+            }
+
+            if (impact != null) {
+                recordFootprint(testSet.getName(), report, loader, testsClassLoader);
+            }
+        }
+
+        if (timings != null && report instanceof DefaultTestReport) {
+            final DefaultTestReport r = (DefaultTestReport) report;
+            timings.record(testSet.getName(), r.getSuiteTimeEllapsed(), r.getSuiteTestTimes());
+        }
+    }
+
+    /**
+     * Record the footprint of a suite just run by the current thread: the class files it loaded,
+     * the resources it read from the directories of the class path, and the jars in the class path.
+     * The footprint of a suite that did not pass is removed instead.
+     */
+    private void recordFootprint(@NotNull String suite, @NotNull TestReport report,
+                                 @NotNull SuiteClassLoader loader, @NotNull ClassLoader testsClassLoader)
+    {
+        if (report instanceof DefaultTestReport) {
+            final DefaultTestReport r = (DefaultTestReport) report;
+
+            if (r.getSuiteTestsRun() > 0 && r.getSuiteTestFailures() == 0) {
+                final Collection<File> files = loader.getFiles();
+
+                if (testsClassLoader instanceof URLClassLoader) {
+                    for (URL url : ((URLClassLoader) testsClassLoader).getURLs()) {
+                        final File file = toFile(url);
+
+                        if (file != null && file.isFile()) {
+                            files.add(file);
+                        }
+                    }
+                }
+
+                impact.record(suite, files);
+                return;
+            }
+        }
+
+        impact.remove(suite);
+    }
+
+    /**
+     * Return the suites affected by the changes since their footprint was recorded
+     */
+    @NotNull private Collection<TestSet<?>> affected(@NotNull Collection<TestSet<?>> tests)
+    {
+        final List<TestSet<?>> result = new ArrayList<TestSet<?>>();
+
+        for (TestSet<?> testSet : tests) {
+            if (impact.isAffected(testSet.getName())) {
+                result.add(testSet);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the suites in the shard to run, the longest ones first
+     */
+    @NotNull private Collection<TestSet<?>> schedule(@NotNull Collection<TestSet<?>> tests)
+    {
+        final Map<String, TestSet<?>> byName = new HashMap<String, TestSet<?>>();
+
+        for (TestSet<?> testSet : tests) {
+            byName.put(testSet.getName(), testSet);
+        }
+
+        final List<TestSet<?>> result = new ArrayList<TestSet<?>>();
+
+        for (String name : timings.schedule(byName.keySet(), shard, shards)) {
+            result.add(byName.get(name));
+        }
+
+        return result;
+    }
+
+    /**
+     * Create the test set again, with the class of the test loaded by the specified class loader
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> TestSet<T> reload(TestSetCreator<T> creator, TestSet<?> testSet, ClassLoader loader)
+        throws TestSetFailedException
+    {
+        try {
+            return creator.createTestSet((Class<T>) loader.loadClass(testSet.getTestClass().getName()));
+        }
+        catch (ClassNotFoundException e) {
+            throw new TestSetFailedException(e);
+        }
+    }
+
+    /**
+     * Return the directories in the class path of a class loader, including the test directory
+     */
+    @NotNull private URL[] classDirectories(@NotNull ClassLoader classLoader)
+        throws TestSetFailedException
+    {
+        final List<URL> result = new ArrayList<URL>();
+
+        try {
+            result.add(basedir.toURI().toURL());
+        }
+        catch (MalformedURLException e) {
+            throw new TestSetFailedException(e);
+        }
+
+        if (classLoader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                if (url.getPath().endsWith("/") && !result.contains(url)) {
+                    result.add(url);
+                }
+            }
+        }
+
+        return result.toArray(new URL[result.size()]);
+    }
+
+    private static <T> Map<String, TestSet<?>> loadTests(ClassLoader testsClassLoader, TestSetCreator<T> creator,
+                                                         File basedir, List<String> includes,
+                                                         List<String> excludes)
+        throws TestSetFailedException
+    {
+        Map<String, TestSet<?>> testSets = new HashMap<String, TestSet<?>>();
 
         // Load tests
         for (String file : collectTests(basedir, excludes, includes)) {
@@ -203,7 +504,20 @@ public class TestRunner
         return result;
     }
 
-    private int exitValue(TestReport testReport)
+    @Nullable private static File toFile(@NotNull URL url)
+    {
+        try {
+            return "file".equals(url.getProtocol()) ? new File(url.toURI()) : null;
+        }
+        catch (URISyntaxException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    int exitValue(TestReport testReport)
     {
         return failEmpty && testReport.getSuitesRun() == 0 ? NO_TESTS
                                                            : testReport.getSuitesFailed() == 0 ? OK : FAILURE;
@@ -215,4 +529,100 @@ public class TestRunner
     public static final int  OK = 0;
     private static final int FAILURE = -2;
     public static final int  ERROR = -3;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A class loader that loads the classes and resources in its path before asking its parent,
+     * so each suite run concurrently gets its own copy of them.
+     * It keeps the class files and the resources it found, the footprint of the suite.
+     */
+    private static class SuiteClassLoader
+        extends URLClassLoader
+    {
+        @NotNull private final Set<File> files;
+
+        SuiteClassLoader(@NotNull URL[] urls, @NotNull ClassLoader parent)
+        {
+            super(urls, parent);
+            files = new TreeSet<File>();
+        }
+
+        /**
+         * Return the class files and resources found
+         */
+        @NotNull synchronized Set<File> getFiles()
+        {
+            return new TreeSet<File>(files);
+        }
+
+        @Override protected Class<?> findClass(String name)
+            throws ClassNotFoundException
+        {
+            final Class<?> result = super.findClass(name);
+
+            // Record the class file
+            findResource(name.replace('.', '/') + ".class");
+            return result;
+        }
+
+        @Override public URL getResource(String name)
+        {
+            final URL result = findResource(name);
+            return result == null ? super.getResource(name) : result;
+        }
+
+        @Override public URL findResource(String name)
+        {
+            final URL result = super.findResource(name);
+
+            if (result != null) {
+                record(result);
+            }
+
+            return result;
+        }
+
+        @Override public Enumeration<URL> findResources(String name)
+            throws IOException
+        {
+            final List<URL> result = Collections.list(super.findResources(name));
+
+            for (URL url : result) {
+                record(url);
+            }
+
+            return Collections.enumeration(result);
+        }
+
+        private synchronized void record(@NotNull URL url)
+        {
+            final File file = toFile(url);
+
+            if (file != null) {
+                files.add(file);
+            }
+        }
+
+        @Override protected synchronized Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException
+        {
+            Class<?> result = findLoadedClass(name);
+
+            if (result == null) {
+                try {
+                    result = findClass(name);
+                }
+                catch (ClassNotFoundException e) {
+                    return super.loadClass(name, resolve);
+                }
+            }
+
+            if (resolve) {
+                resolveClass(result);
+            }
+
+            return result;
+        }
+    }
 }
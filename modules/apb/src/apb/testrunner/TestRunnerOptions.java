@@ -39,18 +39,25 @@ class TestRunnerOptions
 {
     //~ Instance fields ......................................................................................
 
+    private final Option<Boolean>           all;
     @NotNull private File                   basedir;
     private final Option<String>            classpath;
     private Option<String>                  creator;
     private final Option<String>            excludes;
     @NotNull private TestSetCreator.Factory factory;
     private final Option<Boolean>           failEmpty;
+    private final Option<String>            footprints;
     private final Option<String>            includes;
+    private final Option<Boolean>           localTimings;
     private Option<String>                  output;
     private final Option<Boolean>           quiet;
     private Option<String>                  reports;
     private Option<String>                  reportSpecs;
+    private final Option<Boolean>           server;
+    private final Option<String>            shard;
     private final Option<String>            suite;
+    private final Option<Integer>           threads;
+    private final Option<String>            timings;
     private final Option<String>            type;
     private final Option<Boolean>           verbose;
 
@@ -66,6 +73,20 @@ class TestRunnerOptions
         verbose = addBooleanOption('v', "verbose", Messages.VERBOSE);
         failEmpty = addBooleanOption('f', "fail-empty", "Fail if no tests.");
         suite = addOption('s', "suite", "Run the specified test suite", "<test name>");
+        server = addBooleanOption('S', "server", "Run the test suites read from the standard input.");
+        threads = addIntegerOption('j', "threads", "Number of test suites to run concurrently.", "<n>");
+        footprints =
+            addOption("footprints", "Record the classes used by each suite, and run only the affected ones.",
+                      "<directory>");
+        all = addBooleanOption('a', "all", "Run all the suites, even the ones not affected by changes.");
+        timings = addOption("timings", "Record the time of each suite, and run the longest ones first.",
+                            "<directory>");
+        localTimings =
+            addBooleanOption('\0', "local-timings",
+                             "The times are not shared with the other shards, so do not balance them.");
+        shard =
+            addOption("shard", "Run only a shard of the suites, balanced with the times if they are shared.",
+                      "<i/n>");
         includes = addOption('i', "includes", Messages.SET_TO_INCLUDE, Messages.COLON_SEPARATED_PATTERNS);
         includes.setValue(asString(TestModule.DEFAULT_INCLUDES));
         excludes = addOption('e', "excludes", Messages.SET_TO_EXCLUDE, Messages.COLON_SEPARATED_PATTERNS);
@@ -121,7 +142,7 @@ class TestRunnerOptions
         File   result = basedir;
         String out = output.getValue();
 
-        if (out != null) {
+        if (out != null && !out.isEmpty()) {
             File f = new File(out);
 
             if (f.exists() && f.isDirectory()) {
@@ -178,6 +199,11 @@ class TestRunnerOptions
     {
         String result = suite.getValue();
 
+        // Options not specified are empty
+        if (result != null && result.isEmpty()) {
+            return null;
+        }
+
         if (result != null && !result.endsWith(".class")) {
             result += ".class";
         }
@@ -185,6 +211,74 @@ class TestRunnerOptions
         return result;
     }
 
+    /**
+     * Whether to run as a server, running the suites read from the standard input
+     * (See {@link Main#SUITE_DONE})
+     */
+    public boolean isServer()
+    {
+        return server.getValue();
+    }
+
+    /**
+     * Return the number of suites to run concurrently
+     */
+    public int getThreads()
+    {
+        final Integer n = threads.getValue();
+        return n == null || n < 1 ? 1 : n;
+    }
+
+    /**
+     * Return the directory to keep the footprints of the suites, or null if they are not recorded
+     */
+    public String getFootprintsDir()
+    {
+        final String result = footprints.getValue();
+        return result == null || result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Whether to run all the suites, instead of the ones affected by the changes
+     */
+    public boolean runAll()
+    {
+        return all.getValue();
+    }
+
+    /**
+     * Return the directory to keep the times of the suites, or null if they are not recorded
+     */
+    public String getTimingsDir()
+    {
+        final String result = timings.getValue();
+        return result == null || result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Whether the times of the suites are not shared with the runners of the other shards
+     */
+    public boolean hasLocalTimings()
+    {
+        return localTimings.getValue();
+    }
+
+    /**
+     * Return the shard of the suites to run and the number of shards (See {@link TestTimings#parseShard})
+     */
+    @NotNull public int[] getShard()
+    {
+        final String spec = shard.getValue();
+        final int[]  result = spec == null || spec.isEmpty() ? null : TestTimings.parseShard(spec);
+
+        if (spec != null && !spec.isEmpty() && result == null) {
+            System.err.println("Invalid shard: " + spec);
+            System.exit(TestRunner.ERROR);
+        }
+
+        return result == null ? new int[] { 1, 1 } : result;
+    }
+
     public List<String> getReports()
     {
         return asStringList(reports);
@@ -192,7 +286,8 @@ class TestRunnerOptions
 
     public String getReportSpecFile()
     {
-        return reportSpecs.getValue();
+        final String result = reportSpecs.getValue();
+        return result == null || result.isEmpty() ? null : result;
     }
 
     File getBaseDir()
@@ -0,0 +1,314 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.testrunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The time the test suites and their tests took the last time they were run.
+ * It is used to run the longest suites first, so a few slow ones do not delay the end of the run,
+ * and to split the suites in shards that take about the same time, to run them in several machines.
+ * The times of a suite are kept in its own file, so the runners of different processes can record them.
+ * Every machine must compute the same shards, so the times only balance them when they are shared
+ * by all the machines. The suites without a shared time go to the shard given by the hash of their names.
+ */
+public class TestTimings
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The directory with the times of the suites
+     */
+    @NotNull private final File dir;
+
+    /**
+     * Whether the times are shared by all the machines running the shards
+     */
+    private final boolean shared;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create the times of the suites in a directory
+     * @param dir The directory with the times of the suites
+     * @param shared Whether every machine running a shard has the same times, so they can balance the shards
+     */
+    public TestTimings(@NotNull File dir, boolean shared)
+    {
+        this.dir = dir;
+        this.shared = shared;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Parse a shard specification, like "2/4" for the second of four shards
+     * @return The shard and the number of shards, or null if the specification is not valid
+     */
+    @Nullable public static int[] parseShard(@NotNull String spec)
+    {
+        final int pos = spec.indexOf('/');
+
+        try {
+            final int[] result =
+                {
+                    Integer.parseInt(spec.substring(0, pos).trim()),
+                    Integer.parseInt(spec.substring(pos + 1).trim())
+                };
+            return result[0] < 1 || result[0] > result[1] ? null : result;
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the suites to run, in the order to run them
+     * @param suites The names of the suites
+     * @param shard The shard to run, from 1 to the number of shards
+     * @param shards The number of shards to split the suites in
+     * @return The suites in the shard, the longest ones first
+     */
+    @NotNull public List<String> schedule(@NotNull Collection<String> suites, int shard, int shards)
+    {
+        final Map<String, Long> recorded = recordedTimes(suites);
+        final Map<String, Long> times = estimatedTimes(recorded);
+        final List<String>      result = new ArrayList<String>(suites);
+
+        Collections.sort(result,
+                         new Comparator<String>() {
+                             public int compare(String s1, String s2)
+                             {
+                                 final long t1 = times.get(s1);
+                                 final long t2 = times.get(s2);
+                                 return t1 != t2 ? (t1 > t2 ? -1 : 1) : s1.compareTo(s2);
+                             }
+                         });
+
+        if (shards <= 1) {
+            return result;
+        }
+
+        final Map<String, Integer> shardOf = new HashMap<String, Integer>();
+        final long[]               load = new long[shards];
+
+        // The suites without a shared time go to the shard given by their names
+        for (String suite : result) {
+            if (!shared || recorded.get(suite) < 0) {
+                final int s = (suite.hashCode() & Integer.MAX_VALUE) % shards;
+                shardOf.put(suite, s);
+                load[s] += times.get(suite);
+            }
+        }
+
+        // Assign the other ones, the longest first, to the shard with less time so far
+        for (String suite : result) {
+            if (!shardOf.containsKey(suite)) {
+                int min = 0;
+
+                for (int i = 1; i < shards; i++) {
+                    if (load[i] < load[min]) {
+                        min = i;
+                    }
+                }
+
+                shardOf.put(suite, min);
+
+                // A suite that takes no time yet still counts, so they are spread among the shards
+                load[min] += Math.max(times.get(suite), 1);
+            }
+        }
+
+        for (Iterator<String> it = result.iterator(); it.hasNext();) {
+            if (shardOf.get(it.next()) != shard - 1) {
+                it.remove();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the time a suite took the last time it was run, or -1 if it is not known
+     */
+    public long getMillis(@NotNull String suite)
+    {
+        final List<String> lines = read(suite);
+
+        try {
+            return lines.isEmpty() ? -1 : Long.parseLong(lines.get(0));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the time each test of a suite took the last time it was run
+     */
+    @NotNull public Map<String, Long> getTestMillis(@NotNull String suite)
+    {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        final List<String>      lines = read(suite);
+
+        for (int i = 1; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            final int    pos = line.indexOf(' ');
+
+            try {
+                result.put(line.substring(pos + 1), Long.parseLong(line.substring(0, pos)));
+            }
+            catch (RuntimeException ignore) {
+                // Skip malformed lines
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Record the time a suite and its tests took
+     * @param suite The name of the suite
+     * @param millis The time the whole suite took
+     * @param tests The time each test took
+     */
+    public void record(@NotNull String suite, long millis, @NotNull Map<String, Long> tests)
+    {
+        dir.mkdirs();
+        final File file = timingsFile(suite);
+        final File tmp = new File(dir, file.getName() + ".tmp");
+
+        try {
+            final PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+
+            try {
+                writer.println(millis);
+
+                for (Map.Entry<String, Long> entry : tests.entrySet()) {
+                    writer.println(entry.getValue() + " " + entry.getKey());
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            file.delete();
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            // The suite will be scheduled as an unknown one
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Return the time each suite took the last time it was run, or -1 for the ones not run before
+     */
+    @NotNull private Map<String, Long> recordedTimes(@NotNull Collection<String> suites)
+    {
+        final Map<String, Long> result = new HashMap<String, Long>();
+
+        for (String suite : suites) {
+            result.put(suite, getMillis(suite));
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the time each suite is expected to take.
+     * The suites not run before are expected to take the average time of the others.
+     */
+    @NotNull private static Map<String, Long> estimatedTimes(@NotNull Map<String, Long> recorded)
+    {
+        final Map<String, Long> result = new HashMap<String, Long>(recorded);
+        long                    total = 0;
+        int                     known = 0;
+
+        for (long millis : recorded.values()) {
+            if (millis >= 0) {
+                total += millis;
+                known++;
+            }
+        }
+
+        final long average = known == 0 ? 0 : total / known;
+
+        for (Map.Entry<String, Long> entry : result.entrySet()) {
+            if (entry.getValue() < 0) {
+                entry.setValue(average);
+            }
+        }
+
+        return result;
+    }
+
+    @NotNull private List<String> read(@NotNull String suite)
+    {
+        final List<String> result = new ArrayList<String>();
+        final File         file = timingsFile(suite);
+
+        if (file.exists()) {
+            try {
+                final BufferedReader reader = new BufferedReader(new FileReader(file));
+
+                try {
+                    String line;
+
+                    while ((line = reader.readLine()) != null) {
+                        result.add(line);
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            catch (IOException e) {
+                result.clear();
+            }
+        }
+
+        return result;
+    }
+
+    @NotNull private File timingsFile(@NotNull String suite)
+    {
+        return new File(dir, suite + ".timing");
+    }
+}
@@ -22,7 +22,6 @@ import java.io.PrintStream;
 import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Nov 14, 2008
@@ -34,7 +33,10 @@ public abstract class BaseTestReport
 {
     //~ Instance fields ......................................................................................
 
-    @Nullable protected transient SimpleReport.OutputHandler err, out;
+    /**
+     * The handlers capturing the output of the suite run by each thread
+     */
+    @NotNull private final PerThread<OutputHandler> err, out;
 
     protected final String  fileName;
     protected File          reportsDir;
@@ -46,6 +48,8 @@ public abstract class BaseTestReport
     {
         this.showOutput = showOutput;
         this.fileName = fileName;
+        out = new PerThread<OutputHandler>();
+        err = new PerThread<OutputHandler>();
     }
 
     //~ Methods ..............................................................................................
@@ -78,19 +82,23 @@ public abstract class BaseTestReport
             e.nullOutput();
         }
 
-        out = o;
-        err = e;
+        out.set(o);
+        err.set(e);
     }
 
     protected void appendOutAndErr()
     {
         // append the err and output streams to the log
-        if (out != null) {
-            printOutput(SYSTEM_OUT, out.consumeOutput());
+        final OutputHandler o = out.get();
+
+        if (o != null) {
+            printOutput(SYSTEM_OUT, o.consumeOutput());
         }
 
-        if (err != null) {
-            printOutput(SYSTEM_ERR, err.consumeOutput());
+        final OutputHandler e = err.get();
+
+        if (e != null) {
+            printOutput(SYSTEM_ERR, e.consumeOutput());
         }
     }
 
@@ -101,14 +109,18 @@ public abstract class BaseTestReport
 
     private void restoreOutAndErr()
     {
-        if (out != null) {
-            out.restore();
-            out = null;
+        final OutputHandler o = out.get();
+
+        if (o != null) {
+            o.restore();
+            out.set(null);
         }
 
-        if (err != null) {
-            err.restore();
-            err = null;
+        final OutputHandler e = err.get();
+
+        if (e != null) {
+            e.restore();
+            err.set(null);
         }
     }
 
@@ -126,12 +138,16 @@ public abstract class BaseTestReport
 
     //~ Inner Classes ........................................................................................
 
+    /**
+     * Captures the standard output or error of the current thread (See {@link ThreadOutputStream})
+     */
     static class OutputHandler
     {
         private ByteArrayOutputStream byteStream;
         private boolean               isErrorOutput;
         private PrintStream           prev;
         private PrintStream           printStream;
+        private boolean               pushed;
 
         public OutputHandler(boolean err)
         {
@@ -152,15 +168,10 @@ public abstract class BaseTestReport
 
         public void restore()
         {
-            if (prev != null) {
-                if (isErrorOutput) {
-                    System.setErr(prev);
-                }
-                else {
-                    System.setOut(prev);
-                }
-
+            if (pushed) {
+                ThreadOutputStream.getInstance(isErrorOutput).set(prev);
                 prev = null;
+                pushed = false;
             }
         }
 
@@ -178,15 +189,8 @@ public abstract class BaseTestReport
 
         private void push(PrintStream ps)
         {
-            if (isErrorOutput) {
-                prev = System.err;
-                System.setErr(ps);
-            }
-            else {
-                prev = System.out;
-                System.setOut(ps);
-            }
-
+            prev = ThreadOutputStream.getInstance(isErrorOutput).set(ps);
+            pushed = true;
             printStream = ps;
         }
     }
@@ -16,6 +16,8 @@
 package apb.testrunner.output;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,22 +33,16 @@ public abstract class DefaultTestReport
 {
     //~ Instance fields ......................................................................................
 
-    boolean suiteOpen;
+    /**
+     * The suite run by each thread
+     */
+    @NotNull private final PerThread<Suite> suite;
 
-    // current Test & Suite name
-    @Nullable private String currentSuite;
-    @Nullable private String currentTest;
-    private long             startTime;
+    private long startTime;
 
     // Counters for suites
-    private int  suitesFailed;
-    private int  suitesRun;
-    private long suiteStartTime;
-
-    // Counters for the current suite
-
-    private int suiteTestFailures;
-    private int suiteTestsRun;
+    private int suitesFailed;
+    private int suitesRun;
 
     // Cumulative Counters
     private int totalFailures;
@@ -57,9 +53,8 @@ public abstract class DefaultTestReport
 
     public DefaultTestReport()
     {
-        suiteTestsRun = 0;
+        suite = new PerThread<Suite>();
         totalTestsRun = 0;
-        suiteTestFailures = 0;
         totalFailures = 0;
         suitesFailed = 0;
         suitesRun = 0;
@@ -69,27 +64,44 @@ public abstract class DefaultTestReport
 
     @Nullable public final String getCurrentSuite()
     {
-        return currentSuite;
+        final Suite s = suite.get();
+        return s == null ? null : s.name;
     }
 
     @Nullable public final String getCurrentTest()
     {
-        return currentTest;
+        final Suite s = suite.get();
+        return s == null ? null : s.test;
     }
 
     public int getSuiteTestFailures()
     {
-        return suiteTestFailures;
+        final Suite s = suite.get();
+        return s == null ? 0 : s.testFailures;
     }
 
     public int getSuiteTestsRun()
     {
-        return suiteTestsRun;
+        final Suite s = suite.get();
+        return s == null ? 0 : s.testsRun;
     }
 
+    /**
+     * Return the time spent by the current suite, until now or until it ended
+     */
     public long getSuiteTimeEllapsed()
     {
-        return System.currentTimeMillis() - suiteStartTime;
+        final Suite s = suite.get();
+        return s == null ? 0 : (s.open ? System.currentTimeMillis() : s.endTime) - s.startTime;
+    }
+
+    /**
+     * Return the time spent by each test of the current suite, in the order they were run
+     */
+    @NotNull public Map<String, Long> getSuiteTestTimes()
+    {
+        final Suite s = suite.get();
+        return s == null ? new LinkedHashMap<String, Long>() : new LinkedHashMap<String, Long>(s.testTimes);
     }
 
     public long getTimeEllapsed()
@@ -97,12 +109,12 @@ public abstract class DefaultTestReport
         return System.currentTimeMillis() - startTime;
     }
 
-    public int getSuitesFailed()
+    public synchronized int getSuitesFailed()
     {
         return suitesFailed;
     }
 
-    public int getSuitesRun()
+    public synchronized int getSuitesRun()
     {
         return suitesRun;
     }
@@ -112,12 +124,12 @@ public abstract class DefaultTestReport
         return totalSuites;
     }
 
-    public int getTotalFailures()
+    public synchronized int getTotalFailures()
     {
         return totalFailures;
     }
 
-    public int getTotalTestsRun()
+    public synchronized int getTotalTestsRun()
     {
         return totalTestsRun;
     }
@@ -130,46 +142,123 @@ public abstract class DefaultTestReport
 
     public void stopRun() {}
 
+    /**
+     * Start a suite in the current thread. Each thread can run a different suite at the same time.
+     */
     public void startSuite(@NotNull String suiteName)
     {
-        suiteOpen = true;
-        currentSuite = suiteName;
-        suiteTestsRun = 0;
-        suiteTestFailures = 0;
-        suiteStartTime = System.currentTimeMillis();
+        suite.set(new Suite(suiteName));
     }
 
     public void endSuite()
     {
-        if (suiteOpen) {
-            suitesRun++;
+        final Suite s = suite.get();
 
-            if (suiteTestFailures > 0) {
-                suitesFailed++;
-            }
+        if (s != null && s.open) {
+            s.open = false;
+            s.endTime = System.currentTimeMillis();
 
-            suiteOpen = false;
+            synchronized (this) {
+                suitesRun++;
+
+                if (s.testFailures > 0) {
+                    suitesFailed++;
+                }
+            }
         }
     }
 
     public void startTest(@NotNull String testName)
     {
-        currentTest = testName;
+        final Suite s = suite.get();
+
+        if (s != null) {
+            s.test = testName;
+            s.testStartTime = System.currentTimeMillis();
+        }
     }
 
     public void endTest()
     {
-        suiteTestsRun++;
-        totalTestsRun++;
+        final Suite s = suite.get();
+
+        if (s != null) {
+            s.testsRun++;
+
+            if (s.test != null) {
+                s.testTimes.put(s.test, System.currentTimeMillis() - s.testStartTime);
+            }
+        }
+
+        synchronized (this) {
+            totalTestsRun++;
+        }
     }
 
     public void failure(@NotNull Throwable t)
     {
-        suiteTestFailures++;
-        totalFailures++;
+        final Suite s = suite.get();
+
+        if (s != null) {
+            s.testFailures++;
+        }
+
+        synchronized (this) {
+            totalFailures++;
+        }
+    }
+
+    /**
+     * Whether the current thread started a suite that did not end yet
+     */
+    boolean isSuiteOpen()
+    {
+        final Suite s = suite.get();
+        return s != null && s.open;
+    }
+
+    /**
+     * Add the results of suites run by another report, like the one of a forked test runner
+     * @param suites The number of suites run
+     * @param failedSuites The number of suites with failures
+     * @param tests The number of tests run
+     * @param failures The number of tests failed
+     */
+    public synchronized void merge(int suites, int failedSuites, int tests, int failures)
+    {
+        suitesRun += suites;
+        suitesFailed += failedSuites;
+        totalTestsRun += tests;
+        totalFailures += failures;
     }
 
     //~ Static fields/initializers ...........................................................................
 
     private static final long serialVersionUID = 2748763729187869688L;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The state of the suite run by a thread
+     */
+    private static class Suite
+    {
+        private long                             endTime;
+        @NotNull private final String            name;
+        private boolean                          open;
+        private final long                       startTime;
+        @Nullable private String                 test;
+        private int                              testFailures;
+        private long                             testStartTime;
+        private int                              testsRun;
+        @NotNull private final Map<String, Long> testTimes;
+
+        Suite(@NotNull String name)
+        {
+            this.name = name;
+            open = true;
+            startTime = System.currentTimeMillis();
+            testTimes = new LinkedHashMap<String, Long>();
+        }
+    }
 }
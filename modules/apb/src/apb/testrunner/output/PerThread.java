@@ -0,0 +1,67 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.testrunner.output;
+
+import java.io.Serializable;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A value kept for each thread, used by the reports to keep the state of the suite being run by each thread,
+ * so several suites can be reported concurrently.
+ * It can be part of a report specification, but the values are not serialized.
+ */
+final class PerThread<T>
+    implements Serializable
+{
+    //~ Instance fields ......................................................................................
+
+    @Nullable private transient ThreadLocal<T> values;
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Return the value for the current thread, or null if none was set
+     */
+    @Nullable T get()
+    {
+        return values().get();
+    }
+
+    /**
+     * Set the value for the current thread
+     */
+    void set(@Nullable T value)
+    {
+        values().set(value);
+    }
+
+    private synchronized ThreadLocal<T> values()
+    {
+        if (values == null) {
+            values = new ThreadLocal<T>();
+        }
+
+        return values;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final long serialVersionUID = -3019823316634046475L;
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import apb.utils.StringUtils;
@@ -36,6 +37,9 @@ public class SimpleReport
 {
     //~ Instance fields ......................................................................................
 
+    /**
+     * The failures not printed yet, of all the suites
+     */
     @Nullable private transient List<Failure> failures;
     @NotNull private transient PrintWriter    output;
     private boolean                           showDetail;
@@ -45,7 +49,7 @@ public class SimpleReport
     public SimpleReport(boolean showOutput, boolean showDetail)
     {
         super(showOutput, "");
-        output = new PrintWriter(System.out, true);
+        output = new PrintWriter(ThreadOutputStream.originalOut(), true);
         this.showDetail = showDetail;
     }
 
@@ -63,15 +67,6 @@ public class SimpleReport
 
     //~ Methods ..............................................................................................
 
-    public void startSuite(@NotNull String suiteName)
-    {
-        super.startSuite(suiteName);
-
-        if (showDetail) {
-            output.printf("Suite (%2d/%2d): %-50s ", getSuitesRun() + 1, getTotalSuites(), suiteName);
-        }
-    }
-
     public void startRun(int n)
     {
         super.startRun(n);
@@ -92,15 +87,21 @@ public class SimpleReport
         }
     }
 
+    /**
+     * End the suite, printing its details all at once, so the ones of suites run concurrently do not mix
+     */
     public void endSuite()
     {
-        if (suiteOpen) {
-            super.endSuite();
-
-            if (showDetail) {
-                output.printf("%5d tests run in %6.3f seconds.", getSuiteTestsRun(),
-                              getSuiteTimeEllapsed() / ONE_SECOND);
-                printFailures(getSuiteTestFailures());
+        if (isSuiteOpen()) {
+            synchronized (this) {
+                super.endSuite();
+
+                if (showDetail) {
+                    output.printf("Suite (%2d/%2d): %-50s ", getSuitesRun(), getTotalSuites(), getCurrentSuite());
+                    output.printf("%5d tests run in %6.3f seconds.", getSuiteTestsRun(),
+                                  getSuiteTimeEllapsed() / ONE_SECOND);
+                    printFailures(getSuiteTestFailures());
+                }
             }
         }
     }
@@ -116,7 +117,7 @@ public class SimpleReport
         endTest();
 
         final List<Failure> fs = failures == null ? (failures = new ArrayList<Failure>()) : failures;
-        fs.add(new Failure(getCurrentTest(), t));
+        fs.add(new Failure(getCurrentSuite(), getCurrentTest(), t));
     }
 
     @NotNull public SimpleReport init(@NotNull File dir)
@@ -137,7 +138,10 @@ public class SimpleReport
         }
     }
 
-    private void printFailures(int f)
+    /**
+     * Print the failures of the current suite, or of all of them if there is none
+     */
+    private synchronized void printFailures(int f)
     {
         if (f > 0) {
             output.printf(" %5d failures.", f);
@@ -150,14 +154,26 @@ public class SimpleReport
         final List<Failure> fs = failures;
 
         if (fs != null && !fs.isEmpty()) {
-            printTitle("Tests Failed");
+            final String suite = showDetail ? getCurrentSuite() : null;
+            boolean      title = false;
+
+            for (Iterator<Failure> it = fs.iterator(); it.hasNext();) {
+                final Failure failure = it.next();
+
+                if (suite == null || suite.equals(failure.suite)) {
+                    if (!title) {
+                        printTitle("Tests Failed");
+                        title = true;
+                    }
 
-            for (Failure failure : fs) {
-                failure.print(output);
+                    failure.print(output);
+                    it.remove();
+                }
             }
 
-            fs.clear();
-            printSeparator();
+            if (title) {
+                printSeparator();
+            }
         }
     }
 
@@ -187,10 +203,12 @@ public class SimpleReport
     private static class Failure
     {
         private Throwable cause;
+        private String    suite;
         private String    test;
 
-        public Failure(String test, Throwable cause)
+        public Failure(String suite, String test, Throwable cause)
         {
+            this.suite = suite;
             this.test = test;
             this.cause = cause;
         }
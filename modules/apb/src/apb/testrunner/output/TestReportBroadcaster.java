@@ -116,6 +116,17 @@ public class TestReportBroadcaster
         }
     }
 
+    public void merge(int suites, int failedSuites, int tests, int failures)
+    {
+        super.merge(suites, failedSuites, tests, failures);
+
+        for (TestReport report : reports) {
+            if (report instanceof DefaultTestReport) {
+                ((DefaultTestReport) report).merge(suites, failedSuites, tests, failures);
+            }
+        }
+    }
+
     //~ Static fields/initializers ...........................................................................
 
     private static final long serialVersionUID = -7676644903283190123L;
@@ -0,0 +1,121 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.testrunner.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The stream installed as the standard output or error to capture the output of the test suites.
+ * Each thread (and the threads it starts) can write to its own stream, so the output of suites running
+ * concurrently is captured separately. Threads without one write to the original stream.
+ */
+class ThreadOutputStream
+    extends OutputStream
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final PrintStream original;
+
+    @NotNull private final InheritableThreadLocal<PrintStream> streams;
+
+    //~ Constructors .........................................................................................
+
+    private ThreadOutputStream(@NotNull PrintStream original)
+    {
+        this.original = original;
+        streams = new InheritableThreadLocal<PrintStream>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Return the stream for the standard output or error, installing it if it was not
+     * @param err Whether to return the one for the standard error
+     */
+    @NotNull static synchronized ThreadOutputStream getInstance(boolean err)
+    {
+        if (err) {
+            if (stderr == null) {
+                stderr = new ThreadOutputStream(System.err);
+                System.setErr(new PrintStream(stderr, true));
+            }
+
+            return stderr;
+        }
+
+        if (stdout == null) {
+            stdout = new ThreadOutputStream(System.out);
+            System.setOut(new PrintStream(stdout, true));
+        }
+
+        return stdout;
+    }
+
+    /**
+     * Return the original standard output, the one the output not captured is written to
+     */
+    @NotNull static synchronized PrintStream originalOut()
+    {
+        return stdout == null ? System.out : stdout.original;
+    }
+
+    /**
+     * Set the stream the current thread writes to
+     * @param stream The stream, or null to write to the original one
+     * @return The stream the thread was writing to
+     */
+    @Nullable PrintStream set(@Nullable PrintStream stream)
+    {
+        final PrintStream result = streams.get();
+        streams.set(stream);
+        return result;
+    }
+
+    public void write(int b)
+    {
+        target().write(b);
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+        target().write(b, off, len);
+    }
+
+    public void flush()
+        throws IOException
+    {
+        target().flush();
+    }
+
+    @NotNull private PrintStream target()
+    {
+        final PrintStream result = streams.get();
+        return result == null ? original : result;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    @Nullable private static ThreadOutputStream stderr;
+    @Nullable private static ThreadOutputStream stdout;
+}
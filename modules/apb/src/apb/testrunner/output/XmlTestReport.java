@@ -63,29 +63,9 @@ public class XmlTestReport
     String TIMESTAMP = "timestamp";
 
     /**
-     * The XML document.
+     * The document of the suite run by each thread
      */
-    private Document doc;
-
-    /**
-     * tests that failed.
-     */
-    private Set<String> failedTests = new HashSet<String>();
-
-    /**
-     * The wrapper for the whole testsuite.
-     */
-    private Element rootElement;
-
-    /**
-     * Element for the current test.
-     */
-    private Map<CharSequence, Element> testElements = new HashMap<CharSequence, Element>();
-
-    /**
-     * Timing helper.
-     */
-    private Map<String, Long> testStarts = new HashMap<String, Long>();
+    @NotNull private final PerThread<SuiteDocument> documents = new PerThread<SuiteDocument>();
 
     //~ Constructors .........................................................................................
 
@@ -100,68 +80,74 @@ public class XmlTestReport
     {
         super.startSuite(suiteName);
 
-        doc = getDocumentBuilder().newDocument();
+        final SuiteDocument d = new SuiteDocument();
+        documents.set(d);
+
+        d.doc = getDocumentBuilder().newDocument();
 
-        rootElement = doc.createElement(TESTSUITE);
-        doc.appendChild(rootElement);
+        d.rootElement = d.doc.createElement(TESTSUITE);
+        d.doc.appendChild(d.rootElement);
 
-        rootElement.setAttribute(ATTR_NAME, suiteName);
+        d.rootElement.setAttribute(ATTR_NAME, suiteName);
 
         //add the timestamp
         final String timestamp = timestamp();
-        rootElement.setAttribute(TIMESTAMP, timestamp);
+        d.rootElement.setAttribute(TIMESTAMP, timestamp);
 
         //and the hostname.
-        rootElement.setAttribute(HOSTNAME, getHostname());
+        d.rootElement.setAttribute(HOSTNAME, getHostname());
 
         // Output properties
-        Element propsElement = doc.createElement(PROPERTIES);
-        rootElement.appendChild(propsElement);
+        Element propsElement = d.doc.createElement(PROPERTIES);
+        d.rootElement.appendChild(propsElement);
     }
 
     public void endSuite()
     {
-        if (suiteOpen) {
+        if (isSuiteOpen()) {
             super.endSuite();
             appendOutAndErr();
 
-            rootElement.setAttribute(ATTR_TESTS, "" + getSuiteTestsRun());
-            rootElement.setAttribute(ATTR_FAILURES, "" + getSuiteTestFailures());
-            rootElement.setAttribute(ATTR_TIME, "" + (getSuiteTimeEllapsed() / ONE_SECOND));
+            final SuiteDocument d = documents.get();
+            d.rootElement.setAttribute(ATTR_TESTS, "" + getSuiteTestsRun());
+            d.rootElement.setAttribute(ATTR_FAILURES, "" + getSuiteTestFailures());
+            d.rootElement.setAttribute(ATTR_TIME, "" + (getSuiteTimeEllapsed() / ONE_SECOND));
 
-            writeDocument(doc);
+            writeDocument(d.doc);
+            documents.set(null);
         }
     }
 
     public void startTest(@NotNull String testName)
     {
         super.startTest(testName);
-        testStarts.put(testName, System.currentTimeMillis());
+        documents.get().testStarts.put(testName, System.currentTimeMillis());
     }
 
     public void endTest()
     {
         super.endTest();
-        final String test = getCurrentTest();
+        final String        test = getCurrentTest();
+        final SuiteDocument d = documents.get();
 
-        if (!testStarts.containsKey(test)) {
+        if (!d.testStarts.containsKey(test)) {
             startTest(test);
         }
 
         Element currentTest;
 
-        if (!failedTests.contains(test)) {
-            currentTest = doc.createElement(TESTCASE);
+        if (!d.failedTests.contains(test)) {
+            currentTest = d.doc.createElement(TESTCASE);
             currentTest.setAttribute(ATTR_NAME, test == null ? UNKNOWN : test);
             currentTest.setAttribute(ATTR_CLASSNAME, getCurrentSuite());
-            rootElement.appendChild(currentTest);
-            testElements.put(test, currentTest);
+            d.rootElement.appendChild(currentTest);
+            d.testElements.put(test, currentTest);
         }
         else {
-            currentTest = testElements.get(test);
+            currentTest = d.testElements.get(test);
         }
 
-        long ellapsed = System.currentTimeMillis() - testStarts.get(test);
+        long ellapsed = System.currentTimeMillis() - d.testStarts.get(test);
         currentTest.setAttribute(ATTR_TIME, "" + (ellapsed / ONE_SECOND));
     }
 
@@ -179,9 +165,10 @@ public class XmlTestReport
 
     protected void printOutput(String title, String content)
     {
-        Element nested = doc.createElement(title);
-        rootElement.appendChild(nested);
-        nested.appendChild(doc.createCDATASection(content));
+        final SuiteDocument d = documents.get();
+        Element             nested = d.doc.createElement(title);
+        d.rootElement.appendChild(nested);
+        nested.appendChild(d.doc.createCDATASection(content));
     }
 
     private static String timestamp()
@@ -214,14 +201,16 @@ public class XmlTestReport
 
     private void formatError(String type, String test, Throwable t)
     {
+        final SuiteDocument d = documents.get();
+
         if (test != null) {
             endTest();
-            failedTests.add(test);
+            d.failedTests.add(test);
         }
 
-        Element nested = doc.createElement(type);
+        Element nested = d.doc.createElement(type);
 
-        Element currentTest = test != null ? testElements.get(test) : rootElement;
+        Element currentTest = test != null ? d.testElements.get(test) : d.rootElement;
 
         currentTest.appendChild(nested);
 
@@ -234,7 +223,7 @@ public class XmlTestReport
         nested.setAttribute(ATTR_TYPE, t.getClass().getName());
 
         String strace = StringUtils.getStackTrace(t);
-        Text   trace = doc.createTextNode(strace);
+        Text   trace = d.doc.createTextNode(strace);
         nested.appendChild(trace);
     }
 
@@ -255,4 +244,37 @@ public class XmlTestReport
 
     /** constant for unnnamed testsuites/cases */
     private static final String UNKNOWN = "unknown";
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The document of a suite being run
+     */
+    private static class SuiteDocument
+    {
+        /**
+         * The XML document.
+         */
+        private Document doc;
+
+        /**
+         * tests that failed.
+         */
+        private final Set<String> failedTests = new HashSet<String>();
+
+        /**
+         * The wrapper for the whole testsuite.
+         */
+        private Element rootElement;
+
+        /**
+         * Element for the current test.
+         */
+        private final Map<CharSequence, Element> testElements = new HashMap<CharSequence, Element>();
+
+        /**
+         * Timing helper.
+         */
+        private final Map<String, Long> testStarts = new HashMap<String, Long>();
+    }
 }
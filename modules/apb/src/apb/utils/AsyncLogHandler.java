@@ -0,0 +1,301 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A log handler that writes to the console from a thread of its own, so the threads of the build
+ * do not wait for it.
+ * Messages are formatted in the thread that logs them, because the header with the element and command
+ * being executed depends on it, and published in a bounded queue. When the queue is full the threads
+ * logging wait for the writer, so no message is lost.
+ * The writer takes the messages in batches and writes only complete lines: the text of each element and
+ * command is kept until its line ends, and the lines of a batch are grouped by them, so the output of
+ * modules built at the same time does not get mixed up.
+ * Warnings and errors are written before returning, like everything pending when the handler is flushed.
+ */
+public class AsyncLogHandler
+    extends Handler
+    implements Runnable
+{
+    //~ Instance fields ......................................................................................
+
+    private volatile boolean closed;
+
+    @NotNull private final SimpleFormatter formatter;
+
+    /**
+     * The lines not ended yet, by their header. Only used while writing.
+     */
+    @NotNull private final Map<String, StringBuilder> lines;
+    @NotNull private final PrintStream                out;
+    @NotNull private final BlockingQueue<Entry>       queue;
+    @NotNull private final Thread                     writer;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create the handler, writing to the standard error like a {@link java.util.logging.ConsoleHandler}
+     * @param formatter The formatter of the messages and their headers
+     */
+    public AsyncLogHandler(@NotNull SimpleFormatter formatter)
+    {
+        this.formatter = formatter;
+        setFormatter(formatter);
+        out = System.err;
+        lines = new HashMap<String, StringBuilder>();
+        queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+        writer = new Thread(this, "apb-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //~ Methods ..............................................................................................
+
+    public void publish(LogRecord record)
+    {
+        if (isLoggable(record)) {
+            put(new Entry(formatter.header(), formatter.formatMsg(record), null));
+
+            if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Wait until everything logged so far is written, including the lines not ended yet
+     */
+    public void flush()
+    {
+        if (Thread.currentThread() != writer) {
+            final CountDownLatch done = new CountDownLatch(1);
+            put(new Entry("", "", done));
+
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Write what is pending and stop the writer. Messages published after it are written straight away.
+     */
+    public void close()
+    {
+        if (!closed) {
+            closed = true;
+            put(STOP);
+
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final List<Entry> rest = new ArrayList<Entry>();
+            queue.drainTo(rest);
+            write(rest, true);
+        }
+    }
+
+    /**
+     * Write the messages published, a batch at a time
+     */
+    public void run()
+    {
+        final List<Entry> batch = new ArrayList<Entry>();
+
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                final boolean stop = batch.remove(STOP);
+                write(batch, false);
+                batch.clear();
+
+                if (stop) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Stop writing, close() writes what is left
+        }
+    }
+
+    private void put(@NotNull Entry entry)
+    {
+        if (!closed || entry == STOP) {
+            try {
+                queue.put(entry);
+                return;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        write(Collections.singletonList(entry), true);
+    }
+
+    /**
+     * Write a batch of messages, grouping their complete lines by header
+     * @param batch The messages
+     * @param all Whether to write also the lines not ended yet
+     */
+    private synchronized void write(@NotNull List<Entry> batch, boolean all)
+    {
+        final Map<String, StringBuilder> groups = new LinkedHashMap<String, StringBuilder>();
+
+        for (Entry entry : batch) {
+            if (entry.done == null) {
+                append(groups, entry.header, entry.text);
+            }
+            else {
+                print(groups, true);
+                entry.done.countDown();
+            }
+        }
+
+        print(groups, all);
+    }
+
+    private void append(@NotNull Map<String, StringBuilder> groups, @NotNull String header, @NotNull String text)
+    {
+        StringBuilder line = lines.get(header);
+        int           start = 0;
+        int           end;
+
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            StringBuilder group = groups.get(header);
+
+            if (group == null) {
+                group = new StringBuilder();
+                groups.put(header, group);
+            }
+
+            if (line == null) {
+                group.append(header);
+            }
+            else {
+                // The part of the line already written ends with a continuation
+                group.append(line);
+                lines.remove(header);
+                line = null;
+            }
+
+            group.append(text, start, end + 1);
+            start = end + 1;
+        }
+
+        if (start < text.length()) {
+            if (line == null) {
+                line = new StringBuilder(header);
+                lines.put(header, line);
+            }
+
+            line.append(text, start, text.length());
+        }
+    }
+
+    /**
+     * Print the lines of the groups and clear them
+     * @param all Whether to print also the lines not ended yet, that will go on without a header
+     */
+    private void print(@NotNull Map<String, StringBuilder> groups, boolean all)
+    {
+        final StringBuilder result = new StringBuilder();
+
+        for (StringBuilder group : groups.values()) {
+            result.append(group);
+        }
+
+        groups.clear();
+
+        if (all) {
+            for (StringBuilder line : lines.values()) {
+                result.append(line);
+                line.setLength(0);
+            }
+        }
+
+        if (result.length() > 0) {
+            out.print(result);
+            out.flush();
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The number of messages that can wait to be written
+     */
+    private static final int QUEUE_CAPACITY = 4096;
+
+    /**
+     * The maximum number of messages written at once
+     */
+    private static final int MAX_BATCH = 512;
+
+    /**
+     * Stops the writer
+     */
+    private static final Entry STOP = new Entry("", "", null);
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A message formatted, or a request to be notified once everything before it is written
+     */
+    private static class Entry
+    {
+        @Nullable final CountDownLatch done;
+        @NotNull final String          header;
+        @NotNull final String          text;
+
+        Entry(@NotNull String header, @NotNull String text, @Nullable CountDownLatch done)
+        {
+            this.header = header;
+            this.text = text;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A content addressed cache of the outputs of tasks.
+ * Each entry is keyed by a hash of all the inputs of the task (See {@link Key}), and contains
+ * the files generated by it and a set of attributes with any extra information needed to restore them.
+ * Entries are directories under the cache directory, they are written to a temporary directory
+ * and renamed, so concurrent builds never see a partial entry.
+ * The cache keeps count of the hits & misses of each task.
+ */
+public class BuildCache
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final File               dir;
+    @NotNull private final Map<String, int[]> stats;
+
+    //~ Constructors .........................................................................................
+
+    public BuildCache(@NotNull File dir)
+    {
+        this.dir = dir;
+        stats = new TreeMap<String, int[]>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Create a key for the outputs of a task
+     * @param task The name of the task
+     */
+    @NotNull public Key newKey(@NotNull String task)
+    {
+        return new Key(task);
+    }
+
+    /**
+     * Get the entry for the specified key, counting it as a hit or a miss of the task
+     * @param key The key of the entry
+     * @return The entry or null if it does not exist
+     */
+    @Nullable public Entry get(@NotNull Key key)
+    {
+        final File  entryDir = entryDir(key.getHash());
+        final Entry result = entryDir.isDirectory() ? Entry.read(entryDir) : null;
+        count(key.task, result == null ? MISSES : HITS);
+        return result;
+    }
+
+    /**
+     * Store an entry.
+     * Failures are ignored, the task will just be executed again.
+     * @param key The key of the entry
+     * @param files The files to store, by the name to restore them with
+     * @param attributes Extra information needed to restore the files
+     */
+    public void put(@NotNull Key key, @NotNull Map<String, File> files, @NotNull Map<String, String> attributes)
+    {
+        final File entryDir = entryDir(key.getHash());
+
+        if (entryDir.exists()) {
+            return;
+        }
+
+        File tmp = new File(entryDir.getPath() + ".tmp" + System.nanoTime());
+
+        try {
+            Properties properties = new Properties();
+            properties.putAll(attributes);
+
+            StringBuilder names = new StringBuilder();
+
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                FileUtils.copyFile(file.getValue(), new File(new File(tmp, FILES_DIR), file.getKey()));
+                names.append(names.length() == 0 ? "" : ":").append(file.getKey());
+            }
+
+            properties.setProperty(FILES_ATTRIBUTE, names.toString());
+
+            OutputStream os = FileUtils.createOutputStream(new File(tmp, ATTRIBUTES_FILE));
+
+            try {
+                properties.store(os, null);
+            }
+            finally {
+                os.close();
+            }
+
+            // Another build may have stored it meanwhile
+            if (tmp.renameTo(entryDir)) {
+                tmp = null;
+            }
+        }
+        catch (IOException ignore) {}
+        finally {
+            if (tmp != null) {
+                FileUtils.removeDir(tmp);
+            }
+        }
+    }
+
+    /**
+     * Return a report of the hits and misses of each task
+     */
+    @NotNull public synchronized String report()
+    {
+        StringBuilder result = new StringBuilder("Build cache:");
+
+        for (Map.Entry<String, int[]> entry : stats.entrySet()) {
+            final int[] n = entry.getValue();
+            result.append(String.format(" %s %d hit%s %d miss%s,", entry.getKey(), n[HITS],
+                                        n[HITS] == 1 ? "" : "s", n[MISSES], n[MISSES] == 1 ? "" : "es"));
+        }
+
+        result.setLength(result.length() - 1);
+        return result.append('\n').toString();
+    }
+
+    /**
+     * Return true if the cache has been looked up
+     */
+    public synchronized boolean isUsed()
+    {
+        return !stats.isEmpty();
+    }
+
+    private synchronized void count(String task, int what)
+    {
+        int[] n = stats.get(task);
+
+        if (n == null) {
+            n = new int[2];
+            stats.put(task, n);
+        }
+
+        n[what]++;
+    }
+
+    private File entryDir(String hash)
+    {
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+
+    private static final String ATTRIBUTES_FILE = "entry.properties";
+    private static final String FILES_DIR = "files";
+    private static final String FILES_ATTRIBUTE = "apb.files";
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The key of an entry. A hash of the task name, the jdk version and all the inputs added to it.
+     */
+    public static class Key
+    {
+        @NotNull private final MessageDigest digest;
+        @Nullable private String             hash;
+        @NotNull private final String        task;
+
+        private Key(@NotNull String task)
+        {
+            this.task = task;
+            digest = StringUtils.md5Digest();
+            add(task);
+            add(System.getProperty("java.version"));
+        }
+
+        /**
+         * Add an String input
+         */
+        @NotNull public Key add(@NotNull String input)
+        {
+            for (int i = 0; i < input.length(); i++) {
+                final char c = input.charAt(i);
+                digest.update((byte) (c >> 8));
+                digest.update((byte) c);
+            }
+
+            digest.update((byte) 0);
+            return this;
+        }
+
+        /**
+         * Add the content of a file as an input
+         * @throws IOException If the file cannot be read
+         */
+        @NotNull public Key add(@NotNull File file)
+            throws IOException
+        {
+            return add(FileUtils.md5(file));
+        }
+
+        @NotNull public String getHash()
+        {
+            if (hash == null) {
+                hash = StringUtils.toHex(digest.digest());
+            }
+
+            return hash;
+        }
+    }
+
+    /**
+     * An entry of the cache
+     */
+    public static class Entry
+    {
+        @NotNull private final Properties attributes;
+        @NotNull private final File       filesDir;
+        @NotNull private final String[]   names;
+
+        private Entry(@NotNull File filesDir, @NotNull Properties attributes)
+        {
+            this.filesDir = filesDir;
+            this.attributes = attributes;
+            final String files = attributes.getProperty(FILES_ATTRIBUTE, "");
+            names = files.isEmpty() ? new String[0] : files.split(":");
+        }
+
+        @Nullable private static Entry read(File entryDir)
+        {
+            Properties properties = new Properties();
+
+            try {
+                InputStream is = new FileInputStream(new File(entryDir, ATTRIBUTES_FILE));
+
+                try {
+                    properties.load(is);
+                }
+                finally {
+                    is.close();
+                }
+            }
+            catch (IOException e) {
+                return null;
+            }
+
+            return new Entry(new File(entryDir, FILES_DIR), properties);
+        }
+
+        /**
+         * Return the value of an attribute
+         */
+        @Nullable public String getAttribute(@NotNull String name)
+        {
+            return attributes.getProperty(name);
+        }
+
+        /**
+         * Copy one of the files of the entry
+         * @param name The name of the file in the entry
+         * @param to The file to copy it to
+         * @throws IOException If the file cannot be copied
+         */
+        public void restore(@NotNull String name, @NotNull File to)
+            throws IOException
+        {
+            FileUtils.copyFile(new File(filesDir, name), to);
+        }
+
+        /**
+         * Copy all the files of the entry to a directory
+         * @param targetDir The directory to copy the files to, using their names as relative paths
+         * @throws IOException If the files cannot be copied
+         */
+        public void restoreAll(@NotNull File targetDir)
+            throws IOException
+        {
+            for (String name : names) {
+                restore(name, new File(targetDir, name));
+            }
+        }
+    }
+}
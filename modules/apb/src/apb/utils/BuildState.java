@@ -0,0 +1,261 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps the state of a set of files (size, modification time and content hash) as they were
+ * the last time they were used by a task, to decide whether they are up to date.
+ * A file whose modification time changed but whose content did not is considered unmodified,
+ * so touching files or restoring them with fresh timestamps does not trigger a rebuild.
+ * The content hash is only computed when the size is the same and the modification time differs.
+ */
+public class BuildState
+{
+    //~ Instance fields ......................................................................................
+
+    private boolean                          dirty;
+    @NotNull private final Map<String, Item> items;
+    @NotNull private final File              stateFile;
+
+    //~ Constructors .........................................................................................
+
+    private BuildState(@NotNull File stateFile)
+    {
+        this.stateFile = stateFile;
+        items = new HashMap<String, Item>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Load the state stored in the specified file
+     * @param stateFile The file with the state
+     * @return The state (Empty if the file does not exist or it is not valid)
+     */
+    @NotNull public static BuildState load(@NotNull File stateFile)
+    {
+        BuildState result = new BuildState(stateFile);
+
+        if (stateFile.exists()) {
+            DataInputStream in = null;
+
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+
+                if (in.readInt() == MAGIC) {
+                    for (int n = in.readInt(); n > 0; n--) {
+                        result.items.put(in.readUTF(), new Item(in.readLong(), in.readLong(), in.readUTF()));
+                    }
+                }
+            }
+            catch (IOException e) {
+                result.items.clear();
+            }
+            finally {
+                FileUtils.close(in);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Store the state, if anything was recorded since it was loaded
+     * @throws IOException If the state cannot be written
+     */
+    public void save()
+        throws IOException
+    {
+        if (!dirty) {
+            return;
+        }
+
+        // Write to a temporary file and rename, so the state is never left half written
+        File             tmp = new File(stateFile.getPath() + ".tmp" + System.nanoTime());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(items.size());
+
+            for (Map.Entry<String, Item> entry : items.entrySet()) {
+                final Item item = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(item.size);
+                out.writeLong(item.lastModified);
+                out.writeUTF(item.hash);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(stateFile) && !(stateFile.delete() && tmp.renameTo(stateFile))) {
+            throw new IOException("Cannot write: " + stateFile);
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Check if the file was modified since it was recorded
+     * @param file The file to check
+     * @return true if the file was modified, it was never recorded or it does not exist
+     */
+    public boolean isModified(@NotNull File file)
+    {
+        return isModified(file.getPath(), file);
+    }
+
+    /**
+     * Check if the file was modified since it was recorded under the specified key.
+     * (This allows to keep track of the same file for different purposes)
+     * @param key The key the file was recorded with
+     * @param file The file to check
+     * @return true if the file was modified, it was never recorded or it does not exist
+     */
+    public boolean isModified(@NotNull String key, @NotNull File file)
+    {
+        final Item item = items.get(key);
+
+        if (item == null || !file.exists() || item.size != file.length()) {
+            return true;
+        }
+
+        final long lastModified = file.lastModified();
+
+        if (item.lastModified == lastModified) {
+            return false;
+        }
+
+        try {
+            if (!item.hash.equals(FileUtils.md5(file))) {
+                return true;
+            }
+        }
+        catch (IOException e) {
+            return true;
+        }
+
+        // Same content, just remember the new modification time to avoid hashing it again
+        items.put(key, new Item(item.size, lastModified, item.hash));
+        dirty = true;
+        return false;
+    }
+
+    /**
+     * Record the current state of the file
+     * @param file The file to record
+     * @throws IOException If the file cannot be read
+     */
+    public void record(@NotNull File file)
+        throws IOException
+    {
+        record(file.getPath(), file);
+    }
+
+    /**
+     * Record the current state of the file under the specified key
+     * @param key The key to record the file with
+     * @param file The file to record
+     * @throws IOException If the file cannot be read
+     */
+    public void record(@NotNull String key, @NotNull File file)
+        throws IOException
+    {
+        final long lastModified = file.lastModified();
+        final long size = file.length();
+        final Item item = items.get(key);
+
+        if (item == null || item.size != size || item.lastModified != lastModified) {
+            items.put(key, new Item(size, lastModified, FileUtils.md5(file)));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remove the files that are not in the specified collection
+     * @param files The files to keep
+     * @return true if any file was removed
+     */
+    public boolean retainAll(@NotNull Collection<File> files)
+    {
+        Set<String> keys = new HashSet<String>();
+
+        for (File file : files) {
+            keys.add(file.getPath());
+        }
+
+        boolean result = false;
+
+        for (Iterator<String> it = items.keySet().iterator(); it.hasNext();) {
+            if (!keys.contains(it.next())) {
+                it.remove();
+                result = true;
+            }
+        }
+
+        dirty |= result;
+        return result;
+    }
+
+    /**
+     * Return the number of recorded files
+     */
+    public int size()
+    {
+        return items.size();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xAB057A7E;
+
+    //~ Inner Classes ........................................................................................
+
+    private static class Item
+    {
+        @NotNull private final String hash;
+        private final long            lastModified;
+        private final long            size;
+
+        Item(long size, long lastModified, @NotNull String hash)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.StringUtils.jsonQuote;
+
+/**
+ * A trace of the execution of a build: a span for the whole build, for the commands executed over each
+ * project element, and for the main tasks they run.
+ * It is written in the Chrome trace event format, each span as a complete event in the timeline of
+ * the thread that executed it, so it can be opened with a trace viewer (chrome://tracing, Perfetto).
+ */
+public class BuildTrace
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The file to write the trace to
+     */
+    @NotNull private final File file;
+
+    /**
+     * The spans ended
+     */
+    @NotNull private final List<Span> spans;
+
+    /**
+     * The time the trace started, in nanoseconds
+     */
+    private final long start;
+
+    /**
+     * The names of the threads that executed the spans, by id
+     */
+    @NotNull private final Map<Long, String> threads;
+
+    //~ Constructors .........................................................................................
+
+    public BuildTrace(@NotNull File file)
+    {
+        this.file = file;
+        spans = new ArrayList<Span>();
+        threads = new TreeMap<Long, String>();
+        start = System.nanoTime();
+    }
+
+    //~ Methods ..............................................................................................
+
+    @NotNull public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Start a span in the current thread, that is recorded when it ends
+     * @param name The name of the span
+     * @param category The kind of span: "build", "element", "command", "task", "process" (A forked process),
+     * "activate" (The activation of an element) or "expand" (The expansion of its properties)
+     */
+    @NotNull public Span start(@NotNull String name, @NotNull String category)
+    {
+        return new Span(this, NO_OBSERVERS, name, category);
+    }
+
+    /**
+     * Start a span in the current thread whose end is notified to the specified observers.
+     * The caller notifies them of the start, once the span has all its initial arguments.
+     * @param trace The trace to record the span in, or null to not record it
+     * @param observers The observers to notify
+     * @param name The name of the span
+     * @param category The kind of span (See {@link #start})
+     */
+    @NotNull public static Span observed(@Nullable BuildTrace trace, @NotNull List<Span.Observer> observers,
+                                         @NotNull String name, @NotNull String category)
+    {
+        return new Span(trace, observers, name, category);
+    }
+
+    /**
+     * Return the spans ended so far, in the order they ended
+     */
+    @NotNull public synchronized List<Span> getSpans()
+    {
+        return new ArrayList<Span>(spans);
+    }
+
+    /**
+     * Write the spans ended so far to the trace file
+     */
+    public void write()
+        throws IOException
+    {
+        final List<Span>        ended;
+        final Map<Long, String> names;
+
+        synchronized (this) {
+            ended = new ArrayList<Span>(spans);
+            names = new TreeMap<Long, String>(threads);
+        }
+
+        final File dir = file.getParentFile();
+
+        if (dir != null) {
+            dir.mkdirs();
+        }
+
+        final PrintWriter out = new PrintWriter(new FileWriter(file));
+
+        try {
+            out.println("{\"traceEvents\": [");
+            out.print("  {\"name\": \"process_name\", \"ph\": \"M\", \"pid\": 1, \"args\": {\"name\": \"apb\"}}");
+
+            for (Map.Entry<Long, String> entry : names.entrySet()) {
+                out.println(",");
+                out.printf("  {\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": %d, " +
+                           "\"args\": {\"name\": %s}}", entry.getKey(), jsonQuote(entry.getValue()));
+            }
+
+            for (Span span : ended) {
+                out.println(",");
+                out.printf("  {\"name\": %s, \"cat\": %s, \"ph\": \"X\", \"ts\": %d, \"dur\": %d, \"pid\": 1, " +
+                           "\"tid\": %d, \"args\": {", jsonQuote(span.name), jsonQuote(span.category),
+                           span.getStartMicros(), span.getMicros(), span.threadId);
+
+                String sep = "";
+
+                for (Map.Entry<String, String> arg : span.args.entrySet()) {
+                    out.print(sep + jsonQuote(arg.getKey()) + ": " + jsonQuote(arg.getValue()));
+                    sep = ", ";
+                }
+
+                out.print("}}");
+            }
+
+            out.println();
+            out.println("], \"displayTimeUnit\": \"ms\"}");
+        }
+        finally {
+            out.close();
+        }
+
+        if (out.checkError()) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    private synchronized void add(@NotNull Span span, @NotNull Thread thread)
+    {
+        spans.add(span);
+        threads.put(thread.getId(), thread.getName());
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final List<Span.Observer> NO_OBSERVERS = Collections.emptyList();
+
+    /**
+     * A span that is not recorded, used when the build is neither traced nor observed
+     */
+    public static final Span NONE = new Span(null, NO_OBSERVERS, "", "");
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A span of the execution of a thread
+     */
+    public static class Span
+    {
+        @NotNull private final Map<String, String> args;
+        @NotNull private final String              category;
+        private long                               end;
+        @NotNull private final String              name;
+        @NotNull private final List<Observer>      observers;
+        private final long                         start;
+        private final long                         threadId;
+        @Nullable private final BuildTrace         trace;
+
+        private Span(@Nullable BuildTrace trace, @NotNull List<Observer> observers, @NotNull String name,
+                     @NotNull String category)
+        {
+            this.trace = trace;
+            this.observers = observers;
+            this.name = name;
+            this.category = category;
+            args = new LinkedHashMap<String, String>();
+            threadId = Thread.currentThread().getId();
+            start = System.nanoTime();
+        }
+
+        /**
+         * Add an argument to the span, like the module or the command it belongs to
+         * @param key The name of the argument
+         * @param value The value, or null to not add it
+         * @return The span
+         */
+        @NotNull public Span arg(@NotNull String key, @Nullable String value)
+        {
+            if (value != null && isRecorded()) {
+                args.put(key, value);
+            }
+
+            return this;
+        }
+
+        /**
+         * Add a numeric argument to the span, like the number of files processed
+         * @param key The name of the argument
+         * @param value The value
+         * @return The span
+         */
+        @NotNull public Span arg(@NotNull String key, long value)
+        {
+            return isRecorded() ? arg(key, String.valueOf(value)) : this;
+        }
+
+        /**
+         * End the span, recording it in the trace and notifying the observers
+         */
+        public void end()
+        {
+            if (end == 0 && isRecorded()) {
+                end = System.nanoTime();
+
+                if (trace != null) {
+                    trace.add(this, Thread.currentThread());
+                }
+
+                for (Observer observer : observers) {
+                    observer.ended(this);
+                }
+            }
+        }
+
+        /**
+         * Whether the span is recorded in a trace or observed
+         */
+        public boolean isRecorded()
+        {
+            return trace != null || !observers.isEmpty();
+        }
+
+        @NotNull public String getName()
+        {
+            return name;
+        }
+
+        @NotNull public String getCategory()
+        {
+            return category;
+        }
+
+        /**
+         * Return the value of an argument of the span, or null if it has not been added
+         */
+        @Nullable public String getArg(@NotNull String key)
+        {
+            return args.get(key);
+        }
+
+        /**
+         * Return the arguments of the span, in the order they were added
+         */
+        @NotNull public Map<String, String> getArgs()
+        {
+            return Collections.unmodifiableMap(args);
+        }
+
+        /**
+         * Return the time the span started, in microseconds since the trace started
+         */
+        public long getStartMicros()
+        {
+            return trace == null ? 0 : (start - trace.start) / 1000;
+        }
+
+        /**
+         * Return the duration of the span in microseconds
+         */
+        public long getMicros()
+        {
+            return (end - start) / 1000;
+        }
+
+        /**
+         * An object notified of the start and end of the spans, to follow the build as it runs
+         */
+        public interface Observer
+        {
+            /**
+             * Called in the thread that started the span, once it has its initial arguments
+             * @param span The span started
+             */
+            void started(@NotNull Span span);
+
+            /**
+             * Called in the thread that ended the span
+             * @param span The span ended
+             */
+            void ended(@NotNull Span span);
+        }
+    }
+}
@@ -21,8 +21,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Oct 1, 2008
@@ -34,13 +38,32 @@ public class DirectoryScanner
     //~ Instance fields ......................................................................................
 
     private final File baseDir;
-    private boolean    caseSensitive = true;
 
-    private boolean      everythingIncluded;
-    private List<String> excludes;
-    private List<String> filesIncluded;
-    private boolean      followSymlinks = true;
-    private List<String> includes;
+    private volatile boolean everythingIncluded;
+
+    /**
+     * The compiled patterns (Excludes include the {@link #DEFAULT_EXCLUDES})
+     */
+    private final PathMatcher excludes;
+    private List<String>      filesIncluded;
+    private boolean           followSymlinks = true;
+    private final PathMatcher includes;
+
+    /**
+     * The state of the current scan (Subdirectories pending to be scanned & first error found)
+     */
+    private int                   pending;
+    @Nullable private IOException scanError;
+
+    /**
+     * The snapshot being taken with this scanner, if any
+     */
+    @Nullable FileTree snapshot;
+
+    /**
+     * The snapshot to scan instead of the file system, if any
+     */
+    @Nullable private FileTree tree;
 
     //~ Constructors .........................................................................................
 
@@ -48,9 +71,11 @@ public class DirectoryScanner
                             @NotNull List<String> excludes)
     {
         this.baseDir = baseDir;
-        this.includes = StringUtils.normalizePaths(includes);
-        this.excludes = StringUtils.normalizePaths(excludes);
-        this.excludes.addAll(StringUtils.normalizePaths(DEFAULT_EXCLUDES));
+        this.includes = new PathMatcher(includes, true);
+
+        List<String> allExcludes = new ArrayList<String>(excludes);
+        allExcludes.addAll(DEFAULT_EXCLUDES);
+        this.excludes = new PathMatcher(allExcludes, true);
 
         if (!baseDir.exists()) {
             throw new IllegalStateException("baseDir " + baseDir + " does not exist");
@@ -61,6 +86,18 @@ public class DirectoryScanner
         }
     }
 
+    /**
+     * Create an scanner that runs against an snapshot of the file system instead of the file system itself
+     * @param tree The snapshot to scan
+     * @param includes The patterns of the files to include
+     * @param excludes The patterns of the files to exclude
+     */
+    public DirectoryScanner(@NotNull FileTree tree, @NotNull List<String> includes, @NotNull List<String> excludes)
+    {
+        this(tree.getRoot(), includes, excludes);
+        this.tree = tree;
+    }
+
     //~ Methods ..............................................................................................
 
     public boolean isEverythingIncluded()
@@ -68,12 +105,15 @@ public class DirectoryScanner
         return everythingIncluded;
     }
 
+    /**
+     * Scan the base directory.
+     * Subdirectories are scanned concurrently by a shared pool of threads.
+     * @return The included files, sorted by name
+     */
     public List<String> scan()
         throws IllegalStateException, IOException
     {
-        filesIncluded = new ArrayList<String>();
-        scandir(baseDir, "");
-        return filesIncluded;
+        return scan(true);
     }
 
     public List<String> getIncludedFiles()
@@ -83,75 +123,238 @@ public class DirectoryScanner
 
     protected boolean couldHoldIncluded(String name)
     {
-        for (String include : includes) {
-            if (StringUtils.matchPatternStart(include, name, caseSensitive)) {
-                return true;
-            }
-        }
-
-        return false;
+        return includes.matchesStart(name);
     }
 
     protected boolean isIncluded(String name)
     {
-        for (String include : includes) {
-            if (StringUtils.matchPath(include, name, caseSensitive)) {
-                return true;
-            }
+        return includes.matches(name);
+    }
+
+    protected boolean isExcluded(String name)
+    {
+        return excludes.matches(name);
+    }
+
+    /**
+     * Scan the base directory
+     * @param parallel Whether to scan subdirectories concurrently or in the current thread
+     * @return The included files, sorted by name
+     */
+    List<String> scan(boolean parallel)
+        throws IOException
+    {
+        filesIncluded = Collections.synchronizedList(new ArrayList<String>());
+        scanError = null;
+
+        if (tree != null) {
+            scanTree(tree, "");
+        }
+        else if (parallel && THREADS > 1) {
+            scanParallel();
+        }
+        else {
+            scandir(baseDir, "", false);
         }
 
-        return false;
+        // Make the result independent of the order of the scan
+        filesIncluded = new ArrayList<String>(filesIncluded);
+        Collections.sort(filesIncluded);
+        return filesIncluded;
     }
 
-    protected boolean isExcluded(String name)
+    private void scanParallel()
+        throws IOException
     {
-        for (String include : excludes) {
-            if (StringUtils.matchPath(include, name, caseSensitive)) {
-                return true;
+        synchronized (this) {
+            pending = 1;
+        }
+
+        // The base directory is scanned in the current thread, the subdirectories by the pool
+        scanSubdir(baseDir, "");
+
+        synchronized (this) {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Scan of " + baseDir + " interrupted");
+            }
+
+            if (scanError != null) {
+                throw scanError;
             }
         }
+    }
 
-        return false;
+    /**
+     * Scan a directory, and then mark it as completed
+     */
+    private void scanSubdir(File dir, String relativePath)
+    {
+        try {
+            scandir(dir, relativePath, true);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                if (scanError == null) {
+                    scanError = e;
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                if (--pending == 0) {
+                    notifyAll();
+                }
+            }
+        }
     }
 
-    private void scandir(File dir, String relativePath)
+    /**
+     * Scan a directory.
+     * Only one stat is done for each file: isFile() is checked before isDirectory()
+     * (Files are much more common), and entries that cannot be included are not checked at all.
+     */
+    private void scandir(File dir, String relativePath, boolean parallel)
         throws IOException
     {
         List<String> files = listFiles(dir);
 
         if (!followSymlinks) {
-            files = filterSymbolicLinks(dir, relativePath, files);
+            files = filterSymbolicLinks(dir, files);
         }
 
+        List<String> included = new ArrayList<String>();
+        List<String> subdirs = new ArrayList<String>();
+
         for (String nm : files) {
             String fileName = relativePath + nm;
-            File   file = new File(baseDir, fileName);
 
             if (isIncluded(fileName) && !isExcluded(fileName)) {
-                if (file.isDirectory()) {
-                    scandir(file, fileName + File.separator);
+                File file = new File(dir, nm);
+
+                if (file.isFile()) {
+                    included.add(fileName);
                 }
-                else if (file.isFile()) {
-                    filesIncluded.add(fileName);
+                else if (file.isDirectory()) {
+                    subdirs.add(nm);
+                    descend(file, fileName + File.separator, parallel);
                 }
             }
             else {
                 everythingIncluded = false;
 
-                if (file.isDirectory() && couldHoldIncluded(fileName)) {
-                    scandir(file, fileName + File.separator);
+                if (couldHoldIncluded(fileName)) {
+                    File file = new File(dir, nm);
+
+                    if (file.isDirectory()) {
+                        subdirs.add(nm);
+                        descend(file, fileName + File.separator, parallel);
+                    }
                 }
             }
         }
+
+        filesIncluded.addAll(included);
+
+        if (snapshot != null) {
+            for (int i = 0; i < included.size(); i++) {
+                included.set(i, included.get(i).substring(relativePath.length()));
+            }
+
+            snapshot.add(relativePath, new FileTree.Dir(dir.lastModified(), included, subdirs));
+        }
     }
 
-    private List<String> filterSymbolicLinks(File dir, String relativePath, final List<String> files)
+    /**
+     * Scan a directory of an snapshot, with the same logic than {@link #scandir}
+     */
+    private void scanTree(FileTree fileTree, String relativePath)
+    {
+        final FileTree.Dir dir = fileTree.getDir(relativePath);
+
+        if (dir == null) {
+            return;
+        }
+
+        for (String nm : dir.files) {
+            String fileName = relativePath + nm;
+
+            if (isIncluded(fileName) && !isExcluded(fileName)) {
+                filesIncluded.add(fileName);
+            }
+            else {
+                everythingIncluded = false;
+            }
+        }
+
+        for (String nm : dir.subdirs) {
+            String fileName = relativePath + nm;
+
+            if (isIncluded(fileName) && !isExcluded(fileName)) {
+                scanTree(fileTree, fileName + File.separator);
+            }
+            else {
+                everythingIncluded = false;
+
+                if (couldHoldIncluded(fileName)) {
+                    scanTree(fileTree, fileName + File.separator);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan a subdirectory, in the current thread or submitting it to the pool
+     */
+    private void descend(final File dir, final String relativePath, boolean parallel)
+        throws IOException
+    {
+        if (parallel) {
+            synchronized (this) {
+                pending++;
+            }
+
+            getPool().execute(new Runnable() {
+                    public void run()
+                    {
+                        scanSubdir(dir, relativePath);
+                    }
+                });
+        }
+        else {
+            scandir(dir, relativePath, false);
+        }
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                        private int count;
+
+                        public Thread newThread(@NotNull Runnable r)
+                        {
+                            Thread result = new Thread(r, "apb-scanner-" + ++count);
+                            result.setDaemon(true);
+                            return result;
+                        }
+                    });
+        }
+
+        return pool;
+    }
+
+    private List<String> filterSymbolicLinks(File dir, final List<String> files)
         throws IOException
     {
         List<String> result = new ArrayList<String>();
 
         for (String file : files) {
-            if (!FileUtils.isSymbolicLink(new File(dir, relativePath + file))) {
+            if (!FileUtils.isSymbolicLink(new File(dir, file))) {
                 result.add(file);
             }
         }
@@ -167,6 +370,17 @@ public class DirectoryScanner
 
     //~ Static fields/initializers ...........................................................................
 
+    /**
+     * The number of threads used to scan directories (1 to disable concurrent scans)
+     */
+    private static final int THREADS =
+        Integer.getInteger("apb.scanner.threads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The pool shared by all the scanners (Created on first use)
+     */
+    private static ExecutorService pool;
+
     public static final List<String> DEFAULT_EXCLUDES =
         Arrays.asList(
 
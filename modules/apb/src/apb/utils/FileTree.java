@@ -0,0 +1,135 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An snapshot of the names of the files and directories under a root directory,
+ * so several {@link DirectoryScanner}s with different includes & excludes can be run against it
+ * without traversing the file system again.
+ * The snapshot keeps the modification time of each directory, so it can be cheaply checked
+ * (One stat per directory) whether any file was added or removed since it was taken.
+ */
+public class FileTree
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The directories, by their path relative to the root (With a trailing separator, or empty for the root)
+     */
+    @NotNull private final Map<String, Dir> dirs;
+    @NotNull private final File             root;
+
+    //~ Constructors .........................................................................................
+
+    private FileTree(@NotNull File root)
+    {
+        this.root = root;
+        dirs = new HashMap<String, Dir>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Take an snapshot of the tree under the specified directory.
+     * (Files matching {@link DirectoryScanner#DEFAULT_EXCLUDES} are not included)
+     * @param root The root directory
+     * @return The snapshot
+     * @throws IOException If the tree cannot be scanned
+     */
+    @NotNull public static FileTree scan(@NotNull File root)
+        throws IOException
+    {
+        FileTree         result = new FileTree(root);
+        DirectoryScanner scanner =
+            new DirectoryScanner(root, Collections.singletonList("**"), Collections.<String>emptyList());
+        scanner.snapshot = result;
+        scanner.scan();
+        return result;
+    }
+
+    @NotNull public File getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Check if the snapshot still reflects the file system,
+     * i.e. no directory was modified, added or removed since it was taken.
+     */
+    public boolean isValid()
+    {
+        for (Map.Entry<String, Dir> entry : dirs.entrySet()) {
+            if (new File(root, entry.getKey()).lastModified() != entry.getValue().lastModified) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the number of directories in the snapshot
+     */
+    public int size()
+    {
+        return dirs.size();
+    }
+
+    /**
+     * Return the directory with the specified relative path
+     */
+    @Nullable Dir getDir(@NotNull String relativePath)
+    {
+        return dirs.get(relativePath);
+    }
+
+    synchronized void add(@NotNull String relativePath, @NotNull Dir dir)
+    {
+        dirs.put(relativePath, dir);
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The content of a directory
+     */
+    static class Dir
+    {
+        @NotNull final List<String> files;
+        final long                  lastModified;
+        @NotNull final List<String> subdirs;
+
+        Dir(long lastModified, @NotNull List<String> files, @NotNull List<String> subdirs)
+        {
+            this.lastModified = lastModified;
+            this.files = files;
+            this.subdirs = subdirs;
+        }
+    }
+}
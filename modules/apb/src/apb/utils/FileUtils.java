@@ -33,6 +33,7 @@ import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -394,6 +395,65 @@ public class FileUtils
         }
     }
 
+    /**
+     * Return the absolute and normalized (without '.' or '..' elements) version of the file
+     * without resolving links (unlike {@link File#getCanonicalFile()})
+     * @param file The file to normalize
+     */
+    @NotNull public static File normalize(@NotNull File file)
+    {
+        return new File(file.getAbsoluteFile().toURI().normalize());
+    }
+
+    /**
+     * Return the hexadecimal representation of the MD5 hash of the content of the file
+     * @param file The file to hash
+     * @throws IOException If the file cannot be read
+     */
+    @NotNull public static String md5(@NotNull File file)
+        throws IOException
+    {
+        MessageDigest   digest = StringUtils.md5Digest();
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[8192];
+            int    n;
+
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        finally {
+            close(in);
+        }
+
+        return StringUtils.toHex(digest.digest());
+    }
+
+    /**
+     * Remove a directory and all its content
+     * @param dir The directory to remove
+     * @return true if the directory was removed
+     */
+    public static boolean removeDir(@NotNull File dir)
+    {
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    removeDir(file);
+                }
+                else {
+                    file.delete();
+                }
+            }
+        }
+
+        return dir.delete();
+    }
+
     public static void validateDirectory(File dir)
     {
         if (!dir.exists() && !dir.mkdirs()) {
@@ -45,7 +45,7 @@ public class OptionParser
     protected List<Option> options = null;
 
     private final String  appName;
-    private final boolean exitOnStopParsing = true;
+    private boolean       exitOnStopParsing = true;
     private final String  versionNumber;
 
     //~ Constructors .........................................................................................
@@ -64,6 +64,16 @@ public class OptionParser
         return arguments;
     }
 
+    /**
+     * Define whether to exit or to throw an exception when an invalid option is found,
+     * or after printing the help or the version
+     * @param b exit if true, throw a {@link StopParsingException} otherwise
+     */
+    public void setExitOnStopParsing(boolean b)
+    {
+        exitOnStopParsing = b;
+    }
+
     public String getArgShortDescription()
     {
         return "";
@@ -167,7 +177,7 @@ public class OptionParser
             System.err.println(ops + nChars(len - ops.length(), ' ') + ": " + opt.getDescription());
         }
 
-        System.exit(0);
+        stopParsing(0);
     }
 
     Option findOption(char option)
@@ -208,7 +218,7 @@ public class OptionParser
     void printVersion()
     {
         System.err.println(getAppName() + " version: " + versionNumber);
-        System.exit(0);
+        stopParsing(0);
     }
 
     private int execute(Option opt, int i)
@@ -228,7 +238,7 @@ public class OptionParser
         return i;
     }
 
-    private void printError(String msg)
+    protected void printError(String msg)
     {
         System.err.println(msg);
     }
@@ -268,13 +278,22 @@ public class OptionParser
         }
     }
 
-    private void stopParsing()
+    protected void stopParsing()
+    {
+        stopParsing(1);
+    }
+
+    /**
+     * Exit with the specified status, or throw a {@link StopParsingException} with it
+     * if not exiting on stop parsing
+     */
+    protected void stopParsing(int status)
     {
         if (exitOnStopParsing) {
-            System.exit(1);
+            System.exit(status);
         }
 
-        throw new RuntimeException();
+        throw new StopParsingException(status);
     }
 
     //~ Static fields/initializers ...........................................................................
@@ -381,7 +400,7 @@ public class OptionParser
         public void setValue(String str)
         {
             value =
-                type.cast(type == Integer.class ? Integer.valueOf(str)
+                type.cast(type == Integer.class ? (str.length() == 0 ? 0 : Integer.valueOf(str))
                                                 : type == Boolean.class ? Boolean.valueOf(str) : str);
         }
 
@@ -400,7 +419,13 @@ public class OptionParser
 
         void execute(final String str)
         {
-            setValue(str);
+            try {
+                setValue(str);
+            }
+            catch (NumberFormatException e) {
+                optionParser.printError(Messages.INVARG(str, name));
+                optionParser.stopParsing();
+            }
 
             if (canRepeat) {
                 values.add(value);
@@ -441,4 +466,29 @@ public class OptionParser
         @NonNls static final String HELP = "help";
         @NonNls static final String VERSION = "version";
     }
+
+    /**
+     * Thrown instead of exiting when parsing stops, if not exiting on stop parsing
+     * (See {@link #setExitOnStopParsing})
+     */
+    public static class StopParsingException
+        extends RuntimeException
+    {
+        private final int status;
+
+        StopParsingException(int status)
+        {
+            this.status = status;
+        }
+
+        /**
+         * Return the exit status: 0 after printing the help or the version, 1 for an invalid option
+         */
+        public int getStatus()
+        {
+            return status;
+        }
+
+        private static final long serialVersionUID = 4907346188025178243L;
+    }
 }
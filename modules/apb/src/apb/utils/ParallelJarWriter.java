@@ -0,0 +1,750 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes a jar compressing its entries concurrently.
+ * Each file is read and deflated into an independent buffer by a shared pool of threads,
+ * while the calling thread writes the finished entries, in the order they were added,
+ * followed by the central directory.
+ * The amount of data read ahead is bounded, so memory usage does not depend on the size of the jar.
+ * Zip64 is not supported, {@link #fits} must be checked before using it.
+ */
+public class ParallelJarWriter
+{
+    //~ Instance fields ......................................................................................
+
+    @Nullable private String            comment;
+    private final boolean               compress;
+    private final int                   dosTime;
+    @NotNull private final List<Entry>  entries;
+    private final boolean               fixedTime;
+    private final int                   level;
+    private long                        offset;
+    @NotNull private final OutputStream out;
+
+    /**
+     * The entries being compressed, in the order they must be written
+     */
+    @NotNull private final LinkedList<Future<Entry>> pending;
+    private long                                     pendingBytes;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create the jar and write the manifest
+     * @param jarFile The jar to write
+     * @param manifest The manifest
+     * @param compress Whether to deflate the entries or to store them
+     * @param level The compression level
+     * @throws IOException If the jar cannot be written
+     */
+    public ParallelJarWriter(@NotNull File jarFile, @NotNull Manifest manifest, boolean compress, int level)
+        throws IOException
+    {
+        this(jarFile, manifestBytes(manifest), compress, level, null);
+    }
+
+    /**
+     * Create the jar and write the manifest
+     * @param jarFile The jar to write
+     * @param manifest The content of the manifest
+     * @param compress Whether to deflate the entries or to store them
+     * @param level The compression level
+     * @param time The time of all the entries (Including the ones copied from other jars),
+     * or null to use the current time for the new ones
+     * @throws IOException If the jar cannot be written
+     */
+    public ParallelJarWriter(@NotNull File jarFile, @NotNull byte[] manifest, boolean compress, int level,
+                             @Nullable Long time)
+        throws IOException
+    {
+        this.compress = compress;
+        this.level = level;
+        fixedTime = time != null;
+        dosTime = dosTime(time == null ? System.currentTimeMillis() : time);
+        entries = new ArrayList<Entry>();
+        pending = new LinkedList<Future<Entry>>();
+        out = new BufferedOutputStream(new FileOutputStream(jarFile), BUFFER_SIZE);
+        addNow(new Entry(JarFile.MANIFEST_NAME, manifest, compress, level, dosTime));
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Check if a jar can be written with this writer (i.e. it does not need Zip64 extensions)
+     * @param entries The number of entries of the jar
+     * @param bytes The total size of the files
+     */
+    public static boolean fits(int entries, long bytes)
+    {
+        return entries < MAX_ENTRIES && bytes < MAX_BYTES;
+    }
+
+    /**
+     * Set the comment of the jar
+     */
+    public void setComment(@Nullable String comment)
+    {
+        this.comment = comment;
+    }
+
+    /**
+     * Add a directory entry
+     * @param name The name of the directory, ending with '/'
+     * @throws IOException If the jar cannot be written
+     */
+    public void addDirectory(@NotNull String name)
+        throws IOException
+    {
+        addNow(new Entry(name, new byte[0], false, 0, dosTime));
+    }
+
+    /**
+     * Add a file. It is read and compressed in the background
+     * @param name The name of the entry
+     * @param file The file to add
+     * @throws IOException If the jar cannot be written or the file of a previous entry cannot be read
+     */
+    public void addFile(@NotNull final String name, @NotNull final File file)
+        throws IOException
+    {
+        submit(file.length(),
+               new Callable<Entry>() {
+                   public Entry call()
+                       throws IOException
+                   {
+                       return new Entry(name, readFile(file), compress, level, dosTime);
+                   }
+               });
+    }
+
+    /**
+     * Add an entry with the specified content. It is compressed in the background
+     * @param name The name of the entry
+     * @param content The content of the entry
+     * @throws IOException If the jar cannot be written or the file of a previous entry cannot be read
+     */
+    public void addBytes(@NotNull final String name, @NotNull final byte[] content)
+        throws IOException
+    {
+        submit(content.length,
+               new Callable<Entry>() {
+                   public Entry call()
+                       throws IOException
+                   {
+                       return new Entry(name, content, compress, level, dosTime);
+                   }
+               });
+    }
+
+    /**
+     * Copy an entry from an existing jar, without recompressing it.
+     * It is copied only if it has the same size than the file and it is compressed the same way.
+     * It keeps its time unless this writer has a fixed one.
+     * @param source The jar to copy the entry from
+     * @param name The name of the entry
+     * @param file The file the entry was built from
+     * @return true if the entry was copied, false if it must be added with {@link #addFile}
+     * @throws IOException If either jar cannot be read or written
+     */
+    public boolean copyEntry(@NotNull Source source, @NotNull String name, @NotNull File file)
+        throws IOException
+    {
+        final Source.Item item = source.items.get(name);
+
+        if (item == null || item.deflated != compress || item.size != file.length()) {
+            return false;
+        }
+
+        addNow(new Entry(name.getBytes(UTF8), source.read(item), item.deflated, item.crc, item.size,
+                         fixedTime ? dosTime : item.time));
+        return true;
+    }
+
+    /**
+     * Write the remaining entries and the central directory, and close the jar
+     * @throws IOException If the jar cannot be written or the file of an entry cannot be read
+     */
+    public void close()
+        throws IOException
+    {
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+
+            writeCentralDirectory();
+        }
+        finally {
+            abort();
+        }
+    }
+
+    /**
+     * Discard the pending entries and close the jar, leaving it incomplete
+     */
+    public void abort()
+    {
+        for (Future<Entry> future : pending) {
+            future.cancel(true);
+        }
+
+        pending.clear();
+        FileUtils.close(out);
+    }
+
+    /**
+     * Return the content of a manifest
+     */
+    @NotNull public static byte[] manifestBytes(@NotNull Manifest manifest)
+        throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        manifest.write(result);
+        return result.toByteArray();
+    }
+
+    private static byte[] readFile(File file)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+        try {
+            byte[] result = new byte[(int) file.length()];
+            in.readFully(result);
+            return result;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Convert a time to the MS-DOS format used by zip files
+     */
+    private static int dosTime(long time)
+    {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+
+        final int year = c.get(Calendar.YEAR);
+
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16 |
+               c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                        private int count;
+
+                        public Thread newThread(@NotNull Runnable r)
+                        {
+                            Thread result = new Thread(r, "apb-jar-" + ++count);
+                            result.setDaemon(true);
+                            return result;
+                        }
+                    });
+        }
+
+        return pool;
+    }
+
+    /**
+     * Queue the creation of an entry, first writing the pending ones that are done
+     * or needed to keep the read ahead bounded
+     * @param length The size of the content of the entry
+     */
+    private void submit(long length, Callable<Entry> entry)
+        throws IOException
+    {
+        while (!pending.isEmpty() &&
+                   (pending.getFirst().isDone() || pending.size() >= MAX_PENDING ||
+                    pendingBytes + length > MAX_PENDING_BYTES)) {
+            writeNext();
+        }
+
+        pending.add(getPool().submit(entry));
+        pendingBytes += length;
+    }
+
+    /**
+     * Add an entry that is already built, after the pending ones
+     */
+    private void addNow(final Entry entry)
+        throws IOException
+    {
+        FutureTask<Entry> future = new FutureTask<Entry>(new Callable<Entry>() {
+                    public Entry call()
+                    {
+                        return entry;
+                    }
+                });
+        future.run();
+        pending.add(future);
+        pendingBytes += entry.size;
+
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Write the first pending entry, waiting for it to be compressed
+     */
+    private void writeNext()
+        throws IOException
+    {
+        final Entry entry;
+
+        try {
+            entry = pending.removeFirst().get();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+
+        pendingBytes -= entry.size;
+
+        // The first entry is marked as belonging to a jar, as JarOutputStream does
+        entry.jarMagic = entries.isEmpty();
+        entry.offset = offset;
+        entries.add(entry);
+
+        writeInt(LOCAL_HEADER);
+        writeCommonHeader(entry);
+        writeBytes(entry.name);
+        writeExtra(entry);
+        writeBytes(entry.data);
+        entry.data = null;
+    }
+
+    private void writeCentralDirectory()
+        throws IOException
+    {
+        final long start = offset;
+
+        for (Entry entry : entries) {
+            writeInt(CENTRAL_HEADER);
+            writeShort(VERSION_DEFLATED);
+            writeCommonHeader(entry);
+            writeShort(0);  // comment length
+            writeShort(0);  // disk number
+            writeShort(0);  // internal attributes
+            writeInt(0);  // external attributes
+            writeInt(entry.offset);
+            writeBytes(entry.name);
+            writeExtra(entry);
+        }
+
+        final long   size = offset - start;
+        final byte[] commentBytes = comment == null ? new byte[0] : comment.getBytes(UTF8);
+
+        writeInt(END_HEADER);
+        writeShort(0);  // disk number
+        writeShort(0);  // disk with the central directory
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt(size);
+        writeInt(start);
+        writeShort(commentBytes.length);
+        writeBytes(commentBytes);
+    }
+
+    /**
+     * Write the fields shared by the local and the central headers, from 'version needed to extract'
+     * to 'extra field length'
+     */
+    private void writeCommonHeader(Entry entry)
+        throws IOException
+    {
+        writeShort(entry.deflated ? VERSION_DEFLATED : VERSION_STORED);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.deflated ? Deflater.DEFLATED : 0);
+        writeInt(entry.time);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        writeShort(entry.name.length);
+        writeShort(entry.jarMagic ? 4 : 0);
+    }
+
+    private void writeExtra(Entry entry)
+        throws IOException
+    {
+        if (entry.jarMagic) {
+            writeShort(JAR_MAGIC);
+            writeShort(0);
+        }
+    }
+
+    private void writeBytes(byte[] bytes)
+        throws IOException
+    {
+        out.write(bytes);
+        offset += bytes.length;
+    }
+
+    private void writeShort(int v)
+        throws IOException
+    {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        offset += 2;
+    }
+
+    private void writeInt(long v)
+        throws IOException
+    {
+        writeShort((int) (v & 0xffff));
+        writeShort((int) ((v >>> 16) & 0xffff));
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The number of threads used to compress entries
+     */
+    private static final int THREADS =
+        Integer.getInteger("apb.jar.threads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The pool shared by all the writers (Created on first use)
+     */
+    private static ExecutorService pool;
+
+    /**
+     * A deflater for each thread of the pool, they are reset for each entry
+     */
+    private static final ThreadLocal<Deflater> deflater =
+        new ThreadLocal<Deflater>() {
+            @Override protected Deflater initialValue()
+            {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+        };
+
+    private static final int  MAX_PENDING = 256;
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Limits without Zip64 extensions (Leaving room for the headers and incompressible data)
+     */
+    private static final int  MAX_ENTRIES = 0xFFFF;
+    private static final long MAX_BYTES = 0x7FFFFFFFL;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int LOCAL_SIZE = 30;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int JAR_MAGIC = 0xCAFE;
+
+    private static final String UTF8 = "UTF-8";
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * An existing jar whose entries can be copied to a new one without recompressing them
+     * (See {@link #copyEntry}).
+     * Only jars without Zip64 extensions are supported.
+     */
+    public static class Source
+        implements Closeable
+    {
+        @Nullable private final String          comment;
+        @NotNull private final RandomAccessFile file;
+        @NotNull private final Map<String, Item> items;
+
+        private Source(@NotNull RandomAccessFile file, @Nullable String comment, @NotNull Map<String, Item> items)
+        {
+            this.file = file;
+            this.comment = comment;
+            this.items = items;
+        }
+
+        /**
+         * Read the central directory of a jar
+         * @param jar The jar
+         * @return The jar or null if it cannot be read or it is not supported
+         */
+        @Nullable public static Source open(@NotNull File jar)
+        {
+            RandomAccessFile file = null;
+
+            try {
+                file = new RandomAccessFile(jar, "r");
+
+                final long length = file.length();
+                final long limit = Math.max(0, length - END_SIZE - 0xFFFF);
+
+                // Look for the end of central directory record, it is followed by the comment
+                for (long pos = length - END_SIZE; pos >= limit; pos--) {
+                    final byte[] end = readBytes(file, pos, END_SIZE);
+
+                    if (getInt(end, 0) == END_HEADER && pos + END_SIZE + getShort(end, 20) == length) {
+                        final Source result = read(file, end, readBytes(file, pos + END_SIZE, getShort(end, 20)));
+
+                        if (result != null) {
+                            file = null;
+                        }
+
+                        return result;
+                    }
+                }
+
+                return null;
+            }
+            catch (IOException e) {
+                return null;
+            }
+            finally {
+                FileUtils.close(file);
+            }
+        }
+
+        /**
+         * Check if the jar was written with the same manifest and comment
+         */
+        public boolean matches(@NotNull byte[] manifest, @Nullable String jarComment)
+        {
+            final Item item = items.get(JarFile.MANIFEST_NAME);
+
+            if (item == null || (comment == null ? jarComment != null : !comment.equals(jarComment))) {
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(manifest);
+            return item.size == manifest.length && item.crc == crc.getValue();
+        }
+
+        public void close()
+            throws IOException
+        {
+            file.close();
+        }
+
+        @Nullable private static Source read(RandomAccessFile file, byte[] end, byte[] comment)
+            throws IOException
+        {
+            final int  entries = getShort(end, 10);
+            final long size = getInt(end, 12);
+            final long offset = getInt(end, 16);
+
+            if (entries == 0xFFFF || offset == 0xFFFFFFFFL || offset + size > file.length()) {
+                return null;
+            }
+
+            final byte[]      directory = readBytes(file, offset, (int) size);
+            Map<String, Item> items = new HashMap<String, Item>();
+            int               pos = 0;
+
+            for (int i = 0; i < entries; i++) {
+                if (getInt(directory, pos) != CENTRAL_HEADER) {
+                    return null;
+                }
+
+                final int    nameLength = getShort(directory, pos + 28);
+                final String name = new String(directory, pos + CENTRAL_SIZE, nameLength, UTF8);
+                final int    method = getShort(directory, pos + 10);
+
+                items.put(name,
+                          new Item(method == Deflater.DEFLATED, (int) getInt(directory, pos + 12),
+                                   getInt(directory, pos + 16), getInt(directory, pos + 20),
+                                   getInt(directory, pos + 24), getInt(directory, pos + 42)));
+                pos += CENTRAL_SIZE + nameLength + getShort(directory, pos + 30) + getShort(directory, pos + 32);
+            }
+
+            return new Source(file, comment.length == 0 ? null : new String(comment, UTF8), items);
+        }
+
+        /**
+         * Read the compressed data of an entry
+         */
+        private byte[] read(Item item)
+            throws IOException
+        {
+            final byte[] header = readBytes(file, item.offset, LOCAL_SIZE);
+
+            if (getInt(header, 0) != LOCAL_HEADER || item.compressedSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid entry at: " + item.offset);
+            }
+
+            return readBytes(file, item.offset + LOCAL_SIZE + getShort(header, 26) + getShort(header, 28),
+                             (int) item.compressedSize);
+        }
+
+        private static byte[] readBytes(RandomAccessFile file, long pos, int length)
+            throws IOException
+        {
+            byte[] result = new byte[length];
+            file.seek(pos);
+            file.readFully(result);
+            return result;
+        }
+
+        private static int getShort(byte[] bytes, int pos)
+        {
+            return (bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8;
+        }
+
+        private static long getInt(byte[] bytes, int pos)
+        {
+            return getShort(bytes, pos) | (long) getShort(bytes, pos + 2) << 16;
+        }
+
+        /**
+         * An entry of the central directory
+         */
+        private static class Item
+        {
+            final long    compressedSize;
+            final long    crc;
+            final boolean deflated;
+            final long    offset;
+            final long    size;
+            final int     time;
+
+            Item(boolean deflated, int time, long crc, long compressedSize, long size, long offset)
+            {
+                this.deflated = deflated;
+                this.time = time;
+                this.crc = crc;
+                this.compressedSize = compressedSize;
+                this.size = size;
+                this.offset = offset;
+            }
+        }
+    }
+
+    /**
+     * An entry ready to be written
+     */
+    private static class Entry
+    {
+        final long            compressedSize;
+        final long            crc;
+        @Nullable byte[]      data;
+        final boolean         deflated;
+        boolean               jarMagic;
+        @NotNull final byte[] name;
+        long                  offset;
+        final long            size;
+        final int             time;
+
+        /**
+         * Create an entry with the specified content, compressing it if requested
+         */
+        Entry(String name, byte[] content, boolean compress, int level, int time)
+            throws IOException
+        {
+            this(name.getBytes(UTF8), compress ? deflate(content, level) : content, compress, crc(content),
+                 content.length, time);
+        }
+
+        /**
+         * Create an entry with already compressed data
+         */
+        Entry(@NotNull byte[] name, @NotNull byte[] data, boolean deflated, long crc, long size, int time)
+        {
+            this.name = name;
+            this.data = data;
+            this.deflated = deflated;
+            this.crc = crc;
+            this.size = size;
+            this.time = time;
+            compressedSize = data.length;
+        }
+
+        private static long crc(byte[] content)
+        {
+            final CRC32 checksum = new CRC32();
+            checksum.update(content);
+            return checksum.getValue();
+        }
+
+        private static byte[] deflate(byte[] content, int level)
+        {
+            final Deflater d = deflater.get();
+            d.reset();
+            d.setLevel(level);
+            d.setInput(content);
+            d.finish();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[]                buffer = new byte[8 * 1024];
+
+            while (!d.finished()) {
+                result.write(buffer, 0, d.deflate(buffer));
+            }
+
+            return result.toByteArray();
+        }
+    }
+}
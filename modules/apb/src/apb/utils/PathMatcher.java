@@ -0,0 +1,404 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A set of path patterns (Like the includes & excludes of a {@link DirectoryScanner}) compiled once,
+ * with the same semantics than {@link StringUtils#matchPath} and {@link StringUtils#matchPatternStart}.
+ * Paths are matched in place, without tokenizing them or allocating anything.
+ * The most common patterns have fast paths: <code>**</code>, <code>**&#47;name</code>
+ * (e.g. <code>**&#47;*.java</code>, only the last segment is checked) and <code>**&#47;name&#47;**</code>.
+ * Instances are immutable, so they can be shared between threads.
+ */
+public class PathMatcher
+{
+    //~ Instance fields ......................................................................................
+
+    private final boolean           caseSensitive;
+    @NotNull private final Pattern[] patterns;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Compile a set of patterns
+     * @param patterns The patterns (They are normalized with {@link StringUtils#normalizePath})
+     * @param caseSensitive Whether to match case sensitively
+     */
+    public PathMatcher(@NotNull Collection<String> patterns, boolean caseSensitive)
+    {
+        this.caseSensitive = caseSensitive;
+        this.patterns = new Pattern[patterns.size()];
+
+        int i = 0;
+
+        for (String pattern : patterns) {
+            this.patterns[i++] = new Pattern(StringUtils.normalizePath(pattern));
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Return true if there are no patterns
+     */
+    public boolean isEmpty()
+    {
+        return patterns.length == 0;
+    }
+
+    /**
+     * Check if the path matches any of the patterns
+     * @param path The path to check
+     */
+    public boolean matches(@NotNull String path)
+    {
+        for (Pattern pattern : patterns) {
+            if (pattern.matches(path, caseSensitive)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if any of the patterns can match files under the specified directory
+     * (The equivalent of {@link StringUtils#matchPatternStart})
+     * @param path The path of the directory
+     */
+    public boolean matchesStart(@NotNull String path)
+    {
+        for (Pattern pattern : patterns) {
+            if (pattern.matchesStart(path, caseSensitive)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the end of the segment starting at the specified position
+     */
+    private static int segmentEnd(String path, int pos)
+    {
+        final int end = path.indexOf(File.separatorChar, pos);
+        return end == -1 ? path.length() : end;
+    }
+
+    /**
+     * Skip separators, empty segments are ignored as {@link StringUtils#matchPath} does
+     */
+    private static int skipSeparators(String path, int pos)
+    {
+        while (pos < path.length() && path.charAt(pos) == File.separatorChar) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * Kinds of pattern
+     */
+    private static final int EVERYTHING = 0;
+    private static final int LAST_SEGMENT = 1;
+    private static final int ANY_SEGMENT = 2;
+    private static final int GENERAL = 3;
+
+    /**
+     * Kinds of segment
+     */
+    private static final int DEEP = 0;
+    private static final int ANY = 1;
+    private static final int LITERAL = 2;
+    private static final int PREFIX = 3;
+    private static final int SUFFIX = 4;
+    private static final int GLOB = 5;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A compiled pattern
+     */
+    private static class Pattern
+    {
+        private final boolean   absolute;
+        private final int       kind;
+        private final Segment[] segments;
+
+        Pattern(String pattern)
+        {
+            absolute = pattern.startsWith(File.separator);
+
+            List<Segment> list = new ArrayList<Segment>();
+
+            for (int pos = skipSeparators(pattern, 0); pos < pattern.length();) {
+                final int     end = segmentEnd(pattern, pos);
+                final Segment segment = new Segment(pattern.substring(pos, end));
+
+                // '**/**' is the same than '**'
+                if (segment.kind != DEEP || list.isEmpty() || list.get(list.size() - 1).kind != DEEP) {
+                    list.add(segment);
+                }
+
+                pos = skipSeparators(pattern, end);
+            }
+
+            segments = list.toArray(new Segment[list.size()]);
+
+            final boolean deepStart = segments.length > 0 && segments[0].kind == DEEP;
+
+            if (deepStart && segments.length == 1) {
+                kind = EVERYTHING;
+            }
+            else if (deepStart && segments.length == 2) {
+                kind = LAST_SEGMENT;
+            }
+            else if (deepStart && segments.length == 3 && segments[2].kind == DEEP) {
+                kind = ANY_SEGMENT;
+            }
+            else {
+                kind = GENERAL;
+            }
+        }
+
+        boolean matches(String path, boolean caseSensitive)
+        {
+            if (absolute != path.startsWith(File.separator)) {
+                return false;
+            }
+
+            switch (kind) {
+            case EVERYTHING:
+                return true;
+
+            case LAST_SEGMENT:
+
+                int end = path.length();
+
+                while (end > 0 && path.charAt(end - 1) == File.separatorChar) {
+                    end--;
+                }
+
+                final int start = path.lastIndexOf(File.separatorChar, end - 1) + 1;
+                return start < end && segments[1].matches(path, start, end, caseSensitive);
+
+            case ANY_SEGMENT:
+
+                for (int pos = skipSeparators(path, 0); pos < path.length();) {
+                    final int segmentEnd = segmentEnd(path, pos);
+
+                    if (segments[1].matches(path, pos, segmentEnd, caseSensitive)) {
+                        return true;
+                    }
+
+                    pos = skipSeparators(path, segmentEnd);
+                }
+
+                return false;
+
+            default:
+                return matchesFrom(path, 0, 0, caseSensitive);
+            }
+        }
+
+        boolean matchesStart(String path, boolean caseSensitive)
+        {
+            if (absolute != path.startsWith(File.separator)) {
+                return false;
+            }
+
+            int i = 0;
+            int pos = skipSeparators(path, 0);
+
+            // up to first '**'
+            while (i < segments.length && pos < path.length() && segments[i].kind != DEEP) {
+                final int end = segmentEnd(path, pos);
+
+                if (!segments[i].matches(path, pos, end, caseSensitive)) {
+                    return false;
+                }
+
+                i++;
+                pos = skipSeparators(path, end);
+            }
+
+            return pos >= path.length() || i < segments.length;
+        }
+
+        /**
+         * Match the segments from the specified one against the path from the specified position
+         */
+        private boolean matchesFrom(String path, int i, int pos, boolean caseSensitive)
+        {
+            pos = skipSeparators(path, pos);
+
+            if (i == segments.length) {
+                return pos == path.length();
+            }
+
+            if (segments[i].kind == DEEP) {
+                // Try to match the rest of the pattern skipping 0, 1, 2... segments
+                while (!matchesFrom(path, i + 1, pos, caseSensitive)) {
+                    if (pos == path.length()) {
+                        return false;
+                    }
+
+                    pos = skipSeparators(path, segmentEnd(path, pos));
+                }
+
+                return true;
+            }
+
+            if (pos == path.length()) {
+                return false;
+            }
+
+            final int end = segmentEnd(path, pos);
+            return segments[i].matches(path, pos, end, caseSensitive) &&
+                   matchesFrom(path, i + 1, end, caseSensitive);
+        }
+    }
+
+    /**
+     * A compiled segment of a pattern (The text between separators)
+     */
+    private static class Segment
+    {
+        private final int    kind;
+        private final String text;
+
+        Segment(String segment)
+        {
+            final int firstStar = segment.indexOf('*');
+            final int lastStar = segment.lastIndexOf('*');
+
+            if (segment.equals("**")) {
+                kind = DEEP;
+                text = segment;
+            }
+            else if (segment.equals("*")) {
+                kind = ANY;
+                text = segment;
+            }
+            else if (segment.indexOf('?') != -1 || firstStar != lastStar) {
+                kind = GLOB;
+                text = segment;
+            }
+            else if (firstStar == -1) {
+                kind = LITERAL;
+                text = segment;
+            }
+            else if (firstStar == 0) {
+                kind = SUFFIX;
+                text = segment.substring(1);
+            }
+            else if (firstStar == segment.length() - 1) {
+                kind = PREFIX;
+                text = segment.substring(0, firstStar);
+            }
+            else {
+                kind = GLOB;
+                text = segment;
+            }
+        }
+
+        /**
+         * Match the segment against the region of the path between start & end
+         */
+        boolean matches(String path, int start, int end, boolean caseSensitive)
+        {
+            final int length = text.length();
+
+            switch (kind) {
+            case DEEP:
+            case ANY:
+                return true;
+
+            case LITERAL:
+                return end - start == length && path.regionMatches(!caseSensitive, start, text, 0, length);
+
+            case PREFIX:
+                return end - start >= length && path.regionMatches(!caseSensitive, start, text, 0, length);
+
+            case SUFFIX:
+                return end - start >= length && path.regionMatches(!caseSensitive, end - length, text, 0, length);
+
+            default:
+                return glob(path, start, end, caseSensitive);
+            }
+        }
+
+        /**
+         * Match a pattern with '*' & '?' wildcards, backtracking to the last star on mismatches
+         */
+        private boolean glob(String path, int start, int end, boolean caseSensitive)
+        {
+            final int length = text.length();
+            int       p = 0;
+            int       s = start;
+            int       star = -1;
+            int       starMatch = start;
+
+            while (s < end) {
+                final char c = p < length ? text.charAt(p) : 0;
+
+                if (c == '*') {
+                    star = p++;
+                    starMatch = s;
+                }
+                else if (p < length && (c == '?' || sameChar(c, path.charAt(s), caseSensitive))) {
+                    p++;
+                    s++;
+                }
+                else if (star != -1) {
+                    p = star + 1;
+                    s = ++starMatch;
+                }
+                else {
+                    return false;
+                }
+            }
+
+            while (p < length && text.charAt(p) == '*') {
+                p++;
+            }
+
+            return p == length;
+        }
+
+        private static boolean sameChar(char a, char b, boolean caseSensitive)
+        {
+            return a == b ||
+                   !caseSensitive &&
+                   (Character.toUpperCase(a) == Character.toUpperCase(b) ||
+                    Character.toLowerCase(a) == Character.toLowerCase(b));
+        }
+    }
+}
@@ -59,8 +59,15 @@ public class PropertyExpansor
 
     public ProjectElement expand(ProjectElement element)
     {
-        initMagicProperties(element);
-        return expandProperties("", element);
+        final BuildTrace.Span span = env.startSpan(element.getName(), "expand", element.getName());
+
+        try {
+            initMagicProperties(element);
+            return expandProperties("", element);
+        }
+        finally {
+            span.end();
+        }
     }
 
     /**
@@ -80,7 +80,17 @@ public class SimpleFormatter
         return result.toString();
     }
 
-    private String formatMsg(LogRecord record)
+    /**
+     * Return the header of the messages logged by the current thread
+     */
+    String header()
+    {
+        final StringBuilder result = new StringBuilder();
+        appendHeader(result);
+        return result.toString();
+    }
+
+    String formatMsg(LogRecord record)
     {
         String         msg = record.getMessage();
         final Object[] pars = record.getParameters();
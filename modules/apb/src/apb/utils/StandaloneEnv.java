@@ -18,7 +18,6 @@
 
 package apb.utils;
 
-import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,7 +36,8 @@ public class StandaloneEnv
 {
     //~ Instance fields ......................................................................................
 
-    private Logger logger;
+    private AsyncLogHandler handler;
+    private Logger          logger;
 
     //~ Constructors .........................................................................................
 
@@ -76,6 +76,11 @@ public class StandaloneEnv
         logger.log(Level.FINE, msg, args);
     }
 
+    public void flushLog()
+    {
+        handler.flush();
+    }
+
     public void setVerbose()
     {
         super.setVerbose();
@@ -101,9 +106,15 @@ public class StandaloneEnv
     {
         Logger lg = Logger.getLogger(name);
         lg.setUseParentHandlers(false);
-        Handler h = new ConsoleHandler();
-        h.setFormatter(createFormatter());
-        lg.addHandler(h);
+
+        // The logger is shared, remove handlers from previous environments
+        for (Handler old : lg.getHandlers()) {
+            lg.removeHandler(old);
+            old.close();
+        }
+
+        handler = new AsyncLogHandler(createFormatter());
+        lg.addHandler(handler);
         lg.setLevel(Level.INFO);
         return lg;
     }
@@ -21,6 +21,9 @@ package apb.utils;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -302,6 +305,89 @@ public class StringUtils
         return str.toString();
     }
 
+    /**
+     * Return the string as a JSON string literal, quoted and escaped
+     */
+    @NotNull public static String jsonQuote(@NotNull String str)
+    {
+        final StringBuilder result = new StringBuilder(str.length() + 2).append('"');
+
+        for (int i = 0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+
+            switch (c) {
+            case '"':
+                result.append("\\\"");
+                break;
+            case '\\':
+                result.append("\\\\");
+                break;
+            case '\n':
+                result.append("\\n");
+                break;
+            case '\r':
+                result.append("\\r");
+                break;
+            case '\t':
+                result.append("\\t");
+                break;
+            default:
+
+                if (c < 0x0020) {
+                    result.append(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    result.append(c);
+                }
+            }
+        }
+
+        return result.append('"').toString();
+    }
+
+    /**
+     * Return the hexadecimal representation of the bytes
+     * @param bytes The bytes to convert
+     * @return An String with 2 hexadecimal digits per byte
+     */
+    public static String toHex(@NotNull byte[] bytes)
+    {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            result.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Return a MessageDigest to compute MD5 hashes
+     */
+    @NotNull public static MessageDigest md5Digest()
+    {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return the hexadecimal representation of the MD5 hash of the String
+     * @param str The String to hash
+     */
+    @NotNull public static String md5(@NotNull String str)
+    {
+        try {
+            return toHex(md5Digest().digest(str.getBytes("UTF-8")));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static String getStackTrace(Throwable t)
     {
         StringWriter sw = new StringWriter();
@@ -557,4 +643,6 @@ strLoop:
 
     @NonNls private static final String MATCH_ANYTHING_PATTERN = "**";
     private static final String         specialSaveChars = "=: \t\r\n\f#!";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 }
@@ -0,0 +1,35 @@
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+
+import apb.metadata.Module;
+import libraries.IdeaAnnotations;
+
+public final class ApbJfr
+    extends DefaultModule
+{
+    //~ Instance initializers ................................................................................
+
+    {
+        description = "APB Java Flight Recorder Events";
+        dependencies(new Apb(), IdeaAnnotations.LIB);
+
+        // The flight recorder API needs Java 11,
+        // so this module is not in ApbAll and it is built on its own: 'apb ApbJfr.package'
+        compiler.source = "11";
+        compiler.target = "11";
+
+        pkg.name = "apb-jfr";
+    }
+}